@@ -0,0 +1,53 @@
+-- Running accounts receivable and cash collected totals, kept up to date by a trigger on BILL so every writer of
+-- bills is counted, including the usage procedures. Each session adds the changes of its statements to its own slot,
+-- keyed by its SID, so concurrent bill writers never wait on each other's slots or deadlock over them. The totals are
+-- the sum of every slot, and slot -1 holds the totals a repair recomputed from BILL.
+--
+-- The trigger is created disabled, so bill writers don't pay for it until the totals are used. To use them, enable
+-- the trigger, fill the table with java forms.ReconciliationForm --repair and then set jog.bill.totals:
+--
+--   ALTER TRIGGER BILL_TOTALS_TRIGGER ENABLE;
+
+CREATE TABLE BILL_TOTALS (
+  slot                NUMBER(10),
+  accounts_receivable NUMBER(22, 8) DEFAULT 0 NOT NULL,
+  cash_collected      NUMBER(22, 8) DEFAULT 0 NOT NULL,
+  PRIMARY KEY (slot)
+);
+
+CREATE OR REPLACE TRIGGER BILL_TOTALS_TRIGGER
+FOR INSERT OR DELETE OR UPDATE OF IS_PAID, ACCUMULATED_CHARGES ON BILL
+DISABLE
+COMPOUND TRIGGER
+
+  receivable_delta NUMBER := 0;
+  collected_delta  NUMBER := 0;
+
+  AFTER EACH ROW IS
+  BEGIN
+    IF UPDATING OR DELETING THEN
+      receivable_delta := receivable_delta - CASE WHEN :OLD.IS_PAID = 0 THEN nvl(:OLD.ACCUMULATED_CHARGES, 0) ELSE 0 END;
+      collected_delta := collected_delta - CASE WHEN :OLD.IS_PAID = 1 THEN nvl(:OLD.ACCUMULATED_CHARGES, 0) ELSE 0 END;
+    END IF;
+    IF INSERTING OR UPDATING THEN
+      receivable_delta := receivable_delta + CASE WHEN :NEW.IS_PAID = 0 THEN nvl(:NEW.ACCUMULATED_CHARGES, 0) ELSE 0 END;
+      collected_delta := collected_delta + CASE WHEN :NEW.IS_PAID = 1 THEN nvl(:NEW.ACCUMULATED_CHARGES, 0) ELSE 0 END;
+    END IF;
+  END AFTER EACH ROW;
+
+  -- Applies the changes of the whole statement to the session's slot at once
+  AFTER STATEMENT IS
+  BEGIN
+    IF receivable_delta != 0 OR collected_delta != 0 THEN
+      MERGE INTO BILL_TOTALS
+      USING DUAL ON (SLOT = to_number(sys_context('USERENV', 'SID')))
+      WHEN MATCHED THEN UPDATE
+        SET ACCOUNTS_RECEIVABLE = ACCOUNTS_RECEIVABLE + receivable_delta,
+          CASH_COLLECTED = CASH_COLLECTED + collected_delta
+      WHEN NOT MATCHED THEN INSERT (SLOT, ACCOUNTS_RECEIVABLE, CASH_COLLECTED)
+        VALUES (to_number(sys_context('USERENV', 'SID')), receivable_delta, collected_delta);
+    END IF;
+  END AFTER STATEMENT;
+
+END BILL_TOTALS_TRIGGER;
+/
@@ -0,0 +1,12 @@
+-- The usage of each account per day, kept up to date by the ingestion path when jog.usage.rollups is enabled.
+-- Fill it from the usage logs with java forms.UsageRollupForm --all before enabling it.
+
+CREATE TABLE USAGE_ROLLUP (
+  a_id         NUMBER(5),
+  usage_day    DATE,
+  texts        NUMBER(10) DEFAULT 0 NOT NULL,
+  call_seconds NUMBER(12) DEFAULT 0 NOT NULL,
+  megabytes    NUMBER(12) DEFAULT 0 NOT NULL,
+  PRIMARY KEY (a_id, usage_day),
+  FOREIGN KEY (a_id) REFERENCES ACCOUNT (a_id) ON DELETE CASCADE
+);
@@ -0,0 +1,53 @@
+package database;
+
+/**
+ * The charges that were added to one account's bill for a billing period since they were last collected from a
+ * {@link RatingEngine}, so a whole batch of usage costs a single update to the BILL row instead of one per event.
+ */
+public final class BillDelta {
+
+    private final int accountId;
+    private final String billingPeriod;
+    private final int planId;
+    private final long chargeUnits;
+
+    BillDelta(int accountId, String billingPeriod, int planId, long chargeUnits) {
+        this.accountId = accountId;
+        this.billingPeriod = billingPeriod;
+        this.planId = planId;
+        this.chargeUnits = chargeUnits;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return The first moment of the billing period, as "yyyy-MM-01 00:00:00", which is how BILL_PERIOD is stored.
+     */
+    public String getBillingPeriod() {
+        return billingPeriod;
+    }
+
+    /**
+     * @return The plan that the bill's usage was rated with.
+     */
+    public int getPlanId() {
+        return planId;
+    }
+
+    /**
+     * @return The charges in dollars, for display.
+     */
+    public double getCharges() {
+        return Money.toDollars(chargeUnits);
+    }
+
+    /**
+     * @return The exact charges, in units of {@link Money}.
+     */
+    long getChargeUnits() {
+        return chargeUnits;
+    }
+
+}
@@ -0,0 +1,457 @@
+package database;
+
+import database.TableConstants.Bill;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes a billing period for every account at once, by rating the period's usage logs with a {@link RatingEngine}
+ * and writing the complete charges of every bill, base rate included, instead of relying on the charges that the
+ * usage procedures accumulated one event at a time.
+ * <p></p>
+ * The usage logs of the period are read once, in the order the usage happened, and every usage is rated for the
+ * accounts it's charged to. Before any bill is written, the charges that were rated so far are compared with the
+ * ACCUMULATED_CHARGES of every bill of the period, which the usage procedures charged with the same usage. The run
+ * stops without writing anything if more than <i>jog.billrun.maxMismatchRatio</i> of the bills, which defaults to
+ * none, differ by a cent or more, since the engine can't be trusted to overwrite them then. A dry run stops after the
+ * comparison either way.
+ * <p></p>
+ * The accounts are sorted by ID and split into partitions of <i>jog.billrun.partitionAccounts</i> accounts, whose
+ * bills are closed and written in parallel on a {@link ForkJoinPool}. Each partition writes its bills in a single
+ * transaction, with one JDBC batch of updates for the bills that exist and one of inserts for the ones that don't. The
+ * charges are written as totals rather than added, and the BILL_IDs of the new bills are handed out up front in
+ * account order, so a partition that fails is simply rolled back and written again, up to
+ * <i>jog.billrun.retries</i> times, and the whole run may be repeated with the same result. Bills that are already
+ * paid are left alone.
+ * <p></p>
+ * The run should be started once the usage of the period has been ingested, since usage or bills that are added while
+ * it runs may be missed or collide with the BILL_IDs it handed out. Progress is written to standard error every
+ * <i>jog.billrun.progressSeconds</i> seconds.
+ */
+public final class BillRun {
+
+    private static final int PARTITION_ACCOUNTS = Math.max(1, Integer.getInteger("jog.billrun.partitionAccounts",
+            5000));
+    private static final int RETRIES = Math.max(0, Integer.getInteger("jog.billrun.retries", 3));
+    private static final long PROGRESS_SECONDS = Math.max(1, Long.getLong("jog.billrun.progressSeconds", 5));
+    private static final double MAX_MISMATCH_RATIO = Math.max(0, Double.parseDouble(System.getProperty(
+            "jog.billrun.maxMismatchRatio", "0")));
+
+    /**
+     * Bills whose rated charges differ from their accumulated charges by at least this many units, a cent, mismatch.
+     */
+    private static final long MISMATCH_UNITS = Money.UNITS_PER_DOLLAR / 100;
+
+    /**
+     * The number of mismatched bills that are written to standard error.
+     */
+    private static final int PRINTED_MISMATCHES = 20;
+
+    /**
+     * The number of rows that are sent to the database in a single batch.
+     */
+    private static final int WRITE_BATCH = 1000;
+
+    private static final String BILLS_QUERY = "SELECT\n" +
+            "  A_ID,\n" +
+            "  PLAN_ID,\n" +
+            "  IS_PAID,\n" +
+            "  ACCUMULATED_CHARGES\n" +
+            "FROM BILL\n" +
+            "WHERE BILL_PERIOD >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "      AND BILL_PERIOD < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)";
+    private static final String MAX_BILL_ID_QUERY = "SELECT nvl(max(BILL_ID), 0) AS MAX_BILL_ID\n" +
+            "FROM BILL";
+    private static final String SUBSCRIBES_QUERY = "SELECT\n" +
+            "  A_ID,\n" +
+            "  PHONE_NUMBER\n" +
+            "FROM SUBSCRIBES";
+    private static final String UPDATE_BILL = "UPDATE BILL\n" +
+            "SET ACCUMULATED_CHARGES = ?\n" +
+            "WHERE A_ID = ?\n" +
+            "      AND BILL_PERIOD >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "      AND BILL_PERIOD < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "      AND IS_PAID = 0";
+    private static final String INSERT_BILL = "INSERT INTO BILL (BILL_ID, A_ID, BILL_PERIOD, IS_PAID, PLAN_ID, " +
+            "ACCUMULATED_CHARGES)\n" +
+            "VALUES (?, ?, to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 0, ?, ?)";
+
+    private final DatabaseApi databaseApi;
+    private final String billingPeriod;
+    private final int parallelism;
+    private final boolean dryRun;
+
+    // Loaded and rated once by run() and only read by the partitions
+    private RatingEngine ratingEngine;
+    private int[] accountIds;
+    private int[] billPlanIds;
+    private boolean[] paidBills;
+    private long[] billCharges;
+    private int[] newBillIds;
+    private int comparedBills;
+    private int mismatchedBills;
+
+    private final AtomicInteger closedAccounts = new AtomicInteger();
+    private final AtomicInteger updatedBills = new AtomicInteger();
+    private final AtomicInteger insertedBills = new AtomicInteger();
+    private final AtomicInteger skippedPaidBills = new AtomicInteger();
+    private final AtomicLong ratedUsages = new AtomicLong();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final List<String> failedPartitions = Collections.synchronizedList(new ArrayList<String>());
+    private long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * @param billingPeriod The first moment of the billing period to close, as "yyyy-MM-01 00:00:00".
+     * @param parallelism   The number of partitions that are billed at once.
+     * @param dryRun        True to only rate the usage and compare it with the bills, without writing any.
+     */
+    public BillRun(String billingPeriod, int parallelism, boolean dryRun) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1, found: " + parallelism);
+        }
+        this.databaseApi = DatabaseApi.getInstance();
+        this.billingPeriod = billingPeriod;
+        this.parallelism = parallelism;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Rates the usage, compares it with the bills and, unless this is a dry run, bills every account and waits for
+     * the partitions to finish.
+     *
+     * @return True if every account was billed, or the bills matched in a dry run. False if the accounts couldn't be
+     * loaded or rated, too many bills mismatched or a partition still failed after its retries, in which case
+     * {@link #getFailedPartitions()} holds the accounts that weren't billed.
+     */
+    public boolean run() {
+        startNanos = System.nanoTime();
+        try {
+            load();
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            System.err.println("Could not load and rate the accounts and bills of the billing period.");
+            endNanos = System.nanoTime();
+            return false;
+        } finally {
+            databaseApi.logout();
+        }
+
+        boolean matches = compareBills();
+        if (dryRun || !matches) {
+            endNanos = System.nanoTime();
+            if (!matches) {
+                System.err.println("No bills were written, since more than " + MAX_MISMATCH_RATIO * 100 + "% of " +
+                        "them don't match the rating engine.");
+            }
+            return matches;
+        }
+
+        int partitionCount = (accountIds.length + PARTITION_ACCOUNTS - 1) / PARTITION_ACCOUNTS;
+        System.err.println("Billing " + accountIds.length + " accounts in " + partitionCount + " partitions with a " +
+                "parallelism of " + parallelism + "...");
+        ScheduledExecutorService progressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jog-billrun-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressExecutor.scheduleAtFixedRate(this::printProgress, PROGRESS_SECONDS, PROGRESS_SECONDS,
+                TimeUnit.SECONDS);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        try {
+            if (partitionCount > 0) {
+                forkJoinPool.invoke(new PartitionTask(0, partitionCount));
+            }
+        } finally {
+            forkJoinPool.shutdown();
+            progressExecutor.shutdownNow();
+            endNanos = System.nanoTime();
+            // The bills were rewritten with absolute charges, which can't be patched into the cube
+            FinancialCube.getInstance().invalidate();
+        }
+        printProgress();
+        return failedPartitions.isEmpty();
+    }
+
+    /**
+     * @return The number of accounts in the run.
+     */
+    public int getAccountCount() {
+        return accountIds == null ? 0 : accountIds.length;
+    }
+
+    /**
+     * @return The number of accounts whose bill was written or skipped for being paid.
+     */
+    public int getClosedAccountCount() {
+        return closedAccounts.get();
+    }
+
+    public int getUpdatedBillCount() {
+        return updatedBills.get();
+    }
+
+    public int getInsertedBillCount() {
+        return insertedBills.get();
+    }
+
+    public int getSkippedPaidBillCount() {
+        return skippedPaidBills.get();
+    }
+
+    /**
+     * @return The number of existing bills, and of accounts that had usage but no bill, whose accumulated charges were
+     * compared with the rated ones.
+     */
+    public int getComparedBillCount() {
+        return comparedBills;
+    }
+
+    /**
+     * @return The number of compared bills whose charges differ from the rated ones by a cent or more.
+     */
+    public int getMismatchedBillCount() {
+        return mismatchedBills;
+    }
+
+    /**
+     * @return The number of usages that were rated.
+     */
+    public long getRatedUsageCount() {
+        return ratedUsages.get();
+    }
+
+    /**
+     * @return The number of times a partition was rolled back and billed again.
+     */
+    public int getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return The account ID ranges, such as "100-199", of the partitions that failed after every retry.
+     */
+    public List<String> getFailedPartitions() {
+        synchronized (failedPartitions) {
+            return new ArrayList<>(failedPartitions);
+        }
+    }
+
+    public double getElapsedSeconds() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return (end - startNanos) / 1e9;
+    }
+
+    public double getAccountsPerSecond() {
+        double elapsedSeconds = getElapsedSeconds();
+        return elapsedSeconds <= 0 ? 0 : closedAccounts.get() / elapsedSeconds;
+    }
+
+    /**
+     * Loads the plans, accounts, phones and the period's existing bills, hands out the BILL_IDs of the bills that have
+     * to be inserted and rates the period's usage.
+     */
+    private void load() throws SQLException {
+        ratingEngine = RatingEngine.load(databaseApi);
+        accountIds = ratingEngine.getAccountIds();
+        billPlanIds = new int[accountIds.length];
+        paidBills = new boolean[accountIds.length];
+        billCharges = new long[accountIds.length];
+        ResultSet resultSet = databaseApi.executeQuery(BILLS_QUERY, billingPeriod, billingPeriod);
+        while (resultSet.next()) {
+            int index = Arrays.binarySearch(accountIds, resultSet.getInt(Bill.A_ID));
+            if (index >= 0) {
+                billPlanIds[index] = resultSet.getInt(Bill.PLAN_ID);
+                paidBills[index] = resultSet.getInt(Bill.IS_PAID) == 1;
+                billCharges[index] = Money.fromDecimal(resultSet.getBigDecimal(Bill.ACCUMULATED_CHARGES));
+                ratingEngine.setBillPlan(accountIds[index], billingPeriod, billPlanIds[index]);
+            }
+        }
+        resultSet = databaseApi.executeQuery(MAX_BILL_ID_QUERY);
+        resultSet.next();
+        int nextBillId = resultSet.getInt("MAX_BILL_ID") + 1;
+        newBillIds = new int[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            if (billPlanIds[i] == 0) {
+                newBillIds[i] = nextBillId++;
+            }
+        }
+        PhoneAccountIndex phoneAccountIndex = PhoneAccountIndex.load(databaseApi.executeQuery(SUBSCRIBES_QUERY),
+                "PHONE_NUMBER", "A_ID");
+        System.err.println("Rating the usage of " + accountIds.length + " accounts...");
+        ratedUsages.set(ratingEngine.rateBillingPeriod(databaseApi, billingPeriod, phoneAccountIndex));
+    }
+
+    /**
+     * Compares the charges that were rated for each account with the ones its bill accumulated. Nothing but the usage
+     * has been charged yet, so they should be equal. Accounts that had usage but no bill are compared with nothing.
+     *
+     * @return True if few enough bills mismatch for the rated charges to be written.
+     */
+    private boolean compareBills() {
+        long[] ratedCharges = new long[accountIds.length];
+        for (BillDelta billDelta : ratingEngine.drainBillDeltas()) {
+            int index = Arrays.binarySearch(accountIds, billDelta.getAccountId());
+            if (index >= 0) {
+                ratedCharges[index] = billDelta.getChargeUnits();
+            }
+        }
+        for (int i = 0; i < accountIds.length; i++) {
+            if (billPlanIds[i] == 0 && ratedCharges[i] == 0) {
+                continue;
+            }
+            comparedBills++;
+            if (Math.abs(billCharges[i] - ratedCharges[i]) >= MISMATCH_UNITS) {
+                if (mismatchedBills < PRINTED_MISMATCHES) {
+                    System.err.printf("Account %d has accumulated $%.2f but was rated $%.2f\n", accountIds[i],
+                            Money.toDollars(billCharges[i]), Money.toDollars(ratedCharges[i]));
+                }
+                mismatchedBills++;
+            }
+        }
+        System.err.printf("Rated %d usages. %d of %d bills match the rating engine.\n", ratedUsages.get(),
+                comparedBills - mismatchedBills, comparedBills);
+        return mismatchedBills <= MAX_MISMATCH_RATIO * comparedBills;
+    }
+
+    /**
+     * Bills a partition, rolling it back and starting over if the database fails.
+     */
+    private void billPartition(int partition) {
+        int start = partition * PARTITION_ACCOUNTS;
+        int end = Math.min(accountIds.length, start + PARTITION_ACCOUNTS);
+        String accountRange = accountIds[start] + "-" + accountIds[end - 1];
+        for (int attempt = 0; ; attempt++) {
+            try {
+                billAccounts(start, end);
+                return;
+            } catch (SQLException e) {
+                if (attempt >= RETRIES) {
+                    System.err.println("Could not bill accounts " + accountRange + ": " + e.getMessage());
+                    failedPartitions.add(accountRange);
+                    return;
+                }
+                retries.incrementAndGet();
+                System.err.println("Retrying accounts " + accountRange + ": " + e.getMessage());
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(attempt + 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    failedPartitions.add(accountRange);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // Such as a bill with a plan that doesn't exist, which would fail the same way every time
+                System.err.println("Could not bill accounts " + accountRange + ": " + e);
+                failedPartitions.add(accountRange);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes and writes the bills of the accounts between the two indices of {@link #accountIds}. Closing a bill
+     * again returns the same charges, so a partition may be written again after it was rolled back.
+     */
+    private void billAccounts(int start, int end) throws SQLException {
+        try {
+            databaseApi.beginTransaction();
+            PreparedStatement updateStatement = databaseApi.prepareStatement(UPDATE_BILL);
+            PreparedStatement insertStatement = databaseApi.prepareStatement(INSERT_BILL);
+            updateStatement.clearBatch();
+            insertStatement.clearBatch();
+            int updates = 0;
+            int inserts = 0;
+            int paid = 0;
+            for (int i = start; i < end; i++) {
+                if (paidBills[i]) {
+                    paid++;
+                    continue;
+                }
+                BillDelta bill = ratingEngine.closeBill(accountIds[i], billingPeriod);
+                if (billPlanIds[i] != 0) {
+                    DatabaseApi.bindParameters(updateStatement, Money.toDecimal(bill.getChargeUnits()), accountIds[i],
+                            billingPeriod, billingPeriod);
+                    updateStatement.addBatch();
+                    if (++updates % WRITE_BATCH == 0) {
+                        updateStatement.executeBatch();
+                    }
+                } else {
+                    DatabaseApi.bindParameters(insertStatement, newBillIds[i], accountIds[i], billingPeriod,
+                            bill.getPlanId(), Money.toDecimal(bill.getChargeUnits()));
+                    insertStatement.addBatch();
+                    if (++inserts % WRITE_BATCH == 0) {
+                        insertStatement.executeBatch();
+                    }
+                }
+            }
+            if (updates % WRITE_BATCH != 0) {
+                updateStatement.executeBatch();
+            }
+            if (inserts % WRITE_BATCH != 0) {
+                insertStatement.executeBatch();
+            }
+            databaseApi.commit();
+
+            updatedBills.addAndGet(updates);
+            insertedBills.addAndGet(inserts);
+            skippedPaidBills.addAndGet(paid);
+            closedAccounts.addAndGet(end - start);
+        } catch (SQLException e) {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
+            throw e;
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    private void printProgress() {
+        System.err.printf("Billed %d of %d accounts (%.0f accounts/s), %d retries, %d failed partitions\n",
+                closedAccounts.get(), getAccountCount(), getAccountsPerSecond(), retries.get(),
+                failedPartitions.size());
+    }
+
+    /**
+     * Bills a range of partitions by splitting it in half until a single partition is left.
+     */
+    private final class PartitionTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int startPartition;
+        private final int endPartition;
+
+        private PartitionTask(int startPartition, int endPartition) {
+            this.startPartition = startPartition;
+            this.endPartition = endPartition;
+        }
+
+        @Override
+        protected void compute() {
+            if (endPartition - startPartition == 1) {
+                billPartition(startPartition);
+                return;
+            }
+            int middle = (startPartition + endPartition) >>> 1;
+            invokeAll(new PartitionTask(startPartition, middle), new PartitionTask(middle, endPartition));
+        }
+
+    }
+
+}
@@ -0,0 +1,205 @@
+package database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads and reconciles the running accounts receivable and cash collected totals of the BILL_TOTALS table, which a
+ * trigger on BILL keeps up to date as bills accrue charges and get paid. The table and trigger are created by
+ * <i>insertion_queries/bill_totals_table.sql</i>. Each session adds the changes of its statements to a slot of its
+ * own, and the totals are the sum of every slot. Reading the totals costs the same no matter how many bills there
+ * are, so the CEO's totals use them once the <i>jog.bill.totals</i> system property is set to true.
+ * <p></p>
+ * The trigger is created disabled, and the totals drift from the bills while it is, or if the table was edited by
+ * hand. {@link #reconcile(boolean)} detects that by comparing them with sums over BILL and fills a new table.
+ */
+public final class BillTotals {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jog.bill.totals", "false"));
+
+    /**
+     * Totals that differ from the bills by less than this are rounding errors rather than drift.
+     */
+    private static final double TOLERANCE = 0.005;
+
+    private static final String ACCOUNTS_RECEIVABLE_QUERY = "SELECT nvl(sum(ACCOUNTS_RECEIVABLE), 0)\n" +
+            "FROM BILL_TOTALS";
+
+    private static final String CASH_COLLECTED_QUERY = "SELECT nvl(sum(CASH_COLLECTED), 0)\n" +
+            "FROM BILL_TOTALS";
+
+    /**
+     * The totals and the sums over BILL, read by a single statement so they see the same bills.
+     */
+    private static final String RECONCILE_QUERY = "SELECT\n" +
+            "  (SELECT nvl(sum(ACCOUNTS_RECEIVABLE), 0) FROM BILL_TOTALS) AS ACCOUNTS_RECEIVABLE,\n" +
+            "  (SELECT nvl(sum(CASH_COLLECTED), 0) FROM BILL_TOTALS) AS CASH_COLLECTED,\n" +
+            "  (SELECT nvl(sum(ACCUMULATED_CHARGES), 0) FROM BILL WHERE IS_PAID = 0) AS BILLS_RECEIVABLE,\n" +
+            "  (SELECT nvl(sum(ACCUMULATED_CHARGES), 0) FROM BILL WHERE IS_PAID = 1) AS BILLS_COLLECTED\n" +
+            "FROM DUAL";
+
+    /**
+     * Keeps the trigger from changing the totals while they're repaired. Bill writers wait for the repair to commit.
+     */
+    private static final String LOCK_TOTALS = "LOCK TABLE BILL_TOTALS IN EXCLUSIVE MODE";
+
+    private static final String CLEAR_TOTALS = "DELETE FROM BILL_TOTALS";
+
+    /**
+     * Recomputes the totals into slot -1, which no session adds to.
+     */
+    private static final String REPAIR_TOTALS = "INSERT INTO BILL_TOTALS\n" +
+            "  (SLOT, ACCOUNTS_RECEIVABLE, CASH_COLLECTED)\n" +
+            "SELECT\n" +
+            "  -1,\n" +
+            "  nvl(sum(CASE WHEN IS_PAID = 0 THEN ACCUMULATED_CHARGES END), 0),\n" +
+            "  nvl(sum(CASE WHEN IS_PAID = 1 THEN ACCUMULATED_CHARGES END), 0)\n" +
+            "FROM BILL";
+
+    private final DatabaseApi databaseApi;
+
+    public BillTotals() {
+        databaseApi = DatabaseApi.getInstance();
+    }
+
+    /**
+     * @return True if the CEO's totals should be read from BILL_TOTALS instead of summing up BILL.
+     */
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Reads the total accounts receivable. The caller is responsible for logging out of the connection that was used.
+     */
+    double getAccountsReceivable() throws SQLException {
+        ResultSet resultSet = databaseApi.executeQuery(ACCOUNTS_RECEIVABLE_QUERY);
+        resultSet.next();
+        return resultSet.getDouble(1);
+    }
+
+    /**
+     * Reads the total cash collected. The caller is responsible for logging out of the connection that was used.
+     */
+    double getCashCollected() throws SQLException {
+        ResultSet resultSet = databaseApi.executeQuery(CASH_COLLECTED_QUERY);
+        resultSet.next();
+        return resultSet.getDouble(1);
+    }
+
+    /**
+     * Compares the totals with sums over BILL.
+     *
+     * @param repair True to replace the slots of the totals with sums over BILL if they drifted.
+     * @return The totals as they were before any repair, along with the sums over BILL.
+     * @throws SQLException If the totals couldn't be read or repaired, in which case they are left as they were.
+     */
+    public Reconciliation reconcile(boolean repair) throws SQLException {
+        try {
+            if (repair) {
+                databaseApi.beginTransaction();
+                databaseApi.executeUpdate(LOCK_TOTALS);
+            }
+            ResultSet resultSet = databaseApi.executeQuery(RECONCILE_QUERY);
+            resultSet.next();
+            Reconciliation reconciliation = new Reconciliation(resultSet.getDouble("ACCOUNTS_RECEIVABLE"),
+                    resultSet.getDouble("BILLS_RECEIVABLE"), resultSet.getDouble("CASH_COLLECTED"),
+                    resultSet.getDouble("BILLS_COLLECTED"), repair);
+            if (repair) {
+                if (reconciliation.hasDrift()) {
+                    databaseApi.executeUpdate(CLEAR_TOTALS);
+                    databaseApi.executeUpdate(REPAIR_TOTALS);
+                }
+                databaseApi.commit();
+            }
+            return reconciliation;
+        } catch (SQLException e) {
+            if (repair) {
+                try {
+                    databaseApi.rollback();
+                } catch (SQLException ignored) {
+                }
+            }
+            throw e;
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    /**
+     * The result of comparing the totals with the bills.
+     */
+    public static final class Reconciliation {
+
+        private final double accountsReceivable;
+        private final double billsReceivable;
+        private final double cashCollected;
+        private final double billsCollected;
+        private final boolean repaired;
+
+        private Reconciliation(double accountsReceivable, double billsReceivable, double cashCollected,
+                               double billsCollected, boolean repair) {
+            this.accountsReceivable = accountsReceivable;
+            this.billsReceivable = billsReceivable;
+            this.cashCollected = cashCollected;
+            this.billsCollected = billsCollected;
+            this.repaired = repair && hasDrift();
+        }
+
+        /**
+         * @return The running accounts receivable total.
+         */
+        public double getAccountsReceivable() {
+            return accountsReceivable;
+        }
+
+        /**
+         * @return The charges of the unpaid bills.
+         */
+        public double getBillsReceivable() {
+            return billsReceivable;
+        }
+
+        /**
+         * @return The running cash collected total.
+         */
+        public double getCashCollected() {
+            return cashCollected;
+        }
+
+        /**
+         * @return The charges of the paid bills.
+         */
+        public double getBillsCollected() {
+            return billsCollected;
+        }
+
+        /**
+         * @return How much the running accounts receivable is over the bills, or under them if negative.
+         */
+        public double getAccountsReceivableDrift() {
+            return accountsReceivable - billsReceivable;
+        }
+
+        /**
+         * @return How much the running cash collected is over the bills, or under them if negative.
+         */
+        public double getCashCollectedDrift() {
+            return cashCollected - billsCollected;
+        }
+
+        public boolean hasDrift() {
+            return Math.abs(getAccountsReceivableDrift()) >= TOLERANCE ||
+                    Math.abs(getCashCollectedDrift()) >= TOLERANCE;
+        }
+
+        /**
+         * @return True if the totals drifted and were recomputed from the bills.
+         */
+        public boolean wasRepaired() {
+            return repaired;
+        }
+
+    }
+
+}
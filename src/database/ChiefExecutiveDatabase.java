@@ -4,9 +4,13 @@ import database.TableConstants.Bill;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-
-import static database.ColumnTypes.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Created by coreycaplan on 4/22/16.
@@ -15,24 +19,36 @@ import static database.ColumnTypes.*;
  */
 public class ChiefExecutiveDatabase {
 
+    private static final DateTimeFormatter PERIOD_FORMATTER = DateTimeFormatter.ofPattern("MMM, yyyy", Locale.US);
+
     private DatabaseApi databaseApi;
+    private BillTotals billTotals;
+    private FinancialCube financialCube;
 
     public ChiefExecutiveDatabase() {
         databaseApi = DatabaseApi.getInstance();
+        billTotals = new BillTotals();
+        financialCube = FinancialCube.getInstance();
     }
 
     /**
-     * Shows Jog Wireless's total accounts receivable.
+     * Shows Jog Wireless's total accounts receivable, from the running {@link BillTotals} if they're enabled.
      */
     public void getAccountsReceivable() {
         String query = "SELECT SUM(ACCUMULATED_CHARGES) " +
                 "FROM BILL " +
                 "WHERE IS_PAID = 0";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
-            resultSet.next();
+            double accountsReceivable;
+            if (BillTotals.isEnabled()) {
+                accountsReceivable = billTotals.getAccountsReceivable();
+            } else {
+                ResultSet resultSet = databaseApi.executeQuery(query);
+                resultSet.next();
+                accountsReceivable = resultSet.getDouble(1);
+            }
             System.out.println();
-            System.out.printf("Total Accounts Receivable: $%.2f", resultSet.getDouble(1));
+            System.out.printf("Total Accounts Receivable: $%.2f", accountsReceivable);
             System.out.println();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -42,16 +58,22 @@ public class ChiefExecutiveDatabase {
     }
 
     /**
-     * Shows Jog Wireless's total cash collected.
+     * Shows Jog Wireless's total cash collected, from the running {@link BillTotals} if they're enabled.
      */
     public void getCashCollected() {
         String query = "SELECT SUM(ACCUMULATED_CHARGES) " +
                 "FROM BILL where is_paid = 1";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
-            resultSet.next();
+            double cashCollected;
+            if (BillTotals.isEnabled()) {
+                cashCollected = billTotals.getCashCollected();
+            } else {
+                ResultSet resultSet = databaseApi.executeQuery(query);
+                resultSet.next();
+                cashCollected = resultSet.getDouble(1);
+            }
             System.out.println();
-            System.out.printf("Total Cash Collected: $%.2f", resultSet.getDouble(1));
+            System.out.printf("Total Cash Collected: $%.2f", cashCollected);
             System.out.println();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -61,38 +83,35 @@ public class ChiefExecutiveDatabase {
     }
 
     /**
-     * Shows all of the customers whose bills are past due.
+     * Shows all of the customers whose bills are past due, followed by how long they've been past due. Both are read
+     * from the {@link PastDueIndex} of the {@link FinancialCube}.
      *
      * @param currentDate The current date, used as a reference for deciding which bills should be viewed as past due.
      */
     public void getBillsPastDue(String currentDate) {
         String pastDue = "AMOUNT_DUE";
-        String query = "SELECT\n" +
-                "  A_ID,\n" +
-                "  BILL_PERIOD,\n" +
-                "  ACCUMULATED_CHARGES AS " + pastDue + "\n" +
-                "FROM BILL\n" +
-                "WHERE BILL_PERIOD - to_date(\'" + currentDate + "\', 'yyyy-MM-dd HH24:mi:ss') < 0\n" +
-                "      AND IS_PAID = 0";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            List<FinancialCube.Row> rows = financialCube.getPastDueBills(currentDate);
             System.out.println();
-            if (!ResultSetHelper.isResultSetValid(resultSet, "Couldn\'t find any past due bills for the given date!")) {
+            if (rows.isEmpty()) {
+                System.out.println("Couldn\'t find any past due bills for the given date!");
                 System.out.println();
                 return;
             }
-            ArrayList<ColumnTypes> columnTypes = new ArrayList<>();
-            columnTypes.add(Bill.A_ID_TYPE);
-            columnTypes.add(Bill.BILL_PERIOD_TYPE);
-            columnTypes.add(Bill.ACCUMULATED_CHARGES_TYPE);
-
-            ArrayList<String> columnNames = new ArrayList<>();
-            columnNames.add(Bill.A_ID);
-            columnNames.add(Bill.BILL_PERIOD);
-            columnNames.add(pastDue);
-
-            ResultSetHelper resultSetHelper = new ResultSetHelper(resultSet, columnNames, columnTypes);
-            resultSetHelper.printResults(20);
+            System.out.printf("%-20s%-20s%-20s\n", Bill.A_ID, Bill.BILL_PERIOD, pastDue);
+            for (FinancialCube.Row row : rows) {
+                YearMonth billingPeriod = YearMonth.of(row.getPeriod() / 12, row.getPeriod() % 12 + 1);
+                System.out.printf("%-20d%-20s$%-20.2f\n", row.getAccountId(), billingPeriod.format(PERIOD_FORMATTER),
+                        row.getCharges(false));
+            }
+            System.out.println();
+
+            System.out.printf("%-20s%-20s%-20s\n", "DAYS_PAST_DUE", "BILLS", pastDue);
+            for (PastDueIndex.AgingBucket bucket : financialCube.getAgingBuckets(currentDate)) {
+                String days = bucket.getLastDay() == Integer.MAX_VALUE ? (bucket.getFirstDay() - 1) + "+" :
+                        bucket.getFirstDay() + "-" + bucket.getLastDay();
+                System.out.printf("%-20s%-20d$%-20.2f\n", days, bucket.getBills(), bucket.getCharges());
+            }
             System.out.println();
         } catch (SQLException e) {
             e.printStackTrace();
@@ -135,12 +154,12 @@ public class ChiefExecutiveDatabase {
                                      double overdraftRateInternetMegabytes, boolean isResidential, double baseRate) {
         int hardLimit = isHardLimit ? 1 : 0;
         int residential = isResidential ? 1 : 0;
-        String query = "{CALL CREATE_NEW_PLAN(\'" + planName + "\', " + hardLimit + ", " + limitTexts + ", "
-                + limitCallsSeconds + ", " + limitInternetMegabytes + ", " + rateTexts + ", " + rateCallsSeconds +
-                ", " + rateInternetMegabytes + ", " + overdraftRateTexts + ", " + overdraftRateCallsSeconds + ", " +
-                overdraftRateInternetMegabytes + ", " + residential + ", " + baseRate + ")";
+        String query = "{CALL CREATE_NEW_PLAN(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)}";
         try {
-            databaseApi.executeProcedure(query);
+            databaseApi.executeProcedure(query, planName, hardLimit, limitTexts, limitCallsSeconds,
+                    limitInternetMegabytes, rateTexts, rateCallsSeconds, rateInternetMegabytes, overdraftRateTexts,
+                    overdraftRateCallsSeconds, overdraftRateInternetMegabytes, residential, baseRate);
+            PlanCatalog.invalidate();
             System.out.println("Successfully created your new billing plan!");
         } catch (SQLException e) {
             e.printStackTrace();
@@ -152,7 +171,7 @@ public class ChiefExecutiveDatabase {
 
     /**
      * Gets a running count of Jog Wireless's accounts receivable by breaking down the total A/R into sub totals that
-     * are grouped by account.
+     * are grouped by account. The breakdown is read from the {@link FinancialCube}.
      *
      * @return A string array containing the list of columns returned by the query. Can return <b>null</b> if the
      * transaction encounters an error or there are no results returned.
@@ -163,7 +182,7 @@ public class ChiefExecutiveDatabase {
 
     /**
      * Gets a running count of Jog Wireless's cash collected by breaking down the total amount of cash collected into
-     * sub totals that are grouped by account.
+     * sub totals that are grouped by account. The breakdown is read from the {@link FinancialCube}.
      *
      * @return A string array containing the list of columns returned by the query. Can return <b>null</b> if the
      * transaction encounters an error or there are no results returned.
@@ -175,28 +194,13 @@ public class ChiefExecutiveDatabase {
     private String[] getFinancialInformationByCustomer(boolean isPaid) {
         ArrayList<String> columnNames = ResultSetHelper.makeColumnNames("ACCOUNT_ID", "BILLING_PERIOD",
                 isPaid ? "TOTAL_COLLECTED" : "TOTAL_UNPAID");
-        int paid = isPaid ? 1 : 0;
-        String query = "SELECT\n" +
-                "  decode(grouping(a_id), 1, 'ALL_ACCOUNTS', A_ID) AS " + columnNames.get(0) + ",\n" +
-                "  decode(grouping(bill_period), 1, 'ALL_BILLING_PERIODS', to_char(bill_period, 'Mon, yyyy')) " +
-                "AS " + columnNames.get(1) + ",\n" +
-                "  round(sum(ACCUMULATED_CHARGES), 2) AS " + columnNames.get(2) + "\n" +
-                "FROM BILL\n" +
-                "WHERE IS_PAID = " + paid + "\n" +
-                "GROUP BY ROLLUP (A_ID, BILL_PERIOD)";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
-            String errorMessage = isPaid ? "No cash has been collected yet!" :
-                    "Accounts receivable was empty!";
+            List<FinancialCube.Row> rows = financialCube.slice(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
             System.out.println();
-            if (ResultSetHelper.isResultSetValid(resultSet, errorMessage)) {
-                String resultMessage = isPaid ? "Cash collected, broken down by account:" : "Accounts receivable, " +
-                        "broken down by account:";
-                System.out.println(resultMessage);
-                ArrayList<ColumnTypes> columnTypes = ResultSetHelper.makeColumnTypes(STRING, STRING, DOUBLE_MONEY);
-
-                ResultSetHelper resultSetHelper = new ResultSetHelper(resultSet, columnNames, columnTypes);
-                resultSetHelper.printResults(25);
+            String resultMessage = isPaid ? "Cash collected, broken down by account:" : "Accounts receivable, " +
+                    "broken down by account:";
+            String errorMessage = isPaid ? "No cash has been collected yet!" : "Accounts receivable was empty!";
+            if (printFinancialInformation(rows, isPaid, columnNames, resultMessage, errorMessage)) {
                 String[] columns = new String[columnNames.size()];
                 for (int i = 0; i < columns.length; i++) {
                     columns[i] = columnNames.get(i);
@@ -212,6 +216,182 @@ public class ChiefExecutiveDatabase {
         return null;
     }
 
+    /**
+     * Shows the charges of a range of accounts and billing periods, broken down by account and period.
+     *
+     * @param firstAccountId     The first account of the range.
+     * @param lastAccountId      The last account of the range.
+     * @param firstBillingPeriod The first billing period of the range. Should be in the format "yyyy-MM-01 00:00:00".
+     * @param lastBillingPeriod  The last billing period of the range.
+     * @param isPaid             True to show the charges of the paid bills or false for the unpaid ones.
+     */
+    public void getFinancialInformationSlice(int firstAccountId, int lastAccountId, String firstBillingPeriod,
+                                             String lastBillingPeriod, boolean isPaid) {
+        ArrayList<String> columnNames = ResultSetHelper.makeColumnNames("ACCOUNT_ID", "BILLING_PERIOD",
+                isPaid ? "TOTAL_COLLECTED" : "TOTAL_UNPAID");
+        try {
+            List<FinancialCube.Row> rows = financialCube.slice(firstAccountId, lastAccountId,
+                    RatingEngine.getPeriod(firstBillingPeriod), RatingEngine.getPeriod(lastBillingPeriod));
+            System.out.println();
+            String resultMessage = (isPaid ? "Cash collected" : "Accounts receivable") + " of accounts " +
+                    firstAccountId + " to " + lastAccountId + ":";
+            printFinancialInformation(rows, isPaid, columnNames, resultMessage, "There are no bills in that range!");
+            System.out.println();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    /**
+     * Shows the accounts that owe or paid the most within a range of billing periods.
+     *
+     * @param count              The number of accounts to show.
+     * @param firstBillingPeriod The first billing period of the range. Should be in the format "yyyy-MM-01 00:00:00".
+     * @param lastBillingPeriod  The last billing period of the range.
+     * @param isPaid             True to rank the accounts by the charges of their paid bills or false for the unpaid
+     *                           ones.
+     */
+    public void getTopAccounts(int count, String firstBillingPeriod, String lastBillingPeriod, boolean isPaid) {
+        try {
+            List<FinancialCube.Row> rows = financialCube.getTopAccounts(count, isPaid,
+                    RatingEngine.getPeriod(firstBillingPeriod), RatingEngine.getPeriod(lastBillingPeriod));
+            System.out.println();
+            if (rows.isEmpty()) {
+                System.out.println("There are no bills in that range!");
+                return;
+            }
+            System.out.println("The accounts that " + (isPaid ? "paid" : "owe") + " the most:");
+            System.out.printf("%-25s%-25s%-25s\n", "RANK", "ACCOUNT_ID", isPaid ? "TOTAL_COLLECTED" : "TOTAL_UNPAID");
+            for (int i = 0; i < rows.size(); i++) {
+                System.out.printf("%-25d%-25d$%-25.2f\n", i + 1, rows.get(i).getAccountId(),
+                        rows.get(i).getCharges(isPaid));
+            }
+            System.out.println();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    /**
+     * Prints the rows of the {@link FinancialCube} that have bills of the given kind, with a sub total after each
+     * account and a grand total at the end, like <i>GROUP BY ROLLUP (A_ID, BILL_PERIOD)</i> would.
+     *
+     * @return True if any rows were printed or false if the error message was printed instead.
+     */
+    private static boolean printFinancialInformation(List<FinancialCube.Row> rows, boolean isPaid,
+                                                     List<String> columnNames, String resultMessage,
+                                                     String errorMessage) {
+        boolean hasRows = false;
+        int accountId = 0;
+        double accountCharges = 0;
+        double totalCharges = 0;
+        for (FinancialCube.Row row : rows) {
+            if (row.getBills(isPaid) == 0) {
+                continue;
+            }
+            if (!hasRows) {
+                System.out.println(resultMessage);
+                for (String columnName : columnNames) {
+                    System.out.printf("%-25s", columnName);
+                }
+                System.out.println();
+                hasRows = true;
+            } else if (row.getAccountId() != accountId) {
+                printFinancialRow(String.valueOf(accountId), "ALL_BILLING_PERIODS", accountCharges);
+                accountCharges = 0;
+            }
+            accountId = row.getAccountId();
+            YearMonth billingPeriod = YearMonth.of(row.getPeriod() / 12, row.getPeriod() % 12 + 1);
+            printFinancialRow(String.valueOf(accountId), billingPeriod.format(PERIOD_FORMATTER),
+                    row.getCharges(isPaid));
+            accountCharges += row.getCharges(isPaid);
+            totalCharges += row.getCharges(isPaid);
+        }
+        if (!hasRows) {
+            System.out.println(errorMessage);
+            return false;
+        }
+        printFinancialRow(String.valueOf(accountId), "ALL_BILLING_PERIODS", accountCharges);
+        printFinancialRow("ALL_ACCOUNTS", "ALL_BILLING_PERIODS", totalCharges);
+        return true;
+    }
+
+    private static void printFinancialRow(String accountId, String billingPeriod, double charges) {
+        System.out.printf("%-25s%-25s$%-25.2f\n", accountId, billingPeriod, charges);
+    }
+
+    /**
+     * Rates every usage of a billing period with the {@link RatingEngine} and compares the charges with the ones that
+     * the usage procedures accumulated on each bill, so the engine can be checked against the database before it's
+     * trusted with billing.
+     *
+     * @param billingPeriod The billing period that should be checked. Should be in the format "yyyy-MM-01 00:00:00".
+     */
+    public void checkBillingPeriodCharges(String billingPeriod) {
+        String query = "SELECT\n" +
+                "  A_ID,\n" +
+                "  PLAN_ID,\n" +
+                "  ACCUMULATED_CHARGES\n" +
+                "FROM BILL\n" +
+                "WHERE BILL_PERIOD >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+                "      AND BILL_PERIOD < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+                "ORDER BY A_ID";
+        try {
+            RatingEngine ratingEngine = RatingEngine.load(databaseApi);
+            ResultSet resultSet = databaseApi.executeQuery(query, billingPeriod, billingPeriod);
+            Map<Integer, Double> billCharges = new HashMap<>();
+            List<Integer> accountIds = new ArrayList<>();
+            while (resultSet.next()) {
+                int accountId = resultSet.getInt(Bill.A_ID);
+                ratingEngine.setBillPlan(accountId, billingPeriod, resultSet.getInt(Bill.PLAN_ID));
+                billCharges.put(accountId, resultSet.getDouble(Bill.ACCUMULATED_CHARGES));
+                accountIds.add(accountId);
+            }
+            PhoneAccountIndex phoneAccountIndex = PhoneAccountIndex.load(databaseApi.executeQuery("SELECT\n" +
+                    "  A_ID,\n" +
+                    "  PHONE_NUMBER\n" +
+                    "FROM SUBSCRIBES"), "PHONE_NUMBER", "A_ID");
+            int usageCount = ratingEngine.rateBillingPeriod(databaseApi, billingPeriod, phoneAccountIndex);
+
+            Map<Integer, Double> ratedCharges = new HashMap<>();
+            for (BillDelta billDelta : ratingEngine.drainBillDeltas()) {
+                ratedCharges.put(billDelta.getAccountId(), billDelta.getCharges());
+                if (!billCharges.containsKey(billDelta.getAccountId())) {
+                    accountIds.add(billDelta.getAccountId());
+                }
+            }
+
+            System.out.println();
+            int mismatches = 0;
+            for (int accountId : accountIds) {
+                Double billCharge = billCharges.get(accountId);
+                Double ratedCharge = ratedCharges.get(accountId);
+                double billAmount = billCharge == null ? 0 : billCharge;
+                double ratedAmount = ratedCharge == null ? 0 : ratedCharge;
+                if (Math.abs(billAmount - ratedAmount) >= 0.005) {
+                    if (mismatches == 0) {
+                        System.out.printf("%-15s %-25s %-25s\n", "Account ID", "Accumulated Charges",
+                                "Rated Charges");
+                    }
+                    System.out.printf("%-15d $%-24.2f $%-24.2f\n", accountId, billAmount, ratedAmount);
+                    mismatches++;
+                }
+            }
+            System.out.printf("Rated %d usages. %d of %d bills match the rating engine.\n", usageCount,
+                    accountIds.size() - mismatches, accountIds.size());
+            System.out.println();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("There was an error checking the bills of the billing period.");
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
     /**
      * Creates a new phone to be added to Jog's phone selection.
      *
@@ -219,10 +399,10 @@ public class ChiefExecutiveDatabase {
      * @param model        The new phone's model.
      */
     public void createNewPhone(String manufacturer, String model) {
-        String procedure = "{call CREATE_NEW_PHONE(\'" + manufacturer + "\', \'" + model + "\')}";
+        String procedure = "{call CREATE_NEW_PHONE(?, ?)}";
         try {
             System.out.println();
-            databaseApi.executeProcedure(procedure);
+            databaseApi.executeProcedure(procedure, manufacturer, model);
             System.out.println("Your phone was successfully created!");
         } catch (SQLException e) {
             e.printStackTrace();
@@ -0,0 +1,203 @@
+package database;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of long-lived JDBC connections. Connections are validated when they are borrowed, evicted after
+ * sitting idle for too long (down to the minimum size) and the time callers spend waiting for a connection is
+ * recorded so it can be reported with {@link #getStatistics()}.
+ * <p></p>
+ * The sizes and timeouts may be tuned with the <i>jog.pool.minSize</i>, <i>jog.pool.maxSize</i>,
+ * <i>jog.pool.maxIdleSeconds</i> and <i>jog.pool.borrowTimeoutSeconds</i> system properties.
+ */
+final class ConnectionPool {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long EVICTION_INTERVAL_SECONDS = 30;
+
+    private final String url;
+    private final String username;
+    private final String password;
+
+    private final int minimumSize;
+    private final int maximumSize;
+    private final long maximumIdleMillis;
+    private final long borrowTimeoutMillis;
+
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final Semaphore borrowPermits;
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ScheduledExecutorService evictionExecutor;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maximumWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private volatile boolean isShutdown;
+
+    ConnectionPool(String url, String username, String password) throws SQLException {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        minimumSize = Math.max(0, Integer.getInteger("jog.pool.minSize", 1));
+        maximumSize = Math.max(Math.max(1, minimumSize), Integer.getInteger("jog.pool.maxSize", 8));
+        maximumIdleMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("jog.pool.maxIdleSeconds", 300));
+        borrowTimeoutMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("jog.pool.borrowTimeoutSeconds", 30));
+        borrowPermits = new Semaphore(maximumSize, true);
+
+        try {
+            Class.forName("oracle.jdbc.driver.OracleDriver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("The Oracle JDBC driver could not be found", e);
+        }
+
+        for (int i = 0; i < minimumSize; i++) {
+            idleConnections.offer(newConnection());
+        }
+
+        evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jog-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionExecutor.scheduleWithFixedDelay(this::evictIdleConnections, EVICTION_INTERVAL_SECONDS,
+                EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, waiting up to the borrow timeout if every connection is in use. Idle
+     * connections are validated before they are handed out and silently replaced if they went stale.
+     *
+     * @return A valid connection that must be given back with {@link #release(PooledConnection)}.
+     * @throws SQLException If the pool is shut down, the wait timed out or a new connection couldn't be opened.
+     */
+    PooledConnection borrow() throws SQLException {
+        if (isShutdown) {
+            throw new SQLException("The connection pool has been shut down");
+        }
+        long startNanos = System.nanoTime();
+        boolean acquired = borrowPermits.tryAcquire();
+        if (!acquired) {
+            waitCount.incrementAndGet();
+            try {
+                acquired = borrowPermits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+        }
+        recordWait(System.nanoTime() - startNanos);
+        if (!acquired) {
+            timeoutCount.incrementAndGet();
+            throw new SQLException("Timed out waiting for a database connection");
+        }
+
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (pooledConnection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    pooledConnection.markUsed();
+                    return pooledConnection;
+                }
+                discard(pooledConnection);
+            }
+            return newConnection();
+        } catch (SQLException | RuntimeException e) {
+            borrowPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Broken connections are closed instead of being reused.
+     *
+     * @param pooledConnection The connection that was previously retrieved from {@link #borrow()}.
+     */
+    void release(PooledConnection pooledConnection) {
+        try {
+            if (isShutdown || !pooledConnection.reset()) {
+                discard(pooledConnection);
+            } else {
+                idleConnections.offerFirst(pooledConnection);
+            }
+        } finally {
+            borrowPermits.release();
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the eviction thread. Connections that are still borrowed are closed
+     * when they are released.
+     */
+    void shutdown() {
+        isShutdown = true;
+        evictionExecutor.shutdownNow();
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null) {
+            discard(pooledConnection);
+        }
+    }
+
+    /**
+     * @return A human readable summary of the pool's size and the time spent waiting to borrow connections.
+     */
+    String getStatistics() {
+        long borrows = borrowCount.get();
+        double averageWaitMillis = borrows == 0 ? 0 : totalWaitNanos.get() / (double) borrows / 1000000.0;
+        return String.format("Connection pool: %d open (%d idle, min %d, max %d), %d created, %d evicted, " +
+                        "%d borrows, %d waited, %d timed out, average wait %.3f ms, maximum wait %.3f ms",
+                totalConnections.get(), idleConnections.size(), minimumSize, maximumSize, createdCount.get(),
+                evictedCount.get(), borrows, waitCount.get(), timeoutCount.get(), averageWaitMillis,
+                maximumWaitNanos.get() / 1000000.0);
+    }
+
+    private PooledConnection newConnection() throws SQLException {
+        PooledConnection pooledConnection = new PooledConnection(DriverManager.getConnection(url, username,
+                password));
+        totalConnections.incrementAndGet();
+        createdCount.incrementAndGet();
+        return pooledConnection;
+    }
+
+    private void discard(PooledConnection pooledConnection) {
+        pooledConnection.close();
+        totalConnections.decrementAndGet();
+    }
+
+    private void recordWait(long waitNanos) {
+        borrowCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long maximum;
+        while (waitNanos > (maximum = maximumWaitNanos.get())) {
+            if (maximumWaitNanos.compareAndSet(maximum, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    private void evictIdleConnections() {
+        long cutoff = System.currentTimeMillis() - maximumIdleMillis;
+        Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+        while (iterator.hasNext() && totalConnections.get() > minimumSize) {
+            PooledConnection pooledConnection = iterator.next();
+            if (pooledConnection.getLastUsedMillis() < cutoff && idleConnections.remove(pooledConnection)) {
+                discard(pooledConnection);
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+}
@@ -31,10 +31,10 @@ public class CustomerDatabase {
 
     public void changeCustomerName(String customerId, String newName) {
         String query = "UPDATE CUSTOMER " +
-                "SET NAME = \'" + newName + "\' " +
-                "where C_ID = " + customerId;
+                "SET NAME = ? " +
+                "where C_ID = ?";
         try {
-            databaseApi.executeQuery(query);
+            databaseApi.executeUpdate(query, newName, customerId);
             System.out.println("Your name has been changed successfully!");
         } catch (SQLException e) {
             System.out.println("There was an error changing your name.");
@@ -45,10 +45,10 @@ public class CustomerDatabase {
 
     public void changeCustomerAddress(String customerId, String newAddress) {
         String query = "UPDATE CUSTOMER " +
-                "SET ADDRESS = \'" + newAddress + "\' " +
-                "where C_ID = " + customerId;
+                "SET ADDRESS = ? " +
+                "where C_ID = ?";
         try {
-            databaseApi.executeQuery(query);
+            databaseApi.executeUpdate(query, newAddress, customerId);
             System.out.println("Your address has been changed successfully!");
         } catch (SQLException e) {
             System.out.println("There was an error changing your address.");
@@ -59,42 +59,15 @@ public class CustomerDatabase {
 
     public void viewCurrentPlan(String accountId) {
         try {
-            String query = "SELECT\n" +
-                    "  P_NAME,\n" +
-                    "  HARD_LIMIT,\n" +
-                    "  LIMIT_TEXTS,\n" +
-                    "  LIMIT_CALLS_SECONDS,\n" +
-                    "  LIMIT_INTERNET_MB,\n" +
-                    "  RATE_TEXTS,\n" +
-                    "  RATE_CALLS_SECONDS,\n" +
-                    "  RATE_INTERNET_MB,\n" +
-                    "  OVERDRAFT_RATE_TEXTS,\n" +
-                    "  OVERDRAFT_RATE_CALLS_SECONDS,\n" +
-                    "  OVERDRAFT_RATE_INTERNET_MB,\n" +
-                    "  BASE_RATE\n" +
-                    "FROM account\n" +
-                    "  JOIN plans ON ACCOUNT.CURRENT_PLAN = PLANS.PLAN_ID\n" +
-                    "WHERE A_ID = " + accountId;
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            String query = "SELECT CURRENT_PLAN\n" +
+                    "FROM ACCOUNT\n" +
+                    "WHERE A_ID = ?";
+            ResultSet resultSet = databaseApi.executeQuery(query, accountId);
             resultSet.next();
-            String planName = resultSet.getString(Plans.P_NAME);
-            int hardLimit = resultSet.getInt(Plans.HARD_LIMIT);
-            int limitTexts = resultSet.getInt(Plans.LIMIT_TEXTS);
-            int limitCallsSeconds = resultSet.getInt(Plans.LIMIT_CALLS_SECONDS);
-            int limitInternetMegabytes = resultSet.getInt(Plans.LIMIT_INTERNET_MB);
-            double rateTexts = resultSet.getDouble(Plans.RATE_TEXTS);
-            double rateCallsSeconds = resultSet.getDouble(Plans.RATE_CALLS_SECONDS);
-            double rateInternet = resultSet.getDouble(Plans.RATE_INTERNET_MB);
-            double overdraftRateTexts = resultSet.getDouble(Plans.OVERDRAFT_RATE_TEXTS);
-            double overdraftRateCalls = resultSet.getDouble(Plans.OVERDRAFT_RATE_CALLS_SECONDS);
-            double overdraftRateInternet = resultSet.getDouble(Plans.OVERDRAFT_RATE_INTERNET_MB);
-            double baseRate = resultSet.getDouble(Plans.BASE_RATE);
-
-            PlanParser planParser = new PlanParser(planName, hardLimit, limitTexts, limitCallsSeconds / 60,
-                    limitInternetMegabytes / 1024, rateTexts, rateCallsSeconds * 60, rateInternet * 1024,
-                    overdraftRateTexts, overdraftRateCalls * 60, overdraftRateInternet * 1024, baseRate);
+            int planId = resultSet.getInt(Account.CURRENT_PLAN);
+            String planDescription = PlanCatalog.get(databaseApi).getDescription(planId);
             System.out.println("Here is your current billing plan:");
-            System.out.println(planParser.parse());
+            System.out.println(planDescription);
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
@@ -110,9 +83,9 @@ public class CustomerDatabase {
                 "FROM CUSTOMER\n" +
                 "  NATURAL JOIN SUBSCRIBES\n" +
                 "  NATURAL JOIN ACCOUNT\n" +
-                "WHERE A_ID = " + accountId;
+                "WHERE A_ID = ?";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, accountId);
             ArrayList<String> columnNames = ResultSetHelper.makeColumnNames("NAME", "ADDRESS", "PHONE_NUMBER");
             ArrayList<ColumnTypes> columnTypes = ResultSetHelper.makeColumnTypes(STRING, STRING, LONG);
             ResultSetHelper resultSetHelper = new ResultSetHelper(resultSet, columnNames, columnTypes);
@@ -136,10 +109,10 @@ public class CustomerDatabase {
                 "  NATURAL JOIN PHONE_MODEL\n" +
                 "  NATURAL JOIN ACCOUNT\n" +
                 "  JOIN PLANS ON ACCOUNT.CURRENT_PLAN = PLANS.PLAN_ID\n" +
-                "where C_ID = " + customerId + "\n" +
-                "AND IS_RESIDENTIAL = " + (isResidential ? 1 : 0);
+                "where C_ID = ?\n" +
+                "AND IS_RESIDENTIAL = ?";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, customerId, isResidential ? 1 : 0);
             if(isResidential) {
                 System.out.println("Here are the residential phones that you own:");
             } else {
@@ -156,60 +129,92 @@ public class CustomerDatabase {
         }
     }
 
+    /**
+     * Shows the texts, call minutes and gigabytes that the account used in a billing period. The totals are read from
+     * the {@link UsageRollups} if they're enabled, or else with a single query that only scans the period's rows of
+     * each log, and are then kept in the {@link UsageSummaryCache}.
+     *
+     * @param accountId     The account ID of the account whose usage should be shown.
+     * @param billingPeriod Any time within the billing period, as "yyyy-MM-dd HH:mm:ss".
+     */
     public void getUsageInformation(String accountId, String billingPeriod) {
-        String query1 = "SELECT count(TEXT_ID) AS TOTAL_TEXTS\n" +
-                "FROM TEXT_LOG\n" +
-                "WHERE (extract(MONTH FROM TIME_SENT) = extract(MONTH FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\'))\n" +
-                "       AND extract(YEAR FROM TIME_SENT) = extract(YEAR FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\')))\n" +
-                "      AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER\n" +
-                "                            FROM SUBSCRIBES\n" +
-                "                            WHERE A_ID = " + accountId + ")\n" +
-                "           OR DEST_PHONE IN (SELECT PHONE_NUMBER\n" +
-                "                             FROM SUBSCRIBES\n" +
-                "                             WHERE A_ID = " + accountId + ")\n" +
-                "      )";
-
-        String query2 = "SELECT sum((END_TIME - START_TIME) * 60 * 24) AS TOTAL_MINUTES\n" +
-                "FROM CALL_LOG\n" +
-                "WHERE (extract(MONTH FROM START_TIME) = extract(MONTH FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\'))\n" +
-                "       AND extract(YEAR FROM START_TIME) = extract(YEAR FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\')))\n" +
-                "      AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER\n" +
-                "                            FROM SUBSCRIBES\n" +
-                "                            WHERE A_ID = " + accountId + ")\n" +
-                "           OR DEST_PHONE IN (SELECT PHONE_NUMBER\n" +
-                "                             FROM SUBSCRIBES\n" +
-                "                             WHERE A_ID = " + accountId + ")\n" +
-                "      )";
-        String query3 = "SELECT decode(sum(AMOUNT_MEGABYTES), NULL, 0, (sum(AMOUNT_MEGABYTES) / 1024)) " +
-                "AS TOTAL_GIGABYTES\n" +
-                "FROM INTERNET_USAGE\n" +
-                "WHERE (extract(MONTH FROM USAGE_DATE) = extract(MONTH FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\'))\n" +
-                "       AND extract(YEAR FROM USAGE_DATE) = extract(YEAR FROM to_date(\'" + billingPeriod + "\', " +
-                "\'yyyy-MM-dd HH24:mi:ss\')))\n" +
-                "      AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER\n" +
-                "                            FROM SUBSCRIBES\n" +
-                "                            WHERE A_ID = " + accountId + ")\n" +
-                "      )";
+        String query = "WITH PHONES AS (SELECT PHONE_NUMBER\n" +
+                "                FROM SUBSCRIBES\n" +
+                "                WHERE A_ID = ?),\n" +
+                "  PERIOD AS (SELECT trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM') AS PERIOD_START\n" +
+                "             FROM DUAL)\n" +
+                "SELECT\n" +
+                "  (SELECT count(TEXT_ID)\n" +
+                "   FROM TEXT_LOG, PERIOD\n" +
+                "   WHERE TIME_SENT >= PERIOD_START\n" +
+                "         AND TIME_SENT < add_months(PERIOD_START, 1)\n" +
+                "         AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM PHONES)\n" +
+                "              OR DEST_PHONE IN (SELECT PHONE_NUMBER FROM PHONES))\n" +
+                "  ) AS TOTAL_TEXTS,\n" +
+                "  (SELECT nvl(sum((END_TIME - START_TIME) * 60 * 24), 0)\n" +
+                "   FROM CALL_LOG, PERIOD\n" +
+                "   WHERE START_TIME >= PERIOD_START\n" +
+                "         AND START_TIME < add_months(PERIOD_START, 1)\n" +
+                "         AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM PHONES)\n" +
+                "              OR DEST_PHONE IN (SELECT PHONE_NUMBER FROM PHONES))\n" +
+                "  ) AS TOTAL_MINUTES,\n" +
+                "  (SELECT nvl(sum(AMOUNT_MEGABYTES), 0) / 1024\n" +
+                "   FROM INTERNET_USAGE, PERIOD\n" +
+                "   WHERE USAGE_DATE >= PERIOD_START\n" +
+                "         AND USAGE_DATE < add_months(PERIOD_START, 1)\n" +
+                "         AND SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM PHONES)\n" +
+                "  ) AS TOTAL_GIGABYTES,\n" +
+                "  (SELECT listagg(PHONE_NUMBER, ',') WITHIN GROUP (ORDER BY PHONE_NUMBER)\n" +
+                "   FROM PHONES\n" +
+                "  ) AS PHONE_NUMBERS\n" +
+                "FROM DUAL";
+        String rollupQuery = "SELECT\n" +
+                "  nvl(sum(TEXTS), 0) AS TOTAL_TEXTS,\n" +
+                "  nvl(sum(CALL_SECONDS), 0) / 60 AS TOTAL_MINUTES,\n" +
+                "  nvl(sum(MEGABYTES), 0) / 1024 AS TOTAL_GIGABYTES,\n" +
+                "  (SELECT listagg(PHONE_NUMBER, ',') WITHIN GROUP (ORDER BY PHONE_NUMBER)\n" +
+                "   FROM SUBSCRIBES\n" +
+                "   WHERE A_ID = ?\n" +
+                "  ) AS PHONE_NUMBERS\n" +
+                "FROM USAGE_ROLLUP\n" +
+                "WHERE A_ID = ?\n" +
+                "      AND USAGE_DAY >= trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM')\n" +
+                "      AND USAGE_DAY < add_months(trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM'), 1)";
         ArrayList<String> columnNames = ResultSetHelper.makeColumnNames("TOTAL_TEXTS", "TOTAL_MINUTES",
                 "TOTAL_GIGABYTES");
         try {
-            ResultSet resultSet1 = databaseApi.executeQuery(query1);
-            ResultSet resultSet2 = databaseApi.executeQuery(query2);
-            ResultSet resultSet3 = databaseApi.executeQuery(query3);
-            resultSet1.next();
-            resultSet2.next();
-            resultSet3.next();
+            int account = Integer.parseInt(accountId);
+            int period = RatingEngine.getPeriod(billingPeriod);
+            UsageSummaryCache usageSummaryCache = UsageSummaryCache.getInstance();
+            UsageSummaryCache.UsageSummary usageSummary = usageSummaryCache.get(account, period);
+            if (usageSummary == null) {
+                long version = usageSummaryCache.getVersion();
+                ResultSet resultSet;
+                if (UsageRollups.isEnabled()) {
+                    resultSet = databaseApi.executeQuery(rollupQuery, accountId, accountId, billingPeriod,
+                            billingPeriod);
+                } else {
+                    resultSet = databaseApi.executeQuery(query, accountId, billingPeriod);
+                }
+                resultSet.next();
+                usageSummary = new UsageSummaryCache.UsageSummary(resultSet.getInt(columnNames.get(0)),
+                        resultSet.getDouble(columnNames.get(1)), resultSet.getDouble(columnNames.get(2)));
+                String phoneNumbers = resultSet.getString("PHONE_NUMBERS");
+                String[] phones = phoneNumbers == null ? new String[0] : phoneNumbers.split(",");
+                long[] phoneList = new long[phones.length];
+                for (int i = 0; i < phones.length; i++) {
+                    phoneList[i] = Long.parseLong(phones[i]);
+                }
+                usageSummaryCache.put(account, period, version, usageSummary, phoneList);
+            }
             System.out.println("Here is the total usage information for the billing period you entered:");
             System.out.printf("%-30s %-30s %-30s\n", columnNames.get(0), columnNames.get(1), columnNames.get(2));
-            System.out.printf("%-30d %-30.2f %-30.2f\n", resultSet1.getInt(columnNames.get(0)),
-                    resultSet2.getDouble(columnNames.get(1)), resultSet3.getDouble(columnNames.get(2)));
+            System.out.printf("%-30d %-30.2f %-30.2f\n", usageSummary.getTotalTexts(),
+                    usageSummary.getTotalMinutes(), usageSummary.getTotalGigabytes());
         } catch (SQLException e) {
             System.out.println("There was an error retrieving your usage information.");
+        } finally {
+            databaseApi.logout();
         }
 
     }
@@ -225,9 +230,9 @@ public class CustomerDatabase {
                 "  NATURAL JOIN USED_BY\n" +
                 "  NATURAL JOIN PHONE_PRODUCT\n" +
                 "  NATURAL JOIN PHONE_MODEL\n" +
-                "where A_ID = " + accountId;
+                "where A_ID = ?";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, accountId);
             ArrayList<String> columnNames = ResultSetHelper.makeColumnNames(Service.PHONE_NUMBER, PhoneModel.MODEL,
                     PhoneModel.MANUFACTURER, PhoneProduct.P_STATUS);
             ArrayList<ColumnTypes> columnTypes = ResultSetHelper.makeColumnTypes(Service.PHONE_NUMBER_TYPE,
@@ -251,9 +256,8 @@ public class CustomerDatabase {
         try {
             String query = "SELECT A_ID, BILL_PERIOD, IS_PAID, P_NAME, ACCUMULATED_CHARGES\n" +
                     "FROM BILL NATURAL JOIN PLANS\n" +
-                    "WHERE A_ID = " + accountId + " AND BILL_PERIOD = to_date(\'" + billingPeriod + "\', " +
-                    "\'YYYY-MM-DD HH24:MI:SS\')";
-            ResultSet resultSet = databaseApi.executeQuery(query);
+                    "WHERE A_ID = ? AND BILL_PERIOD = to_date(?, \'YYYY-MM-DD HH24:MI:SS\')";
+            ResultSet resultSet = databaseApi.executeQuery(query, accountId, billingPeriod);
             if (ResultSetHelper.isResultSetValid(resultSet, "Sorry, no bills were found for the given billing " +
                     "period.")) {
                 System.out.printf("%-15s %-20s %-15s %-50s %-20s\n", "Account ID", "Bill Period", "Paid Yet?", "Plan",
@@ -284,10 +288,10 @@ public class CustomerDatabase {
      */
     public void changePlan(int desiredPlan, String accountId) {
         String query = "update ACCOUNT\n" +
-                "set CURRENT_PLAN = " + desiredPlan + "\n" +
-                "where A_ID = " + accountId;
+                "set CURRENT_PLAN = ?\n" +
+                "where A_ID = ?";
         try {
-            databaseApi.executeQuery(query);
+            databaseApi.executeUpdate(query, desiredPlan, accountId);
             System.out.println("Your desired plan has been changed and the effects will take place during the next " +
                     "billing cycle.");
         } catch (SQLException e) {
@@ -331,11 +335,11 @@ public class CustomerDatabase {
                 "FROM SUBSCRIBES\n" +
                 "  NATURAL JOIN ACCOUNT\n" +
                 "  JOIN PLANS ON PLANS.PLAN_ID = ACCOUNT.CURRENT_PLAN\n" +
-                "WHERE C_ID = " + customerId +
+                "WHERE C_ID = ?\n" +
                 "      AND IS_OWNER = 1\n" +
-                "      AND IS_RESIDENTIAL = " + residential;
+                "      AND IS_RESIDENTIAL = ?";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, customerId, residential);
             System.out.println();
             String errorMessage;
             if (isResidential) {
@@ -375,13 +379,13 @@ public class CustomerDatabase {
      * error performing the transaction.
      */
     public String getAddressFromCustomerId(int customerId) {
-        String query = "SELECT ADDRESS FROM CUSTOMER WHERE C_ID = " + customerId;
-        return getFirstResultFromQuery(query);
+        String query = "SELECT ADDRESS FROM CUSTOMER WHERE C_ID = ?";
+        return getFirstResultFromQuery(query, customerId);
     }
 
-    private String getFirstResultFromQuery(String query) {
+    private String getFirstResultFromQuery(String query, Object... parameters) {
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, parameters);
             resultSet.next();
             return resultSet.getString(1);
         } catch (SQLException e) {
@@ -397,8 +401,8 @@ public class CustomerDatabase {
      * customer ID doesn't exist.
      */
     public String getNameFromCustomerId(int customerId) {
-        String query = "SELECT NAME FROM CUSTOMER WHERE C_ID = " + customerId;
-        return getFirstResultFromQuery(query);
+        String query = "SELECT NAME FROM CUSTOMER WHERE C_ID = ?";
+        return getFirstResultFromQuery(query, customerId);
     }
 
     /**
@@ -413,10 +417,10 @@ public class CustomerDatabase {
      */
     public void addCustomerToAccount(String customerId, String customerName, String customerAddress, int desiredPhone,
                                      String accountId, int storeNumber) {
-        String query = "{call ADD_CUSTOMER_TO_ACCOUNT(" + customerId + ", \'" + customerName + "\', \'" +
-                customerAddress + "\', " + desiredPhone + ", " + accountId + ", " + storeNumber + ")}";
+        String query = "{call ADD_CUSTOMER_TO_ACCOUNT(?, ?, ?, ?, ?, ?)}";
         try {
-            databaseApi.executeProcedure(query);
+            databaseApi.executeProcedure(query, customerId, customerName, customerAddress, desiredPhone, accountId,
+                    storeNumber);
             System.out.println("Successfully added " + customerName + " to your account!");
         } catch (SQLException e) {
             if (e.getErrorCode() == 20000) {
@@ -444,10 +448,9 @@ public class CustomerDatabase {
      */
     public void createAccount(String name, String address, int desiredPhoneType, int storeNumber,
                               int planId, int customerId) {
-        String sql = "{call CREATE_NEW_ACCOUNT(\'" + name + "\', \'" + address + "\', " + desiredPhoneType + ", " +
-                storeNumber + ", " + planId + ", " + customerId + ")}";
+        String sql = "{call CREATE_NEW_ACCOUNT(?, ?, ?, ?, ?, ?)}";
         try {
-            databaseApi.executeProcedure(sql);
+            databaseApi.executeProcedure(sql, name, address, desiredPhoneType, storeNumber, planId, customerId);
             System.out.println("Your account has been successfully created!");
         } catch (SQLException e) {
             switch (e.getErrorCode()) {
@@ -470,24 +473,21 @@ public class CustomerDatabase {
      * @param reportType 0 if the phone was stolen, 1 if it was lost, or 2 if it was found
      */
     private void reportPhone(long meid, int reportType) {
-        String query;
+        String status;
         if (reportType == 0) {
-            query = "UPDATE PHONE_PRODUCT\n" +
-                    "SET P_STATUS = \'STOLEN\'\n" +
-                    "WHERE MEID = " + meid;
+            status = "STOLEN";
         } else if (reportType == 1) {
-            query = "UPDATE PHONE_PRODUCT\n" +
-                    "SET P_STATUS = \'LOST\'\n" +
-                    "WHERE MEID = " + meid;
+            status = "LOST";
         } else if (reportType == 2) {
-            query = "UPDATE PHONE_PRODUCT\n" +
-                    "SET P_STATUS = \'IN_USE\'\n" +
-                    "WHERE MEID = " + meid;
+            status = "IN_USE";
         } else {
             throw new IllegalArgumentException("Invalid reportType passed! Found: " + reportType);
         }
+        String query = "UPDATE PHONE_PRODUCT\n" +
+                "SET P_STATUS = ?\n" +
+                "WHERE MEID = ?";
         try {
-            databaseApi.executeQuery(query);
+            databaseApi.executeUpdate(query, status, meid);
             if (reportType == 0) {
                 System.out.println("Your phone as been successfully reported as stolen.");
                 System.out.println("We here at Jog are sorry for the inconvenience, but you will " +
@@ -539,9 +539,9 @@ public class CustomerDatabase {
                 "  NATURAL JOIN phone_model\n" +
                 "  natural join account\n" +
                 "  join plans on ACCOUNT.CURRENT_PLAN = PLANS.PLAN_ID\n" +
-                "WHERE C_ID = " + customerId + "\n" +
-                "and IS_RESIDENTIAL = " + residential;
-        return customerPhones(query);
+                "WHERE C_ID = ?\n" +
+                "and IS_RESIDENTIAL = ?";
+        return customerPhones(query, customerId, residential);
     }
 
     /**
@@ -564,13 +564,13 @@ public class CustomerDatabase {
                 "  NATURAL JOIN phone_model\n" +
                 "  natural join account\n" +
                 "  join plans on ACCOUNT.CURRENT_PLAN = PLANS.PLAN_ID\n" +
-                "WHERE C_ID = " + customerId;
-        return customerPhones(query);
+                "WHERE C_ID = ?";
+        return customerPhones(query, customerId);
     }
 
-    private Object[][] customerPhones(String query) {
+    private Object[][] customerPhones(String query, Object... parameters) {
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, parameters);
             if (ResultSetHelper.isResultSetValid(resultSet, "Sorry, you don\'t own any phones!")) {
                 List<String> columnNames = new ArrayList<>();
                 columnNames.add(PhoneProduct.MEID);
@@ -649,10 +649,9 @@ public class CustomerDatabase {
      * @param customerId The ID of the customer who is buying a phone.
      */
     public void replaceNewPhone(int phoneType, String customerId, long oldPhoneMeid, long phoneNumber, int storeNumber) {
-        String sql = "{call CUSTOMER_REPLACES_NEW_PHONE(" + phoneType + ", " + customerId + ", " + oldPhoneMeid + ", " +
-                phoneNumber + ", " + storeNumber + ")}";
+        String sql = "{call CUSTOMER_REPLACES_NEW_PHONE(?, ?, ?, ?, ?)}";
         try {
-            databaseApi.executeProcedure(sql);
+            databaseApi.executeProcedure(sql, phoneType, customerId, oldPhoneMeid, phoneNumber, storeNumber);
             System.out.println("Your phone was upgraded successfully!");
             System.out.println("Thank you for shopping with Jog!");
         } catch (SQLException e) {
@@ -699,9 +698,9 @@ public class CustomerDatabase {
     public Object[][] getPhoneModelsForSale(int storeNumber) {
         try {
             String query = "SELECT PHONE_ID, MANUFACTURER, MODEL FROM STOCKS NATURAL JOIN PHONE_MODEL WHERE QUANTITY " +
-                    "> 0 AND STORE_NUMBER = " + storeNumber + "\n" +
+                    "> 0 AND STORE_NUMBER = ?\n" +
                     "ORDER BY PHONE_ID ASC";
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, storeNumber);
 
             List<ColumnTypes> columnTypes = new ArrayList<>();
             columnTypes.add(PhoneModel.PHONE_ID_TYPE);
@@ -715,10 +714,7 @@ public class CustomerDatabase {
 
             if (!ResultSetHelper.isResultSetValid(resultSet, "We currently have no phones in stock at store number " +
                     storeNumber + ". Instead, we will ship you your phone from our warehouse.")) {
-                query = "SELECT PHONE_ID, MANUFACTURER, MODEL FROM STOCKS NATURAL JOIN PHONE_MODEL WHERE QUANTITY " +
-                        "> 0 AND STORE_NUMBER = 1\n" +
-                        "ORDER BY PHONE_ID ASC";
-                resultSet = databaseApi.executeQuery(query);
+                resultSet = databaseApi.executeQuery(query, 1);
             } else {
                 System.out.println("Here are the phones that are in stock and available for sale:");
             }
@@ -744,9 +740,9 @@ public class CustomerDatabase {
         if (name.length() > 2) {
             name = name.substring(1, name.length() - 1);
         }
-        String sql = "SELECT * FROM CUSTOMER WHERE NAME LIKE \'%" + name + "%\' ORDER BY NAME";
+        String sql = "SELECT * FROM CUSTOMER WHERE NAME LIKE ? ORDER BY NAME";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(sql);
+            ResultSet resultSet = databaseApi.executeQuery(sql, "%" + name + "%");
             if (!ResultSetHelper.isResultSetValid(resultSet, "No customers found for that name.")) {
                 return null;
             } else {
@@ -793,40 +789,13 @@ public class CustomerDatabase {
      */
     public String[][] getAvailablePlans(boolean isResidential) {
         try {
-            int residential = isResidential ? 1 : 0;
-            String query = "SELECT *\n" +
-                    "FROM PLANS\n" +
-                    "WHERE IS_RESIDENTIAL = " + residential;
-            ResultSet resultSet = databaseApi.executeQuery(query);
-            ArrayList<String> planDescriptions = new ArrayList<>();
-            ArrayList<Integer> planIds = new ArrayList<>();
-
-            while (resultSet.next()) {
-                String planName = resultSet.getString(Plans.P_NAME);
-                int hardLimit = resultSet.getInt(Plans.HARD_LIMIT);
-                int limitTexts = resultSet.getInt(Plans.LIMIT_TEXTS);
-                int limitCallsSeconds = resultSet.getInt(Plans.LIMIT_CALLS_SECONDS);
-                int limitInternetMegabytes = resultSet.getInt(Plans.LIMIT_INTERNET_MB);
-                double rateTexts = resultSet.getDouble(Plans.RATE_TEXTS);
-                double rateCallsSeconds = resultSet.getDouble(Plans.RATE_CALLS_SECONDS);
-                double rateInternet = resultSet.getDouble(Plans.RATE_INTERNET_MB);
-                double overdraftRateTexts = resultSet.getDouble(Plans.OVERDRAFT_RATE_TEXTS);
-                double overdraftRateCalls = resultSet.getDouble(Plans.OVERDRAFT_RATE_CALLS_SECONDS);
-                double overdraftRateInternet = resultSet.getDouble(Plans.OVERDRAFT_RATE_INTERNET_MB);
-                double baseRate = resultSet.getDouble(Plans.BASE_RATE);
-                int planId = resultSet.getInt(Plans.PLAN_ID);
-
-                PlanParser planParser = new PlanParser(planName, hardLimit, limitTexts, limitCallsSeconds / 60,
-                        limitInternetMegabytes / 1024, rateTexts, rateCallsSeconds * 60, rateInternet * 1024,
-                        overdraftRateTexts, overdraftRateCalls * 60, overdraftRateInternet * 1024, baseRate);
-                planIds.add(planId);
-                planDescriptions.add(planParser.parse());
-            }
-
-            String[][] planInformation = new String[planDescriptions.size()][3];
+            PlanCatalog planCatalog = PlanCatalog.get(databaseApi);
+            List<RatePlan> ratePlans = planCatalog.getPlans(isResidential);
+            String[][] planInformation = new String[ratePlans.size()][3];
             for (int i = 0; i < planInformation.length; i++) {
-                planInformation[i][0] = planIds.get(i) + "";
-                planInformation[i][1] = planDescriptions.get(i);
+                int planId = ratePlans.get(i).getPlanId();
+                planInformation[i][0] = planId + "";
+                planInformation[i][1] = planCatalog.getDescription(planId);
             }
             return planInformation;
         } catch (SQLException e) {
@@ -853,10 +822,10 @@ public class CustomerDatabase {
         String query = "SELECT " + columnNames.get(0) + ", " + columnNames.get(1) + ", " + columnNames.get(2) +
                 ", " + columnNames.get(3) + " " +
                 "FROM BILL NATURAL JOIN PLANS " +
-                "WHERE A_ID = " + accountId + " " +
+                "WHERE A_ID = ? " +
                 "AND IS_PAID = 0";
         try {
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, accountId);
             ArrayList<ColumnTypes> columnTypes = new ArrayList<>();
             columnTypes.add(Bill.BILL_ID_TYPE);
             columnTypes.add(Bill.BILL_PERIOD_TYPE);
@@ -880,16 +849,39 @@ public class CustomerDatabase {
     }
 
     /**
-     * Pays a customer's unpaid bill.
+     * Pays a customer's unpaid bill and moves its charges to the paid ones of the {@link FinancialCube}.
      *
      * @param billId The ID of the bill that should be paid.
      */
     public void payBill(int billId) {
-        String query = "update bill set is_paid = 1 where bill_id = " + billId;
+        String lockQuery = "SELECT\n" +
+                "  A_ID,\n" +
+                "  to_char(BILL_PERIOD, 'yyyy-MM-dd HH24:mi:ss') AS BILL_PERIOD,\n" +
+                "  IS_PAID,\n" +
+                "  ACCUMULATED_CHARGES\n" +
+                "FROM BILL\n" +
+                "WHERE BILL_ID = ?\n" +
+                "FOR UPDATE";
+        String query = "update bill set is_paid = 1 where bill_id = ?";
         try {
-            databaseApi.executeQuery(query);
+            databaseApi.beginTransaction();
+            ResultSet resultSet = databaseApi.executeQuery(lockQuery, billId);
+            boolean isUnpaid = resultSet.next() && resultSet.getInt(Bill.IS_PAID) == 0;
+            int accountId = isUnpaid ? resultSet.getInt(Bill.A_ID) : 0;
+            String billingPeriod = isUnpaid ? resultSet.getString(Bill.BILL_PERIOD) : null;
+            double charges = isUnpaid ? resultSet.getDouble(Bill.ACCUMULATED_CHARGES) : 0;
+            databaseApi.executeUpdate(query, billId);
+            databaseApi.commit();
+            if (isUnpaid && accountId != 0 && billingPeriod != null) {
+                FinancialCube.getInstance().payBill(billId, accountId, RatingEngine.getPeriod(billingPeriod),
+                        charges);
+            }
             System.out.println("You successfully paid your bill!");
         } catch (SQLException e) {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
             e.printStackTrace();
             System.out.println("There was an error paying your bill!");
         } finally {
@@ -1,9 +1,12 @@
 package database;
 
+import java.sql.CallableStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by coreycaplan on 4/20/16.
@@ -12,7 +15,39 @@ import java.util.TreeMap;
  */
 public class CustomerUsageDatabase extends CustomerDatabase {
 
+    private static final String SEND_TEXT_MESSAGE = "{call SEND_TEXT_MESSAGE(?, ?, " +
+            "to_date(?, 'yyyy-MM-dd HH24:mi:ss'), to_date(?, 'yyyy-MM-dd HH24:mi:ss'), ?)}";
+    private static final String RECEIVE_TEXT_MESSAGE = "{call RECEIVE_TEXT_MESSAGE(?, ?, " +
+            "to_date(?, 'yyyy-MM-dd HH24:mi:ss'), to_date(?, 'yyyy-MM-dd HH24:mi:ss'), ?)}";
+    private static final String SEND_PHONE_CALL = "{call SEND_PHONE_CALL(?, ?, " +
+            "to_date(?, 'yyyy-MM-dd HH24:mi:ss'), to_date(?, 'yyyy-MM-dd HH24:mi:ss'))}";
+    private static final String USE_INTERNET = "{call USE_INTERNET(?, to_date(?, 'yyyy-MM-dd HH24:mi:ss'), ?)}";
+
+    /**
+     * The number of usage events that callers should hand to {@link #executeUsageBatch(List)} at a time. May be tuned
+     * with the <i>jog.usage.batchSize</i> system property.
+     */
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("jog.usage.batchSize", 500));
+
+    /**
+     * The number of procedure calls in an anonymous block. Every block has this many calls and skips the ones past the
+     * number of events that were bound, so the block is parsed once per connection.
+     */
+    private static final int BLOCK_CALLS = Math.min(BATCH_SIZE, 100);
+
+    /**
+     * The number of parameters that each call of {@link #BLOCK} takes before its out parameter: the event's type and
+     * its source phone, destination phone, start time, end time and amount.
+     */
+    private static final int BLOCK_PARAMETERS = 6;
+
+    private static final String BLOCK = getBlock();
+
     private DatabaseApi databaseApi;
+    private final UsageSummaryCache usageSummaryCache = UsageSummaryCache.getInstance();
+    private final FinancialCube financialCube = FinancialCube.getInstance();
+    private final UsageRollups usageRollups = new UsageRollups();
+    private volatile HardLimitPrecheck hardLimitPrecheck;
 
     public CustomerUsageDatabase() {
         databaseApi = DatabaseApi.getInstance();
@@ -60,13 +95,8 @@ public class CustomerUsageDatabase extends CustomerDatabase {
     public UsageResult receiveTextMessage(long sourcePhone, long destinationPhone, String timeSent, String timeReceived,
                                           int bytes) {
         try {
-            String procedure = "{call RECEIVE_TEXT_MESSAGE(" +
-                    sourcePhone + ", " +
-                    destinationPhone + ", " +
-                    "to_date(\'" + timeSent + "\', \'yyyy-MM-dd HH24:mi:ss\'), " +
-                    "to_date(\'" + timeReceived + "\', \'yyyy-MM-dd HH24:mi:ss\'), "
-                    + bytes + ")}";
-            databaseApi.executeProcedure(procedure);
+            recordUsage(UsageEvent.text(sourcePhone, destinationPhone, timeSent, timeReceived, bytes),
+                    RECEIVE_TEXT_MESSAGE, sourcePhone, destinationPhone, timeSent, timeReceived, bytes);
             System.out.println("Text received successfully!");
             return UsageResult.SUCCESS;
         } catch (SQLException e) {
@@ -87,13 +117,8 @@ public class CustomerUsageDatabase extends CustomerDatabase {
     public UsageResult sendTextMessage(long sourcePhone, long destinationPhone, String timeSent, String timeReceived,
                                        int bytes) {
         try {
-            String procedure = "{call SEND_TEXT_MESSAGE(" +
-                    sourcePhone + ", " +
-                    destinationPhone + ", " +
-                    "to_date(\'" + timeSent + "\', \'yyyy-MM-dd HH24:mi:ss\'), " +
-                    "to_date(\'" + timeReceived + "\', \'yyyy-MM-dd HH24:mi:ss\'), "
-                    + bytes + ")}";
-            databaseApi.executeProcedure(procedure);
+            recordUsage(UsageEvent.text(sourcePhone, destinationPhone, timeSent, timeReceived, bytes),
+                    SEND_TEXT_MESSAGE, sourcePhone, destinationPhone, timeSent, timeReceived, bytes);
             System.out.println("Text sent successfully!");
             return UsageResult.SUCCESS;
         } catch (SQLException e) {
@@ -121,13 +146,8 @@ public class CustomerUsageDatabase extends CustomerDatabase {
      */
     public UsageResult sendPhoneCall(long sourcePhone, long destinationPhone, String startTime, String endTime) {
         try {
-            String procedure = "{call SEND_PHONE_CALL(" +
-                    sourcePhone + ", " +
-                    destinationPhone + ", " +
-                    "to_date(\'" + startTime + "\', \'yyyy-MM-dd HH24:mi:ss\'), " +
-                    "to_date(\'" + endTime + "\', \'yyyy-MM-dd HH24:mi:ss\')" +
-                    ")}";
-            databaseApi.executeProcedure(procedure);
+            recordUsage(UsageEvent.call(sourcePhone, destinationPhone, startTime, endTime), SEND_PHONE_CALL,
+                    sourcePhone, destinationPhone, startTime, endTime);
             System.out.println("Phone call was successful!");
             return UsageResult.SUCCESS;
         } catch (SQLException e) {
@@ -154,11 +174,8 @@ public class CustomerUsageDatabase extends CustomerDatabase {
      */
     public UsageResult useInternet(long sourcePhone, String usageDate, int megabyteAmount) {
         try {
-            String procedure = "{call USE_INTERNET(" +
-                    sourcePhone + ", " +
-                    "to_date(\'" + usageDate + "\', \'yyyy-MM-dd HH24:mi:ss\'), " +
-                    megabyteAmount + ")}";
-            databaseApi.executeProcedure(procedure);
+            recordUsage(UsageEvent.internet(sourcePhone, usageDate, megabyteAmount), USE_INTERNET, sourcePhone,
+                    usageDate, megabyteAmount);
             System.out.println("Internet usage successful!");
             return UsageResult.SUCCESS;
         } catch (SQLException e) {
@@ -174,26 +191,313 @@ public class CustomerUsageDatabase extends CustomerDatabase {
         }
     }
 
+    /**
+     * @return The number of usage events that should be handed to {@link #executeUsageBatch(List)} at a time.
+     */
+    public static int getBatchSize() {
+        return BATCH_SIZE;
+    }
+
+    /**
+     * Sends several usage events to the database in anonymous PL/SQL blocks. The driver sends a batch of procedure
+     * calls one call per round trip, so the events are instead bound into blocks of up to {@link #BLOCK_CALLS} calls,
+     * whatever their types. Each call of a block runs behind its own savepoint and reports its SQLCODE through an out
+     * parameter, so an event that the database rejects is rolled back on its own while the others are kept. The events
+     * are executed in the order they're given and the whole batch is committed once, after its last block.
+     *
+     * @param events The text messages, phone calls and internet usages that should be recorded.
+     * @return The result of each event, at the same index as the event in {@code events}. Hard limit rejections are
+     * reported as {@link UsageResult#NO_SERVICE}, including the events that were refused by the hard limit precheck.
+     * @throws UsageOutageException If a block or the commit failed, such as when the database can't be reached. None
+     *                              of the events that were sent to the database are committed.
+     * @see #enableHardLimitPrecheck(PhoneAccountIndex)
+     */
+    public UsageResult[] executeUsageBatch(List<UsageEvent> events) throws UsageOutageException {
+        HardLimitPrecheck precheck = hardLimitPrecheck;
+        if (precheck == null) {
+            return executeUsageEvents(events);
+        }
+
+        UsageResult[] results = new UsageResult[events.size()];
+        List<UsageEvent> sentEvents = new ArrayList<>(events.size());
+        int[] sentIndexes = new int[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            if (precheck.isCertainToBeRejected(events.get(i))) {
+                results[i] = UsageResult.NO_SERVICE;
+            } else {
+                sentIndexes[sentEvents.size()] = i;
+                sentEvents.add(events.get(i));
+            }
+        }
+        if (sentEvents.isEmpty()) {
+            return results;
+        }
+
+        long startNanos = System.nanoTime();
+        UsageResult[] sentResults;
+        UsageOutageException outage = null;
+        try {
+            sentResults = executeUsageEvents(sentEvents);
+        } catch (UsageOutageException e) {
+            sentResults = e.getResults();
+            outage = e;
+        }
+        precheck.recordResults(sentEvents, sentResults, startNanos, System.nanoTime());
+        for (int i = 0; i < sentResults.length; i++) {
+            results[sentIndexes[i]] = sentResults[i];
+        }
+        if (outage != null) {
+            throw new UsageOutageException((SQLException) outage.getCause(), results);
+        }
+        return results;
+    }
+
+    /**
+     * Lets {@link #executeUsageBatch(List)} refuse the usage of accounts that are on a hard limit plan and have
+     * already used up their limit for the month without asking the database. Only the accounts that the database has
+     * already rejected usage for are tracked, so the precheck costs nothing until an account reaches its limit.
+     *
+     * @param phoneAccountIndex The accounts that own each phone.
+     */
+    public void enableHardLimitPrecheck(PhoneAccountIndex phoneAccountIndex) {
+        hardLimitPrecheck = new HardLimitPrecheck(databaseApi, phoneAccountIndex);
+    }
+
+    private UsageResult[] executeUsageEvents(List<UsageEvent> events) throws UsageOutageException {
+        UsageResult[] results = new UsageResult[events.size()];
+        try {
+            databaseApi.beginTransaction();
+            UsageResult[] executedResults = new UsageResult[events.size()];
+            List<UsageEvent> recordedEvents = new ArrayList<>(events.size());
+            for (int start = 0; start < events.size(); start += BLOCK_CALLS) {
+                executeBlock(events, start, Math.min(events.size(), start + BLOCK_CALLS), executedResults,
+                        recordedEvents);
+            }
+            commitUsage(recordedEvents);
+            System.arraycopy(executedResults, 0, results, 0, results.length);
+        } catch (SQLException e) {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
+            throw new UsageOutageException(e, results);
+        } finally {
+            databaseApi.logout();
+            usageSummaryCache.invalidate(events, results);
+            financialCube.addUsage(events, results);
+        }
+        return results;
+    }
+
+    /**
+     * Executes the events in the range [start, end) as one anonymous block without committing them, sets their
+     * results and adds the ones that succeeded to {@code recordedEvents}.
+     */
+    private void executeBlock(List<UsageEvent> events, int start, int end, UsageResult[] results,
+                              List<UsageEvent> recordedEvents) throws SQLException {
+        CallableStatement statement = databaseApi.prepareCall(BLOCK);
+        statement.clearParameters();
+        statement.setInt(1, end - start);
+        for (int call = 0; call < BLOCK_CALLS; call++) {
+            int index = 2 + call * (BLOCK_PARAMETERS + 1);
+            if (start + call < end) {
+                bindUsageEvent(statement, index, events.get(start + call));
+            } else {
+                for (int i = 0; i < BLOCK_PARAMETERS; i++) {
+                    statement.setNull(index + i, Types.VARCHAR);
+                }
+            }
+            statement.registerOutParameter(index + BLOCK_PARAMETERS, Types.INTEGER);
+        }
+        statement.execute();
+
+        for (int call = 0; call < end - start; call++) {
+            int errorCode = -statement.getInt(2 + call * (BLOCK_PARAMETERS + 1) + BLOCK_PARAMETERS);
+            if (errorCode == 0) {
+                results[start + call] = UsageResult.SUCCESS;
+                recordedEvents.add(events.get(start + call));
+            } else {
+                results[start + call] = errorCode == 20000 ? UsageResult.NO_SERVICE : UsageResult.UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Adds the usage that was recorded in the current transaction to the rollups, if they're enabled, and commits it.
+     */
+    private void commitUsage(List<UsageEvent> recordedEvents) throws SQLException {
+        if (UsageRollups.isEnabled()) {
+            usageRollups.addUsage(recordedEvents);
+        }
+        databaseApi.commit();
+    }
+
+    /**
+     * Records a single usage with its procedure, along with its rollups if they're enabled.
+     */
+    private void recordUsage(UsageEvent event, String procedure, Object... parameters) throws SQLException {
+        if (UsageRollups.isEnabled()) {
+            try {
+                databaseApi.beginTransaction();
+                databaseApi.executeProcedure(procedure, parameters);
+                commitUsage(Collections.singletonList(event));
+            } catch (SQLException e) {
+                try {
+                    databaseApi.rollback();
+                } catch (SQLException ignored) {
+                }
+                throw e;
+            }
+        } else {
+            databaseApi.executeProcedure(procedure, parameters);
+        }
+        usageSummaryCache.invalidate(event);
+        financialCube.addUsage(event);
+    }
+
+    private static String getProcedure(UsageEvent.Type type) {
+        switch (type) {
+            case TEXT:
+                return SEND_TEXT_MESSAGE;
+            case CALL:
+                return SEND_PHONE_CALL;
+            case INTERNET:
+                return USE_INTERNET;
+            default:
+                throw new IllegalArgumentException("Invalid usage type, found: " + type);
+        }
+    }
+
+    /**
+     * @return The anonymous block that records up to {@link #BLOCK_CALLS} events of any type. It takes the number of
+     * events, followed by the {@link #BLOCK_PARAMETERS} parameters of each call and an out parameter for its SQLCODE,
+     * which is 0 on success. Each call picks the procedure of its event by the ordinal of the event's type.
+     */
+    private static String getBlock() {
+        StringBuilder procedures = new StringBuilder();
+        for (UsageEvent.Type type : UsageEvent.Type.values()) {
+            procedures.append("        WHEN ").append(type.ordinal()).append(" THEN ").append(getCall(type))
+                    .append(";\n");
+        }
+        StringBuilder builder = new StringBuilder("DECLARE\n" +
+                "  call_count PLS_INTEGER := ?;\n" +
+                "  call_code PLS_INTEGER;\n" +
+                "  call_type PLS_INTEGER;\n" +
+                "  source_phone NUMBER;\n" +
+                "  destination_phone NUMBER;\n" +
+                "  start_time VARCHAR2(4000);\n" +
+                "  end_time VARCHAR2(4000);\n" +
+                "  amount NUMBER;\n" +
+                "BEGIN\n");
+        for (int i = 1; i <= BLOCK_CALLS; i++) {
+            builder.append("  call_code := NULL;\n" +
+                    "  IF call_count >= ").append(i).append(" THEN\n" +
+                    "    BEGIN\n" +
+                    "      SAVEPOINT jog_usage;\n" +
+                    "      call_type := ?;\n" +
+                    "      source_phone := ?;\n" +
+                    "      destination_phone := ?;\n" +
+                    "      start_time := ?;\n" +
+                    "      end_time := ?;\n" +
+                    "      amount := ?;\n" +
+                    "      CASE call_type\n").append(procedures).append("      END CASE;\n" +
+                    "      call_code := 0;\n" +
+                    "    EXCEPTION\n" +
+                    "      WHEN OTHERS THEN\n" +
+                    "        ROLLBACK TO jog_usage;\n" +
+                    "        call_code := SQLCODE;\n" +
+                    "    END;\n" +
+                    "  END IF;\n" +
+                    "  ? := call_code;\n");
+        }
+        return builder.append("END;").toString();
+    }
+
+    /**
+     * @return The procedure call of a type, with its parameters replaced by the block's variables for them.
+     */
+    private static String getCall(UsageEvent.Type type) {
+        String procedure = getProcedure(type);
+        String call = procedure.substring("{call ".length(), procedure.length() - "}".length());
+        String[] variables;
+        switch (type) {
+            case TEXT:
+                variables = new String[]{"source_phone", "destination_phone", "start_time", "end_time", "amount"};
+                break;
+            case CALL:
+                variables = new String[]{"source_phone", "destination_phone", "start_time", "end_time"};
+                break;
+            default:
+                variables = new String[]{"source_phone", "start_time", "amount"};
+                break;
+        }
+        for (String variable : variables) {
+            int index = call.indexOf('?');
+            call = call.substring(0, index) + variable + call.substring(index + 1);
+        }
+        return call;
+    }
+
+    /**
+     * Binds an event's type and its {@link #BLOCK_PARAMETERS} parameters, starting at the given parameter index.
+     */
+    private static void bindUsageEvent(CallableStatement statement, int index, UsageEvent event) throws SQLException {
+        statement.setInt(index, event.getType().ordinal());
+        statement.setLong(index + 1, event.getSourcePhone());
+        statement.setLong(index + 2, event.getDestinationPhone());
+        statement.setString(index + 3, event.getStartTime());
+        if (event.getEndTime() == null) {
+            statement.setNull(index + 4, Types.VARCHAR);
+        } else {
+            statement.setString(index + 4, event.getEndTime());
+        }
+        statement.setInt(index + 5, event.getAmount());
+    }
+
     /**
      * Gets all of the phone numbers that are in-service and on an account.
      *
-     * @return A {@link TreeMap} that contains all of the phone numbers tied to an account.
+     * @return A {@link PhoneAccountIndex} that contains all of the phone numbers tied to an account.
      */
-    public TreeMap<Long, Integer> getAllPhoneNumbersWithAccounts() {
-        ArrayList<String> columnNames = ResultSetHelper.makeColumnNames("PHONE_NUMBER", "A_ID");
+    public PhoneAccountIndex getAllPhoneNumbersWithAccounts() {
         String query = "SELECT\n" +
                 "  A_ID,\n" +
                 "  PHONE_NUMBER\n" +
                 "FROM SUBSCRIBES";
-        TreeMap<Long, Integer> treeMap = new TreeMap<>();
         try {
             ResultSet resultSet = databaseApi.executeQuery(query);
-            while (resultSet.next()) {
-                treeMap.put(resultSet.getLong(columnNames.get((0))), resultSet.getInt(columnNames.get(1)));
-            }
-        } catch (SQLException ignored) {
+            return PhoneAccountIndex.load(resultSet, "PHONE_NUMBER", "A_ID");
+        } catch (SQLException e) {
+            return PhoneAccountIndex.empty();
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    /**
+     * Thrown by {@link #executeUsageBatch(List)} when a block couldn't be executed or the batch couldn't be committed,
+     * which leaves it unknown whether the database can still be reached. Unlike the events that the database rejects,
+     * none of the events that were sent with the batch were recorded and they should all be sent again.
+     */
+    public static final class UsageOutageException extends SQLException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final UsageResult[] results;
+
+        private UsageOutageException(SQLException cause, UsageResult[] results) {
+            super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), cause);
+            this.results = results;
         }
-        return treeMap;
+
+        /**
+         * @return The result of each event, at the same index as the event, or <b>null</b> for the events that
+         * weren't committed.
+         */
+        public UsageResult[] getResults() {
+            return results;
+        }
+
     }
 
 }
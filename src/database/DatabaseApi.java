@@ -4,15 +4,21 @@ import java.sql.*;
 
 /**
  * A class used to establish Database connections and retrieve information
+ * <p></p>
+ * Connections are borrowed from a {@link ConnectionPool} the first time a thread executes a query and stay bound to
+ * that thread until it calls {@link #logout()}, which returns the connection to the pool instead of closing it.
  */
 final class DatabaseApi {
 
+    private static final String CSE_URL = "jdbc:oracle:thin:@edgar1.cse.lehigh.edu:1521:cse241";
+
     private static DatabaseApi databaseApi;
 
-    private Database database;
+    private final ConnectionPool connectionPool;
+    private final ThreadLocal<PooledConnection> borrowedConnection = new ThreadLocal<>();
 
-    private DatabaseApi(String username, String password) {
-        database = new Database(username, password);
+    private DatabaseApi(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
     }
 
     /**
@@ -20,18 +26,40 @@ final class DatabaseApi {
      *
      * @param username The username necessary to login to <i>edgar1</i> (the CSE 341 sunlab machine).
      * @param password The password neceesary to login the corresponding username on <i>edgar1</i>.
-     * @return An instance of {@link DatabaseApi}.
-     * @throws IllegalStateException If this method gets called a second time.
+     * @return True if the connection pool could be started with the given credentials or false if it could not.
      * @see #getInstance()
      */
     static boolean initializeInstance(String username, String password) {
-        databaseApi = new DatabaseApi(username, password);
-        if (databaseApi.connectToDatabase()) {
-            databaseApi.logout();
+        return initializeInstance(CSE_URL, username, password);
+    }
+
+    /**
+     * Initializes the {@link DatabaseApi} class with a connection pool for the given database.
+     *
+     * @param url      The JDBC URL of the database, such as <i>jdbc:oracle:thin:@host:1521:sid</i>.
+     * @param username The username for the database.
+     * @param password The password for the given username.
+     * @return True if the connection pool could be started with the given settings or false if it could not.
+     * @see #initializeInstance(String, String)
+     */
+    static boolean initializeInstance(String url, String username, String password) {
+        ConnectionPool connectionPool;
+        try {
+            connectionPool = new ConnectionPool(url, username, password);
+        } catch (SQLException e) {
+            return false;
+        }
+        DatabaseApi candidate = new DatabaseApi(connectionPool);
+        if (candidate.connectToDatabase()) {
+            candidate.logout();
+            if (databaseApi != null) {
+                databaseApi.shutdown();
+            }
+            databaseApi = candidate;
             return true;
         } else {
-            databaseApi.logout();
-            databaseApi = null;
+            candidate.logout();
+            candidate.shutdown();
             return false;
         }
     }
@@ -48,92 +76,180 @@ final class DatabaseApi {
     }
 
     /**
-     * Attempts to establish a connection with the database.
+     * Attempts to borrow a connection from the pool for the current thread.
      *
      * @return True if the connection is successful or false if it was not.
      */
     private boolean connectToDatabase() {
-        return database.establishConnection();
+        try {
+            getConnection();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
     }
 
     /**
-     * Attempts to execute a query in the database.
+     * Attempts to execute a query in the database. The statement is taken from the connection's statement cache, so
+     * queries that only differ by their bind variables are parsed once.
      *
-     * @param query The query that should be executed.
-     * @return Always true.
+     * @param query      The query that should be executed, using <i>?</i> for every bind variable.
+     * @param parameters The values that should be bound to the query, in order.
+     * @return The results of the query.
      * @throws SQLException
      */
-    @SuppressWarnings("ConstantConditions")
-    ResultSet executeQuery(String query) throws SQLException {
-        Statement statement = login();
-        return statement.executeQuery(query);
+    ResultSet executeQuery(String query, Object... parameters) throws SQLException {
+        PooledConnection pooledConnection = getConnection();
+        PreparedStatement statement = pooledConnection.prepareStatement(query);
+        bindParameters(statement, parameters);
+        return pooledConnection.trackResultSet(statement.executeQuery());
+    }
+
+    /**
+     * Attempts to execute an insert, update or delete in the database.
+     *
+     * @param sql        The statement that should be executed, using <i>?</i> for every bind variable.
+     * @param parameters The values that should be bound to the statement, in order.
+     * @return The number of rows that were affected.
+     * @throws SQLException
+     */
+    int executeUpdate(String sql, Object... parameters) throws SQLException {
+        PreparedStatement statement = getConnection().prepareStatement(sql);
+        bindParameters(statement, parameters);
+        return statement.executeUpdate();
     }
 
     /**
      * Attempts to execute a stored procedure in the database.
      *
-     * @param procedure The procedure that should be executed, including its parameters.
+     * @param procedure  The procedure that should be executed, using <i>?</i> for every bind variable.
+     * @param parameters The values that should be bound to the procedure's parameters, in order.
      * @return Always false.
      * @throws SQLException
      */
-    boolean executeProcedure(String procedure) throws SQLException {
-        database.establishConnection();
-        CallableStatement statement = database.databaseConnection.prepareCall(procedure);
+    boolean executeProcedure(String procedure, Object... parameters) throws SQLException {
+        CallableStatement statement = getConnection().prepareCall(procedure);
+        bindParameters(statement, parameters);
         return statement.execute();
     }
 
+    /**
+     * Retrieves a cached prepared statement for the current thread's connection, so the caller can batch several
+     * executions of the same statement. The statement must not be closed by the caller.
+     *
+     * @param sql The statement that should be prepared, using <i>?</i> for every bind variable.
+     * @return The cached {@link PreparedStatement}.
+     * @throws SQLException
+     */
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        return getConnection().prepareStatement(sql);
+    }
+
+    /**
+     * Retrieves a cached callable statement for the current thread's connection, so the caller can batch several
+     * executions of the same procedure. The statement must not be closed by the caller.
+     *
+     * @param procedure The procedure that should be prepared, using <i>?</i> for every bind variable.
+     * @return The cached {@link CallableStatement}.
+     * @throws SQLException
+     */
+    CallableStatement prepareCall(String procedure) throws SQLException {
+        return getConnection().prepareCall(procedure);
+    }
+
+    /**
+     * Turns off auto-commit on the current thread's connection, so several statements can be committed together.
+     * The connection is put back into auto-commit mode when it is returned to the pool with {@link #logout()}.
+     *
+     * @throws SQLException
+     */
+    void beginTransaction() throws SQLException {
+        getConnection().getConnection().setAutoCommit(false);
+    }
+
+    /**
+     * Commits the current thread's open transaction.
+     *
+     * @throws SQLException
+     */
+    void commit() throws SQLException {
+        getConnection().getConnection().commit();
+    }
+
+    /**
+     * Rolls back the current thread's open transaction.
+     *
+     * @throws SQLException
+     */
+    void rollback() throws SQLException {
+        getConnection().getConnection().rollback();
+    }
+
     Statement login() {
-        database.establishConnection();
         try {
-            return database.databaseConnection.createStatement();
+            return getConnection().createStatement();
         } catch (SQLException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Returns the current thread's connection to the pool, closing any statements and result sets that were opened
+     * with it. Calling this method when the thread holds no connection does nothing.
+     */
     void logout() {
-        if (database.databaseConnection == null) {
+        PooledConnection pooledConnection = borrowedConnection.get();
+        if (pooledConnection == null) {
             return;
         }
-        try {
-            database.databaseConnection.close();
-            database.databaseConnection = null;
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        borrowedConnection.remove();
+        connectionPool.release(pooledConnection);
     }
 
     /**
-     * A static inner class to protect the fragility of database access and reduce the ability of ouutside classes
-     * from having direct access to this class's content.
+     * Closes every pooled connection. Should only be called when the program is about to exit.
      */
-    private static class Database {
-
-        private static final String CSE_URL = "jdbc:oracle:thin:@edgar1.cse.lehigh.edu:1521:cse241";
-
-        private final String username;
-        private final String password;
-
-        private Connection databaseConnection;
+    void shutdown() {
+        logout();
+        connectionPool.shutdown();
+    }
 
-        private Database(String username, String password) {
-            this.username = username;
-            this.password = password;
-        }
+    /**
+     * @return A human readable summary of the connection pool's size and borrow-wait metrics.
+     */
+    String getPoolStatistics() {
+        return connectionPool.getStatistics();
+    }
 
-        private boolean establishConnection() {
-            try {
-                Class.forName("oracle.jdbc.driver.OracleDriver");
-                databaseConnection = DriverManager.getConnection(CSE_URL, username, password);
-                return true;
-            } catch (SQLException e) {
-                return false;
-            } catch (ClassNotFoundException e) {
-                return false;
+    /**
+     * Binds the given values to a statement's parameters, starting with the first parameter.
+     *
+     * @param statement  The statement whose parameters should be set.
+     * @param parameters The values to bind. A <b>null</b> value is bound as a SQL NULL.
+     * @throws SQLException If a value couldn't be bound.
+     */
+    static void bindParameters(PreparedStatement statement, Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i] == null) {
+                statement.setNull(i + 1, Types.VARCHAR);
+            } else {
+                statement.setObject(i + 1, parameters[i]);
             }
         }
+    }
 
+    /**
+     * @return The connection bound to the current thread, borrowing one from the pool if necessary.
+     * @throws SQLException If a connection couldn't be borrowed.
+     */
+    private PooledConnection getConnection() throws SQLException {
+        PooledConnection pooledConnection = borrowedConnection.get();
+        if (pooledConnection == null) {
+            pooledConnection = connectionPool.borrow();
+            borrowedConnection.set(pooledConnection);
+        }
+        return pooledConnection;
     }
 
-}
\ No newline at end of file
+}
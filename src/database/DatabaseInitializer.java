@@ -18,9 +18,34 @@ public class DatabaseInitializer {
         return DatabaseApi.initializeInstance(username, password);
     }
 
+    /**
+     * Logs into the given database without printing anything, for programs that run without a console.
+     *
+     * @param url      The JDBC URL of the database, or <b>null</b> for Edgar1.
+     * @param username The user's username.
+     * @param password The user's password.
+     * @return True if the login was successful.
+     */
+    public static boolean login(String url, String username, String password) {
+        if (url == null) {
+            return DatabaseApi.initializeInstance(username, password);
+        }
+        return DatabaseApi.initializeInstance(url, username, password);
+    }
+
+    /**
+     * Logs the user out of Edgar1, closing every pooled connection.
+     */
     public static void logout() {
         DatabaseApi databaseApi = DatabaseApi.getInstance();
-        databaseApi.logout();
+        databaseApi.shutdown();
+    }
+
+    /**
+     * @return A human readable summary of the connection pool's size and how long callers waited for connections.
+     */
+    public static String getConnectionPoolStatistics() {
+        return DatabaseApi.getInstance().getPoolStatistics();
     }
 
 }
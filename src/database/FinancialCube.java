@@ -0,0 +1,585 @@
+package database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory copy of the charges of every bill, summed up by account and billing period and split into paid and
+ * unpaid, so the CEO's breakdowns are sliced and ranked in memory instead of grouping all of BILL for every request.
+ * The cells are ordered by account and then by period, so a range of accounts is read without looking at the others.
+ * <p></p>
+ * The cube is built by the first request and patched as this program pays bills. The usage procedures create the
+ * bills and add their charges, so the bills of the phones that this program records usage for are marked, and the
+ * next request reads their cells again before it reads the cube. Charges that other programs add can't be seen, so
+ * the cube is rebuilt once it's older than <i>jog.cube.refreshSeconds</i> seconds, which defaults to five minutes.
+ * The request that finds it too old rebuilds it and the others wait for the new one. If
+ * <i>jog.cube.backgroundRefresh</i> is set to true, the cube is rebuilt in the background instead, and the requests
+ * keep reading the old one until it's done.
+ * <p></p>
+ * The bills are read in a read-only transaction. Patches that land while the cube is rebuilt or its cells are read
+ * again are replayed onto the new cells, unless the same transaction finds that their bills were already paid when
+ * it started, since those payments are already in the new cells. Bills without an account are left out.
+ * <p></p>
+ * The unpaid bills are also indexed by billing period with a {@link PastDueIndex}, which is rebuilt, read again and
+ * patched along with the cells.
+ */
+final class FinancialCube {
+
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(Math.max(1,
+            Long.getLong("jog.cube.refreshSeconds", 300)));
+
+    private static final boolean BACKGROUND_REFRESH = Boolean.getBoolean("jog.cube.backgroundRefresh");
+
+    /**
+     * Makes every query of the rebuild see the bills as they were when it started.
+     */
+    private static final String READ_ONLY = "SET TRANSACTION READ ONLY";
+
+    private static final String CUBE_QUERY = "SELECT\n" +
+            "  A_ID,\n" +
+            "  to_char(BILL_PERIOD, 'yyyy-MM-dd HH24:mi:ss') AS BILL_PERIOD,\n" +
+            "  IS_PAID,\n" +
+            "  count(*) AS BILLS,\n" +
+            "  nvl(sum(ACCUMULATED_CHARGES), 0) AS ACCUMULATED_CHARGES\n" +
+            "FROM BILL\n" +
+            "WHERE A_ID IS NOT NULL AND BILL_PERIOD IS NOT NULL\n" +
+            "GROUP BY A_ID, BILL_PERIOD, IS_PAID";
+
+    /**
+     * The number of rows the driver fetches per round trip while the cube is built.
+     */
+    private static final int CUBE_FETCH_SIZE = 5000;
+
+    /**
+     * Bounded by the 1000 expressions an Oracle IN list may hold.
+     */
+    private static final int IN_LIST_SIZE = 1000;
+
+    /**
+     * The cells of the accounts that own some phones in one billing period.
+     */
+    private static final String USED_CELLS_QUERY = "SELECT\n" +
+            "  A_ID,\n" +
+            "  to_char(BILL_PERIOD, 'yyyy-MM-dd HH24:mi:ss') AS BILL_PERIOD,\n" +
+            "  IS_PAID,\n" +
+            "  count(*) AS BILLS,\n" +
+            "  nvl(sum(ACCUMULATED_CHARGES), 0) AS ACCUMULATED_CHARGES\n" +
+            "FROM BILL\n" +
+            "WHERE BILL_PERIOD >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "      AND BILL_PERIOD < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "      AND A_ID IN (\n" +
+            "        SELECT A_ID\n" +
+            "        FROM SUBSCRIBES\n" +
+            "        WHERE PHONE_NUMBER IN (" + getInList() + "))\n" +
+            "GROUP BY A_ID, BILL_PERIOD, IS_PAID";
+
+    private static final String PAID_BILLS_QUERY = "SELECT BILL_ID\n" +
+            "FROM BILL\n" +
+            "WHERE IS_PAID = 1 AND BILL_ID IN (" + getInList() + ")";
+
+    private static final FinancialCube instance = new FinancialCube();
+
+    private final DatabaseApi databaseApi;
+
+    private volatile ConcurrentSkipListMap<Long, Cell> cells;
+    private volatile PastDueIndex pastDueIndex;
+    private volatile long builtNanos;
+
+    // Guarded by this
+    private boolean rebuilding;
+    private final List<Patch> rebuildPatches = new ArrayList<>();
+    private Map<Integer, Set<Long>> usedPhones = new HashMap<>();
+
+    private FinancialCube() {
+        databaseApi = DatabaseApi.getInstance();
+    }
+
+    static FinancialCube getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the cells of the accounts and periods within the given ranges, in account and then period order. The
+     * cube is built first if it hasn't been yet, with the caller's connection, which the caller must log out of.
+     *
+     * @param firstPeriod The first billing period of the range, counted in months as by
+     *                    {@link RatingEngine#getPeriod(String)}.
+     * @param lastPeriod  The last billing period of the range.
+     */
+    List<Row> slice(int firstAccountId, int lastAccountId, int firstPeriod, int lastPeriod) throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        if (firstAccountId > lastAccountId) {
+            return rows;
+        }
+        Map<Long, Cell> accountCells = getCells().subMap(RatingEngine.getBillKey(firstAccountId, 0), true,
+                RatingEngine.getBillKey(lastAccountId, Integer.MAX_VALUE), true);
+        for (Map.Entry<Long, Cell> entry : accountCells.entrySet()) {
+            int period = (int) (long) entry.getKey();
+            if (period >= firstPeriod && period <= lastPeriod) {
+                rows.add(entry.getValue().toRow((int) (entry.getKey() >>> 32), period));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Ranks the accounts by their unpaid or paid charges within a range of billing periods. The cube is built first if
+     * it hasn't been yet, with the caller's connection, which the caller must log out of.
+     *
+     * @param count  The number of accounts to return.
+     * @param isPaid True to rank by the charges of the paid bills or false to rank by the unpaid ones.
+     * @return The accounts with the most charges, each summed up over the periods, starting with the most.
+     */
+    List<Row> getTopAccounts(int count, boolean isPaid, int firstPeriod, int lastPeriod) throws SQLException {
+        Map<Integer, Row> accountRows = new HashMap<>();
+        for (Map.Entry<Long, Cell> entry : getCells().entrySet()) {
+            int period = (int) (long) entry.getKey();
+            if (period < firstPeriod || period > lastPeriod) {
+                continue;
+            }
+            int accountId = (int) (entry.getKey() >>> 32);
+            Row cellRow = entry.getValue().toRow(accountId, period);
+            Row accountRow = accountRows.get(accountId);
+            accountRows.put(accountId, accountRow == null ? new Row(accountId, Row.ALL_PERIODS, cellRow) :
+                    accountRow.plus(cellRow));
+        }
+
+        Comparator<Row> comparator = Comparator.comparingDouble(row -> row.getCharges(isPaid));
+        PriorityQueue<Row> topRows = new PriorityQueue<>(Math.max(1, count), comparator);
+        for (Row row : accountRows.values()) {
+            if (row.getBills(isPaid) == 0) {
+                continue;
+            }
+            topRows.add(row);
+            if (topRows.size() > count) {
+                topRows.poll();
+            }
+        }
+        List<Row> rows = new ArrayList<>(topRows);
+        rows.sort(Collections.reverseOrder(comparator));
+        return rows;
+    }
+
+    /**
+     * Returns the bills that are past due, as described by {@link PastDueIndex#getPastDueBills(String)}. The cube is
+     * built first if it hasn't been yet, with the caller's connection, which the caller must log out of.
+     */
+    List<Row> getPastDueBills(String currentDate) throws SQLException {
+        getCells();
+        return pastDueIndex.getPastDueBills(currentDate);
+    }
+
+    /**
+     * Sums up the bills that are past due by age, as described by {@link PastDueIndex#getAgingBuckets(String)}. The
+     * cube is built first if it hasn't been yet, with the caller's connection, which the caller must log out of.
+     */
+    PastDueIndex.AgingBucket[] getAgingBuckets(String currentDate) throws SQLException {
+        getCells();
+        return pastDueIndex.getAgingBuckets(currentDate);
+    }
+
+    /**
+     * Moves a bill that was committed as paid from the unpaid charges to the paid ones.
+     */
+    void payBill(int billId, int accountId, int period, double charges) {
+        applyPatch(new Patch(billId, accountId, period, -charges, -1, charges, 1));
+    }
+
+    /**
+     * Marks the bills of the usage that was committed, so the next request reads their cells again. Nothing is marked
+     * until the cube is built, since the build reads every bill.
+     *
+     * @param results The result of each event. Only the events that succeeded are marked.
+     */
+    void addUsage(List<UsageEvent> events, CustomerUsageDatabase.UsageResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == CustomerUsageDatabase.UsageResult.SUCCESS) {
+                addUsage(events.get(i));
+            }
+        }
+    }
+
+    synchronized void addUsage(UsageEvent event) {
+        if (cells == null) {
+            return;
+        }
+        Set<Long> phones = usedPhones.computeIfAbsent(RatingEngine.getPeriod(event.getStartTime()),
+                k -> new HashSet<>());
+        phones.add(event.getSourcePhone());
+        if (event.getType() != UsageEvent.Type.INTERNET) {
+            phones.add(event.getDestinationPhone());
+        }
+    }
+
+    /**
+     * Makes the next request rebuild the cube, for changes to the bills that can't be patched.
+     */
+    void invalidate() {
+        builtNanos = System.nanoTime() - REFRESH_NANOS - 1;
+    }
+
+    private ConcurrentSkipListMap<Long, Cell> getCells() throws SQLException {
+        ConcurrentSkipListMap<Long, Cell> currentCells = cells;
+        if (currentCells != null && BACKGROUND_REFRESH && isStale()) {
+            startRebuild();
+            return currentCells;
+        }
+        Map<Integer, Set<Long>> readPhones;
+        synchronized (this) {
+            if (cells != null && !isStale() && usedPhones.isEmpty()) {
+                return cells;
+            }
+            while (rebuilding) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for the financial cube to be rebuilt", e);
+                }
+            }
+            if (cells == null || isStale()) {
+                readPhones = null;
+            } else if (!usedPhones.isEmpty()) {
+                readPhones = usedPhones;
+            } else {
+                return cells;
+            }
+            usedPhones = new HashMap<>();
+            rebuilding = true;
+        }
+        build(readPhones);
+        return cells;
+    }
+
+    private boolean isStale() {
+        return System.nanoTime() - builtNanos > REFRESH_NANOS;
+    }
+
+    private void startRebuild() {
+        synchronized (this) {
+            if (rebuilding) {
+                return;
+            }
+            usedPhones = new HashMap<>();
+            rebuilding = true;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                build(null);
+            } catch (SQLException e) {
+                System.err.println("Could not rebuild the financial cube: " + e.getMessage());
+            } finally {
+                databaseApi.logout();
+            }
+        }, "jog-cube-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads every bill, or the bills of some phones, into a new set of cells and swaps them in, once the patches that
+     * landed in the meantime were replayed onto them. Must only be called by the thread that set {@link #rebuilding}.
+     *
+     * @param readPhones The phones whose bills should be read again, by billing period, or <b>null</b> to rebuild the
+     *                   whole cube.
+     */
+    private void build(Map<Integer, Set<Long>> readPhones) throws SQLException {
+        ConcurrentSkipListMap<Long, Cell> newCells = new ConcurrentSkipListMap<>();
+        PastDueIndex newPastDueIndex = new PastDueIndex(newCells);
+        long snapshotNanos = System.nanoTime();
+        Set<Integer> paidBills = new HashSet<>();
+        int checkedPatches = 0;
+        try {
+            databaseApi.beginTransaction();
+            databaseApi.executeUpdate(READ_ONLY);
+            if (readPhones == null) {
+                ResultSet resultSet = databaseApi.executeQuery(CUBE_QUERY);
+                resultSet.setFetchSize(CUBE_FETCH_SIZE);
+                readCells(resultSet, newCells, newPastDueIndex);
+            } else {
+                readUsedCells(readPhones, newCells, newPastDueIndex);
+            }
+
+            // Checks the patches against the snapshot until no more land, since the swap must replay all of them
+            while (true) {
+                List<Patch> patches;
+                synchronized (this) {
+                    if (checkedPatches == rebuildPatches.size()) {
+                        if (readPhones == null) {
+                            swapCells(newCells, newPastDueIndex, paidBills);
+                            builtNanos = snapshotNanos;
+                        } else {
+                            replaceCells(newCells, paidBills);
+                        }
+                        rebuildPatches.clear();
+                        rebuilding = false;
+                        notifyAll();
+                        return;
+                    }
+                    patches = new ArrayList<>(rebuildPatches.subList(checkedPatches, rebuildPatches.size()));
+                }
+                readPaidBills(patches, paidBills);
+                checkedPatches += patches.size();
+            }
+        } catch (SQLException e) {
+            synchronized (this) {
+                if (readPhones != null) {
+                    for (Map.Entry<Integer, Set<Long>> entry : readPhones.entrySet()) {
+                        usedPhones.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+                    }
+                }
+                rebuilding = false;
+                rebuildPatches.clear();
+                notifyAll();
+            }
+            throw e;
+        } finally {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private static void readCells(ResultSet resultSet, ConcurrentSkipListMap<Long, Cell> cells,
+                                  PastDueIndex pastDueIndex) throws SQLException {
+        while (resultSet.next()) {
+            long key = RatingEngine.getBillKey(resultSet.getInt(TableConstants.Bill.A_ID),
+                    RatingEngine.getPeriod(resultSet.getString(TableConstants.Bill.BILL_PERIOD)));
+            Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+            int bills = resultSet.getInt("BILLS");
+            double charges = resultSet.getDouble(TableConstants.Bill.ACCUMULATED_CHARGES);
+            if (resultSet.getInt(TableConstants.Bill.IS_PAID) == 1) {
+                cell.add(0, 0, charges, bills);
+            } else {
+                cell.add(charges, bills, 0, 0);
+                pastDueIndex.setUnpaid((int) (key >>> 32), (int) key, true);
+            }
+        }
+    }
+
+    /**
+     * Reads the cells of the accounts that own the phones, a period and up to {@link #IN_LIST_SIZE} phones at a time.
+     */
+    private void readUsedCells(Map<Integer, Set<Long>> readPhones, ConcurrentSkipListMap<Long, Cell> cells,
+                               PastDueIndex pastDueIndex) throws SQLException {
+        for (Map.Entry<Integer, Set<Long>> entry : readPhones.entrySet()) {
+            String billingPeriod = RatingEngine.getBillingPeriod(entry.getKey());
+            List<Long> phones = new ArrayList<>(entry.getValue());
+            for (int start = 0; start < phones.size(); start += IN_LIST_SIZE) {
+                int end = Math.min(phones.size(), start + IN_LIST_SIZE);
+                Object[] parameters = new Object[2 + IN_LIST_SIZE];
+                parameters[0] = billingPeriod;
+                parameters[1] = billingPeriod;
+                for (int i = 0; i < IN_LIST_SIZE; i++) {
+                    parameters[2 + i] = phones.get(Math.min(start + i, end - 1));
+                }
+                readCells(databaseApi.executeQuery(USED_CELLS_QUERY, parameters), cells, pastDueIndex);
+            }
+        }
+    }
+
+    /**
+     * Replaces the cube with a rebuilt one, replaying the patches whose bills the rebuild saw as unpaid.
+     */
+    private void swapCells(ConcurrentSkipListMap<Long, Cell> newCells, PastDueIndex newPastDueIndex,
+                           Set<Integer> paidBills) {
+        for (Patch patch : rebuildPatches) {
+            if (!paidBills.contains(patch.billId)) {
+                patch.applyTo(newCells, newPastDueIndex);
+            }
+        }
+        pastDueIndex = newPastDueIndex;
+        cells = newCells;
+    }
+
+    /**
+     * Replaces the cells that were read again. The patches of those cells whose bills were seen as unpaid are replayed,
+     * while the patches of the other cells were already applied to them.
+     */
+    private void replaceCells(ConcurrentSkipListMap<Long, Cell> newCells, Set<Integer> paidBills) {
+        for (Map.Entry<Long, Cell> entry : newCells.entrySet()) {
+            cells.put(entry.getKey(), entry.getValue());
+            pastDueIndex.setUnpaid((int) (entry.getKey() >>> 32), (int) (long) entry.getKey(),
+                    entry.getValue().isUnpaid());
+        }
+        for (Patch patch : rebuildPatches) {
+            if (newCells.containsKey(patch.key) && !paidBills.contains(patch.billId)) {
+                patch.applyTo(cells, pastDueIndex);
+            }
+        }
+    }
+
+    /**
+     * Adds the bills of the patches that the rebuild's snapshot already saw as paid.
+     */
+    private void readPaidBills(List<Patch> patches, Set<Integer> paidBills) throws SQLException {
+        for (int start = 0; start < patches.size(); start += IN_LIST_SIZE) {
+            int end = Math.min(patches.size(), start + IN_LIST_SIZE);
+            Object[] parameters = new Object[IN_LIST_SIZE];
+            for (int i = 0; i < IN_LIST_SIZE; i++) {
+                parameters[i] = patches.get(Math.min(start + i, end - 1)).billId;
+            }
+            ResultSet resultSet = databaseApi.executeQuery(PAID_BILLS_QUERY, parameters);
+            while (resultSet.next()) {
+                paidBills.add(resultSet.getInt(TableConstants.Bill.BILL_ID));
+            }
+        }
+    }
+
+    /**
+     * @return The parameters of an IN list of {@link #IN_LIST_SIZE} values. Shorter lists repeat their last value.
+     */
+    private static String getInList() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < IN_LIST_SIZE; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.toString();
+    }
+
+    private synchronized void applyPatch(Patch patch) {
+        if (cells != null) {
+            patch.applyTo(cells, pastDueIndex);
+        }
+        if (rebuilding) {
+            rebuildPatches.add(patch);
+        }
+    }
+
+    /**
+     * The charges of one account and billing period. Guarded by itself.
+     */
+    static final class Cell {
+
+        private double unpaidCharges;
+        private int unpaidBills;
+        private double paidCharges;
+        private int paidBills;
+
+        /**
+         * @return True if the account still has an unpaid bill in the period.
+         */
+        private synchronized boolean add(double unpaidCharges, int unpaidBills, double paidCharges, int paidBills) {
+            this.unpaidCharges += unpaidCharges;
+            this.unpaidBills += unpaidBills;
+            this.paidCharges += paidCharges;
+            this.paidBills += paidBills;
+            return this.unpaidBills > 0;
+        }
+
+        private synchronized boolean isUnpaid() {
+            return unpaidBills > 0;
+        }
+
+        synchronized Row toRow(int accountId, int period) {
+            return new Row(accountId, period, unpaidCharges, unpaidBills, paidCharges, paidBills);
+        }
+
+    }
+
+    /**
+     * A change to a cell that was committed to BILL.
+     */
+    private static final class Patch {
+
+        private final int billId;
+        private final long key;
+        private final double unpaidCharges;
+        private final int unpaidBills;
+        private final double paidCharges;
+        private final int paidBills;
+
+        private Patch(int billId, int accountId, int period, double unpaidCharges, int unpaidBills,
+                      double paidCharges, int paidBills) {
+            this.billId = billId;
+            this.key = RatingEngine.getBillKey(accountId, period);
+            this.unpaidCharges = unpaidCharges;
+            this.unpaidBills = unpaidBills;
+            this.paidCharges = paidCharges;
+            this.paidBills = paidBills;
+        }
+
+        private void applyTo(ConcurrentSkipListMap<Long, Cell> cells, PastDueIndex pastDueIndex) {
+            boolean isUnpaid = cells.computeIfAbsent(key, k -> new Cell()).add(unpaidCharges, unpaidBills,
+                    paidCharges, paidBills);
+            pastDueIndex.setUnpaid((int) (key >>> 32), (int) key, isUnpaid);
+        }
+
+    }
+
+    /**
+     * The charges of an account in one billing period, or summed up over several.
+     */
+    static final class Row {
+
+        /**
+         * The period of a row that sums up several billing periods.
+         */
+        static final int ALL_PERIODS = -1;
+
+        private final int accountId;
+        private final int period;
+        private final double unpaidCharges;
+        private final int unpaidBills;
+        private final double paidCharges;
+        private final int paidBills;
+
+        private Row(int accountId, int period, double unpaidCharges, int unpaidBills, double paidCharges,
+                    int paidBills) {
+            this.accountId = accountId;
+            this.period = period;
+            this.unpaidCharges = unpaidCharges;
+            this.unpaidBills = unpaidBills;
+            this.paidCharges = paidCharges;
+            this.paidBills = paidBills;
+        }
+
+        private Row(int accountId, int period, Row row) {
+            this(accountId, period, row.unpaidCharges, row.unpaidBills, row.paidCharges, row.paidBills);
+        }
+
+        private Row plus(Row row) {
+            return new Row(accountId, period, unpaidCharges + row.unpaidCharges, unpaidBills + row.unpaidBills,
+                    paidCharges + row.paidCharges, paidBills + row.paidBills);
+        }
+
+        int getAccountId() {
+            return accountId;
+        }
+
+        /**
+         * @return The billing period, counted in months, or {@link #ALL_PERIODS}.
+         */
+        int getPeriod() {
+            return period;
+        }
+
+        /**
+         * @param isPaid True for the charges of the paid bills or false for the unpaid ones.
+         */
+        double getCharges(boolean isPaid) {
+            return isPaid ? paidCharges : unpaidCharges;
+        }
+
+        /**
+         * @param isPaid True for the number of paid bills or false for the unpaid ones.
+         */
+        int getBills(boolean isPaid) {
+            return isPaid ? paidBills : unpaidBills;
+        }
+
+    }
+
+}
@@ -0,0 +1,242 @@
+package database;
+
+import database.CustomerUsageDatabase.UsageResult;
+import database.TableConstants.Plans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Refuses usage that the database is certain to reject because the source account is on a hard limit plan and has
+ * already used up its limit for the billing period, so an account that is stuck at its limit doesn't cost a round
+ * trip for every further text, call or internet usage.
+ * <p></p>
+ * Counters are only kept for the accounts and billing periods that the database has already rejected usage for. The
+ * first rejection seeds the counters with the period's texts, call seconds and megabytes from the usage tables, along
+ * with the limits of the plan on the period's bill. From then on, every successful usage is added to the counters of
+ * the accounts that own its phones, and a usage is refused locally once the source account's usage plus the new
+ * amount is over its limit, which is when the database rejects it. The counters are {@link LongAdder}s, so the DB
+ * writers may add to them at the same time.
+ * <p></p>
+ * Usage that other programs record is not seen by the counters, which only makes them lower than the truth, so the
+ * database still rejects anything the counters miss. A counter that may have missed or double counted a batch,
+ * because the batch committed while the counter was being seeded, is never used to refuse usage.
+ */
+final class HardLimitPrecheck {
+
+    private static final String USAGE_QUERY = "SELECT\n" +
+            "  PLANS.HARD_LIMIT,\n" +
+            "  PLANS.LIMIT_TEXTS,\n" +
+            "  PLANS.LIMIT_CALLS_SECONDS,\n" +
+            "  PLANS.LIMIT_INTERNET_MB,\n" +
+            "  (SELECT count(TEXT_ID)\n" +
+            "   FROM TEXT_LOG\n" +
+            "   WHERE TIME_SENT >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "         AND TIME_SENT < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "         AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM SUBSCRIBES WHERE A_ID = BILL.A_ID)\n" +
+            "              OR DEST_PHONE IN (SELECT PHONE_NUMBER FROM SUBSCRIBES WHERE A_ID = BILL.A_ID))\n" +
+            "  ) AS TOTAL_TEXTS,\n" +
+            "  (SELECT nvl(sum((END_TIME - START_TIME) * 86400), 0)\n" +
+            "   FROM CALL_LOG\n" +
+            "   WHERE START_TIME >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "         AND START_TIME < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "         AND (SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM SUBSCRIBES WHERE A_ID = BILL.A_ID)\n" +
+            "              OR DEST_PHONE IN (SELECT PHONE_NUMBER FROM SUBSCRIBES WHERE A_ID = BILL.A_ID))\n" +
+            "  ) AS TOTAL_CALL_SECONDS,\n" +
+            "  (SELECT nvl(sum(AMOUNT_MEGABYTES), 0)\n" +
+            "   FROM INTERNET_USAGE\n" +
+            "   WHERE USAGE_DATE >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "         AND USAGE_DATE < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "         AND SOURCE_PHONE IN (SELECT PHONE_NUMBER FROM SUBSCRIBES WHERE A_ID = BILL.A_ID)\n" +
+            "  ) AS TOTAL_MEGABYTES\n" +
+            "FROM BILL\n" +
+            "  JOIN PLANS ON BILL.PLAN_ID = PLANS.PLAN_ID\n" +
+            "WHERE BILL.A_ID = ?\n" +
+            "      AND BILL.BILL_PERIOD >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "      AND BILL.BILL_PERIOD < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)";
+
+    private final DatabaseApi databaseApi;
+    private final PhoneAccountIndex phoneAccountIndex;
+    private final ConcurrentHashMap<Long, UsageCounter> usageCounters = new ConcurrentHashMap<>();
+
+    HardLimitPrecheck(DatabaseApi databaseApi, PhoneAccountIndex phoneAccountIndex) {
+        this.databaseApi = databaseApi;
+        this.phoneAccountIndex = phoneAccountIndex;
+    }
+
+    /**
+     * @return True if the database is certain to reject the event with a hard limit error.
+     */
+    boolean isCertainToBeRejected(UsageEvent event) {
+        int account = phoneAccountIndex.getAccount(event.getSourcePhone());
+        if (account == PhoneAccountIndex.NO_ACCOUNT) {
+            return false;
+        }
+        UsageCounter usageCounter = usageCounters.get(getKey(account, event));
+        if (usageCounter == null || !usageCounter.isUsable()) {
+            return false;
+        }
+        switch (event.getType()) {
+            case TEXT:
+                return isOverLimit(usageCounter.texts, 1, usageCounter.limitTexts);
+            case CALL:
+                return isOverLimit(usageCounter.callSeconds, RatingEngine.getCallSeconds(event),
+                        usageCounter.limitCallSeconds);
+            default:
+                return isOverLimit(usageCounter.megabytes, event.getAmount(), usageCounter.limitMegabytes);
+        }
+    }
+
+    /**
+     * Seeds the counters of the accounts that the database rejected usage for and adds the successful usage to the
+     * counters that already exist. Borrows a connection only if a counter has to be seeded.
+     *
+     * @param events     The events that were sent to the database.
+     * @param results    The result of each event.
+     * @param startNanos The time before the first event was sent.
+     * @param endNanos   The time after the last event was committed.
+     */
+    void recordResults(List<UsageEvent> events, UsageResult[] results, long startNanos, long endNanos) {
+        Set<Long> rejectedKeys = new LinkedHashSet<>();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == UsageResult.NO_SERVICE) {
+                int account = phoneAccountIndex.getAccount(events.get(i).getSourcePhone());
+                if (account != PhoneAccountIndex.NO_ACCOUNT) {
+                    long key = getKey(account, events.get(i));
+                    if (!usageCounters.containsKey(key)) {
+                        rejectedKeys.add(key);
+                    }
+                }
+            }
+        }
+        if (!rejectedKeys.isEmpty()) {
+            try {
+                for (long key : rejectedKeys) {
+                    seed(key);
+                }
+            } catch (SQLException e) {
+                // The counters are only an optimization, so the database keeps rejecting the usage instead
+            } finally {
+                databaseApi.logout();
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != UsageResult.SUCCESS) {
+                continue;
+            }
+            UsageEvent event = events.get(i);
+            int sourceAccount = phoneAccountIndex.getAccount(event.getSourcePhone());
+            int destinationAccount = event.getType() == UsageEvent.Type.INTERNET ? PhoneAccountIndex.NO_ACCOUNT :
+                    phoneAccountIndex.getAccount(event.getDestinationPhone());
+            addUsage(sourceAccount, event, startNanos, endNanos);
+            if (destinationAccount != sourceAccount) {
+                addUsage(destinationAccount, event, startNanos, endNanos);
+            }
+        }
+    }
+
+    private void seed(long key) throws SQLException {
+        int account = (int) (key >>> 32);
+        int period = (int) key;
+        String periodStart = String.format("%04d-%02d-01 00:00:00", period / 12, period % 12 + 1);
+        long seedStartNanos = System.nanoTime();
+        ResultSet resultSet = databaseApi.executeQuery(USAGE_QUERY, periodStart, periodStart, periodStart,
+                periodStart, periodStart, periodStart, account, periodStart, periodStart);
+        UsageCounter usageCounter;
+        if (resultSet.next()) {
+            usageCounter = new UsageCounter(resultSet.getInt(Plans.HARD_LIMIT) == 1,
+                    resultSet.getLong(Plans.LIMIT_TEXTS), resultSet.getLong(Plans.LIMIT_CALLS_SECONDS),
+                    resultSet.getLong(Plans.LIMIT_INTERNET_MB), seedStartNanos, System.nanoTime());
+            usageCounter.texts.add(resultSet.getLong("TOTAL_TEXTS"));
+            usageCounter.callSeconds.add(Math.round(resultSet.getDouble("TOTAL_CALL_SECONDS")));
+            usageCounter.megabytes.add(resultSet.getLong("TOTAL_MEGABYTES"));
+        } else {
+            // There is no bill for the period, so there is no plan to check the usage against
+            usageCounter = new UsageCounter(false, 0, 0, 0, seedStartNanos, System.nanoTime());
+        }
+        usageCounters.putIfAbsent(key, usageCounter);
+    }
+
+    private void addUsage(int account, UsageEvent event, long startNanos, long endNanos) {
+        if (account == PhoneAccountIndex.NO_ACCOUNT) {
+            return;
+        }
+        UsageCounter usageCounter = usageCounters.get(getKey(account, event));
+        if (usageCounter == null || !usageCounter.isUsable()) {
+            return;
+        }
+        if (endNanos <= usageCounter.seedStartNanos) {
+            // The usage was committed before the counter was seeded, so the seed already holds it
+            return;
+        }
+        if (startNanos < usageCounter.seedEndNanos) {
+            // The usage may or may not be in the seed, so the counter can't be trusted any more
+            usageCounter.uncertain = true;
+            return;
+        }
+        switch (event.getType()) {
+            case TEXT:
+                usageCounter.texts.increment();
+                break;
+            case CALL:
+                usageCounter.callSeconds.add(RatingEngine.getCallSeconds(event));
+                break;
+            default:
+                usageCounter.megabytes.add(event.getAmount());
+                break;
+        }
+    }
+
+    /**
+     * A limit of <b>0</b> is stored as a SQL <b>null</b> and means there is no limit.
+     */
+    private static boolean isOverLimit(LongAdder usage, long amount, long limit) {
+        return limit > 0 && usage.sum() + amount > limit;
+    }
+
+    /**
+     * @return The account in the high half and the billing period of the event, counted in months, in the low half.
+     */
+    private static long getKey(int account, UsageEvent event) {
+        String startTime = event.getStartTime();
+        int year = Integer.parseInt(startTime.substring(0, 4));
+        int month = Integer.parseInt(startTime.substring(5, 7));
+        return (long) account << 32 | (year * 12 + month - 1);
+    }
+
+    private static final class UsageCounter {
+
+        private final boolean hardLimit;
+        private final long limitTexts;
+        private final long limitCallSeconds;
+        private final long limitMegabytes;
+        private final long seedStartNanos;
+        private final long seedEndNanos;
+        private final LongAdder texts = new LongAdder();
+        private final LongAdder callSeconds = new LongAdder();
+        private final LongAdder megabytes = new LongAdder();
+        private volatile boolean uncertain;
+
+        private UsageCounter(boolean hardLimit, long limitTexts, long limitCallSeconds, long limitMegabytes,
+                             long seedStartNanos, long seedEndNanos) {
+            this.hardLimit = hardLimit;
+            this.limitTexts = limitTexts;
+            this.limitCallSeconds = limitCallSeconds;
+            this.limitMegabytes = limitMegabytes;
+            this.seedStartNanos = seedStartNanos;
+            this.seedEndNanos = seedEndNanos;
+        }
+
+        private boolean isUsable() {
+            return hardLimit && !uncertain;
+        }
+
+    }
+
+}
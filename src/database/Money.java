@@ -0,0 +1,53 @@
+package database;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Converts amounts of money between dollars and the fixed point units that charges are rated and accumulated in. A
+ * unit is a millionth of a cent, so the per second and per megabyte rates of the PLANS table keep eight decimal
+ * places. A rate is rounded to a whole unit once, when its plan is read. After that, usage costs a whole number of
+ * units and sums of units are exact. The totals of a bill therefore don't depend on how its usage was batched or in
+ * what order parallel workers added it up. A long holds up to about 92 billion dollars in units.
+ * <p></p>
+ * Amounts are only converted at the edges: rates and charges are read from JDBC as {@link BigDecimal}s, bound as
+ * {@link BigDecimal}s, and turned into doubles for display.
+ */
+final class Money {
+
+    /**
+     * The number of decimal places of a dollar amount that a unit keeps.
+     */
+    static final int SCALE = 8;
+
+    static final long UNITS_PER_DOLLAR = 100_000_000L;
+
+    private Money() {
+    }
+
+    /**
+     * @param dollars An amount read from the database, which may be null.
+     * @return The amount in units, rounded half to even, or <b>0</b> for null.
+     */
+    static long fromDecimal(BigDecimal dollars) {
+        if (dollars == null) {
+            return 0;
+        }
+        return dollars.setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @return The exact amount in dollars, for binding to a statement.
+     */
+    static BigDecimal toDecimal(long units) {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+
+    /**
+     * @return The amount in dollars, for display and for sums that are only displayed.
+     */
+    static double toDollars(long units) {
+        return (double) units / UNITS_PER_DOLLAR;
+    }
+
+}
@@ -0,0 +1,168 @@
+package database;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The unpaid bills of a {@link FinancialCube}, ordered by billing period, so the bills that are past due as of a date
+ * are the periods before it rather than a scan over BILL. Each period holds a bitmap of the accounts that have an
+ * unpaid bill in it, since an account has a single bill per period. The amounts are read from the cube's cells, which
+ * the index is kept in step with as they're patched.
+ */
+final class PastDueIndex {
+
+    /**
+     * The upper bounds of the aging buckets, in days past due. Bills that are older fall into the last bucket.
+     */
+    static final int[] AGING_BUCKET_DAYS = {30, 60, 90};
+
+    private final ConcurrentSkipListMap<Long, FinancialCube.Cell> cells;
+
+    // Guarded by this
+    private final TreeMap<Integer, BitSet> unpaidAccounts = new TreeMap<>();
+
+    PastDueIndex(ConcurrentSkipListMap<Long, FinancialCube.Cell> cells) {
+        this.cells = cells;
+    }
+
+    /**
+     * Marks whether an account has an unpaid bill in a billing period.
+     *
+     * @param period The billing period, counted in months as by {@link RatingEngine#getPeriod(String)}.
+     */
+    synchronized void setUnpaid(int accountId, int period, boolean isUnpaid) {
+        BitSet accounts = unpaidAccounts.get(period);
+        if (isUnpaid) {
+            if (accounts == null) {
+                accounts = new BitSet();
+                unpaidAccounts.put(period, accounts);
+            }
+            accounts.set(accountId);
+        } else if (accounts != null) {
+            accounts.clear(accountId);
+            if (accounts.isEmpty()) {
+                unpaidAccounts.remove(period);
+            }
+        }
+    }
+
+    /**
+     * Returns the bills that are past due, which are the unpaid bills whose billing period began before the current
+     * date, in period and then account order.
+     *
+     * @param currentDate The current date, in the format "yyyy-MM-dd HH:mm:ss".
+     */
+    List<FinancialCube.Row> getPastDueBills(String currentDate) {
+        List<FinancialCube.Row> rows = new ArrayList<>();
+        for (Map.Entry<Integer, BitSet> entry : getPastDuePeriods(currentDate).entrySet()) {
+            BitSet accounts = entry.getValue();
+            for (int accountId = accounts.nextSetBit(0); accountId >= 0;
+                 accountId = accounts.nextSetBit(accountId + 1)) {
+                FinancialCube.Cell cell = cells.get(RatingEngine.getBillKey(accountId, entry.getKey()));
+                if (cell != null) {
+                    rows.add(cell.toRow(accountId, entry.getKey()));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Sums up the past due bills by how long they've been past due, counting from the start of their billing period.
+     *
+     * @param currentDate The current date, in the format "yyyy-MM-dd HH:mm:ss".
+     * @return The number of bills and their amount due for each bucket, the first of which holds the bills that are up
+     * to {@link #AGING_BUCKET_DAYS}[0] days past due and the last of which holds the ones that are older than every
+     * bound.
+     */
+    AgingBucket[] getAgingBuckets(String currentDate) {
+        LocalDate date = LocalDate.parse(currentDate.substring(0, 10));
+        int[] bills = new int[AGING_BUCKET_DAYS.length + 1];
+        double[] charges = new double[bills.length];
+        for (Map.Entry<Integer, BitSet> entry : getPastDuePeriods(currentDate).entrySet()) {
+            LocalDate periodStart = LocalDate.of(entry.getKey() / 12, entry.getKey() % 12 + 1, 1);
+            long days = ChronoUnit.DAYS.between(periodStart, date);
+            int bucket = 0;
+            while (bucket < AGING_BUCKET_DAYS.length && days > AGING_BUCKET_DAYS[bucket]) {
+                bucket++;
+            }
+            BitSet accounts = entry.getValue();
+            for (int accountId = accounts.nextSetBit(0); accountId >= 0;
+                 accountId = accounts.nextSetBit(accountId + 1)) {
+                FinancialCube.Cell cell = cells.get(RatingEngine.getBillKey(accountId, entry.getKey()));
+                if (cell != null) {
+                    FinancialCube.Row row = cell.toRow(accountId, entry.getKey());
+                    bills[bucket] += row.getBills(false);
+                    charges[bucket] += row.getCharges(false);
+                }
+            }
+        }
+
+        AgingBucket[] buckets = new AgingBucket[bills.length];
+        for (int i = 0; i < buckets.length; i++) {
+            int firstDay = i == 0 ? 0 : AGING_BUCKET_DAYS[i - 1] + 1;
+            int lastDay = i < AGING_BUCKET_DAYS.length ? AGING_BUCKET_DAYS[i] : Integer.MAX_VALUE;
+            buckets[i] = new AgingBucket(firstDay, lastDay, bills[i], charges[i]);
+        }
+        return buckets;
+    }
+
+    /**
+     * @return A copy of the periods that began before the current date, so the bitmaps can be read without holding
+     * the lock.
+     */
+    private synchronized TreeMap<Integer, BitSet> getPastDuePeriods(String currentDate) {
+        int currentPeriod = RatingEngine.getPeriod(currentDate);
+        boolean hasPeriodBegun = currentDate.compareTo(RatingEngine.getBillingPeriod(currentPeriod)) > 0;
+        TreeMap<Integer, BitSet> periods = new TreeMap<>();
+        for (Map.Entry<Integer, BitSet> entry : unpaidAccounts.headMap(currentPeriod, hasPeriodBegun).entrySet()) {
+            periods.put(entry.getKey(), (BitSet) entry.getValue().clone());
+        }
+        return periods;
+    }
+
+    /**
+     * The past due bills of a range of days.
+     */
+    static final class AgingBucket {
+
+        private final int firstDay;
+        private final int lastDay;
+        private final int bills;
+        private final double charges;
+
+        private AgingBucket(int firstDay, int lastDay, int bills, double charges) {
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+            this.bills = bills;
+            this.charges = charges;
+        }
+
+        int getFirstDay() {
+            return firstDay;
+        }
+
+        /**
+         * @return The last day past due of the bucket, or {@link Integer#MAX_VALUE} if it has no bound.
+         */
+        int getLastDay() {
+            return lastDay;
+        }
+
+        int getBills() {
+            return bills;
+        }
+
+        double getCharges() {
+            return charges;
+        }
+
+    }
+
+}
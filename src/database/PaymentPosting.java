@@ -0,0 +1,359 @@
+package database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Posts a file of payments to the bills, so a lockbox or card processor file doesn't cost a connection and a commit
+ * per payment like {@link CustomerDatabase#payBill(int)} does. Each line of the file holds a payment as
+ * <i>bill-id,amount</i>. Blank lines and lines starting with <i>#</i> are skipped.
+ * <p></p>
+ * The ID and paid state of every bill are read into bitmaps before the file is, so unknown, already paid and
+ * duplicate payments are rejected in memory while the file is streamed. The rest are posted in chunks of
+ * <i>jog.payments.chunkSize</i> payments, which defaults to 1000. A chunk locks its bills, checks that each amount
+ * pays the whole bill, since bills can't be paid in part, marks the bills paid with a single JDBC batch and commits.
+ * If a chunk fails, it's rolled back and its payments are reported as failed, so they can be posted again.
+ * <p></p>
+ * Every payment is written to the reconciliation report with its outcome and the amount that was due.
+ */
+public final class PaymentPosting {
+
+    /**
+     * The outcome of a payment.
+     */
+    public enum Status {
+        POSTED, MALFORMED, UNKNOWN_BILL, ALREADY_PAID, DUPLICATE, AMOUNT_MISMATCH, FAILED
+    }
+
+    /**
+     * Bounded by the 1000 expressions an Oracle IN list may hold.
+     */
+    private static final int CHUNK_SIZE = Math.max(1, Math.min(1000,
+            Integer.getInteger("jog.payments.chunkSize", 1000)));
+
+    /**
+     * Payments that differ from the amount due by less than half a cent are rounding errors rather than mismatches,
+     * since payments are made in cents while charges keep fractions of a cent.
+     */
+    private static final long TOLERANCE = Money.UNITS_PER_DOLLAR / 200;
+
+    private static final String BILLS_QUERY = "SELECT\n" +
+            "  BILL_ID,\n" +
+            "  IS_PAID\n" +
+            "FROM BILL";
+
+    /**
+     * The number of rows the driver fetches per round trip while the bills are read.
+     */
+    private static final int BILLS_FETCH_SIZE = 5000;
+
+    private static final String LOCK_QUERY;
+
+    static {
+        StringBuilder builder = new StringBuilder("SELECT\n" +
+                "  BILL_ID,\n" +
+                "  A_ID,\n" +
+                "  to_char(BILL_PERIOD, 'yyyy-MM-dd HH24:mi:ss') AS BILL_PERIOD,\n" +
+                "  IS_PAID,\n" +
+                "  ACCUMULATED_CHARGES\n" +
+                "FROM BILL\n" +
+                "WHERE BILL_ID IN (");
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        LOCK_QUERY = builder.append(")\nFOR UPDATE").toString();
+    }
+
+    private static final String PAY_BILL = "UPDATE BILL\n" +
+            "SET IS_PAID = 1\n" +
+            "WHERE BILL_ID = ? AND IS_PAID = 0";
+
+    private static final String REPORT_HEADER = "LINE,BILL_ID,AMOUNT,STATUS,AMOUNT_DUE\n";
+
+    private final DatabaseApi databaseApi;
+    private final BitSet knownBills = new BitSet();
+    private final BitSet unpaidBills = new BitSet();
+    private final BitSet seenBills = new BitSet();
+    private final int[] counts = new int[Status.values().length];
+    private long postedAmount;
+    private long startNanos;
+    private long endNanos;
+
+    public PaymentPosting() {
+        databaseApi = DatabaseApi.getInstance();
+    }
+
+    /**
+     * Posts every payment of a file. An instance posts a single file.
+     *
+     * @param payments The payments, one per line.
+     * @param report   Where the reconciliation report is written to, as CSV with a header line.
+     * @throws SQLException If the bills couldn't be read, in which case no payment was posted.
+     * @throws IOException  If the payments couldn't be read or the report couldn't be written. The chunks that were
+     *                      committed stay posted.
+     */
+    public void post(BufferedReader payments, Writer report) throws SQLException, IOException {
+        startNanos = System.nanoTime();
+        try {
+            loadBills();
+        } finally {
+            databaseApi.logout();
+        }
+
+        report.write(REPORT_HEADER);
+        List<Payment> chunk = new ArrayList<>(CHUNK_SIZE);
+        int lineNumber = 0;
+        try {
+            String line;
+            while ((line = payments.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Payment payment = Payment.parse(lineNumber, line);
+                if (payment == null) {
+                    counts[Status.MALFORMED.ordinal()]++;
+                    report.write(lineNumber + ",,," + Status.MALFORMED + ",\n");
+                    continue;
+                }
+                Status status = validate(payment.billId);
+                if (status != null) {
+                    writeOutcome(report, payment, status, null);
+                    continue;
+                }
+                seenBills.set(payment.billId);
+                chunk.add(payment);
+                if (chunk.size() == CHUNK_SIZE) {
+                    postChunk(chunk, report);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                postChunk(chunk, report);
+            }
+        } finally {
+            report.flush();
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The number of payments with the given outcome.
+     */
+    public int getCount(Status status) {
+        return counts[status.ordinal()];
+    }
+
+    /**
+     * @return The number of payments that were read, including the malformed ones.
+     */
+    public int getPaymentCount() {
+        int paymentCount = 0;
+        for (int count : counts) {
+            paymentCount += count;
+        }
+        return paymentCount;
+    }
+
+    /**
+     * @return The sum of the payments that were posted.
+     */
+    public double getPostedAmount() {
+        return Money.toDollars(postedAmount);
+    }
+
+    public double getElapsedSeconds() {
+        return (endNanos - startNanos) / 1e9;
+    }
+
+    public double getPaymentsPerMinute() {
+        double elapsedSeconds = getElapsedSeconds();
+        return elapsedSeconds > 0 ? getPaymentCount() * 60 / elapsedSeconds : 0;
+    }
+
+    private void loadBills() throws SQLException {
+        ResultSet resultSet = databaseApi.executeQuery(BILLS_QUERY);
+        resultSet.setFetchSize(BILLS_FETCH_SIZE);
+        while (resultSet.next()) {
+            int billId = resultSet.getInt(TableConstants.Bill.BILL_ID);
+            knownBills.set(billId);
+            if (resultSet.getInt(TableConstants.Bill.IS_PAID) == 0) {
+                unpaidBills.set(billId);
+            }
+        }
+    }
+
+    /**
+     * @return The reason the payment is rejected or null if it should be posted.
+     */
+    private Status validate(int billId) {
+        if (billId < 0 || !knownBills.get(billId)) {
+            return Status.UNKNOWN_BILL;
+        } else if (seenBills.get(billId)) {
+            return Status.DUPLICATE;
+        } else if (!unpaidBills.get(billId)) {
+            return Status.ALREADY_PAID;
+        }
+        return null;
+    }
+
+    /**
+     * Locks the bills of the chunk, checks the amounts against them and pays the bills whose amounts match, all in
+     * one transaction. The bills were read before the file, so they are checked again once they're locked.
+     */
+    private void postChunk(List<Payment> chunk, Writer report) throws IOException {
+        Map<Integer, LockedBill> lockedBills = new HashMap<>();
+        Status[] statuses = new Status[chunk.size()];
+        try {
+            databaseApi.beginTransaction();
+            Object[] parameters = new Object[CHUNK_SIZE];
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                parameters[i] = chunk.get(Math.min(i, chunk.size() - 1)).billId;
+            }
+            ResultSet resultSet = databaseApi.executeQuery(LOCK_QUERY, parameters);
+            while (resultSet.next()) {
+                LockedBill lockedBill = new LockedBill(resultSet.getInt(TableConstants.Bill.A_ID),
+                        resultSet.getString(TableConstants.Bill.BILL_PERIOD),
+                        resultSet.getInt(TableConstants.Bill.IS_PAID) == 1,
+                        Money.fromDecimal(resultSet.getBigDecimal(TableConstants.Bill.ACCUMULATED_CHARGES)));
+                lockedBills.put(resultSet.getInt(TableConstants.Bill.BILL_ID), lockedBill);
+            }
+
+            PreparedStatement statement = databaseApi.prepareStatement(PAY_BILL);
+            statement.clearBatch();
+            boolean hasPayments = false;
+            for (int i = 0; i < chunk.size(); i++) {
+                Payment payment = chunk.get(i);
+                LockedBill lockedBill = lockedBills.get(payment.billId);
+                if (lockedBill == null) {
+                    statuses[i] = Status.UNKNOWN_BILL;
+                } else if (lockedBill.isPaid) {
+                    statuses[i] = Status.ALREADY_PAID;
+                } else if (Math.abs(payment.amount - lockedBill.charges) >= TOLERANCE) {
+                    statuses[i] = Status.AMOUNT_MISMATCH;
+                } else {
+                    statuses[i] = Status.POSTED;
+                    DatabaseApi.bindParameters(statement, payment.billId);
+                    statement.addBatch();
+                    hasPayments = true;
+                }
+            }
+            if (hasPayments) {
+                statement.executeBatch();
+            }
+            databaseApi.commit();
+        } catch (SQLException e) {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
+            System.err.println("Could not post the payments of lines " + chunk.get(0).lineNumber + " to " +
+                    chunk.get(chunk.size() - 1).lineNumber + ": " + e.getMessage());
+            lockedBills.clear();
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = Status.FAILED;
+            }
+        } finally {
+            databaseApi.logout();
+        }
+
+        FinancialCube financialCube = FinancialCube.getInstance();
+        for (int i = 0; i < chunk.size(); i++) {
+            Payment payment = chunk.get(i);
+            LockedBill lockedBill = lockedBills.get(payment.billId);
+            if (statuses[i] == Status.POSTED) {
+                postedAmount += payment.amount;
+                unpaidBills.clear(payment.billId);
+                if (lockedBill.accountId != 0 && lockedBill.billingPeriod != null) {
+                    financialCube.payBill(payment.billId, lockedBill.accountId,
+                            RatingEngine.getPeriod(lockedBill.billingPeriod), Money.toDollars(lockedBill.charges));
+                }
+            } else if (statuses[i] == Status.FAILED) {
+                // Lets the failed payment be posted again if it's repeated later in the file
+                seenBills.clear(payment.billId);
+            }
+            writeOutcome(report, payment, statuses[i], lockedBill);
+        }
+    }
+
+    private void writeOutcome(Writer report, Payment payment, Status status, LockedBill lockedBill)
+            throws IOException {
+        counts[status.ordinal()]++;
+        report.write(payment.lineNumber + "," + payment.billId + "," + format(payment.amount) + "," + status + "," +
+                (lockedBill == null ? "" : format(lockedBill.charges)) + "\n");
+    }
+
+    private static String format(long amount) {
+        return Money.toDecimal(amount).setScale(2, RoundingMode.HALF_EVEN).toPlainString();
+    }
+
+    /**
+     * A payment read from the file.
+     */
+    private static final class Payment {
+
+        private final int lineNumber;
+        private final int billId;
+        private final long amount;
+
+        private Payment(int lineNumber, int billId, long amount) {
+            this.lineNumber = lineNumber;
+            this.billId = billId;
+            this.amount = amount;
+        }
+
+        /**
+         * @return The payment of a line or null if the line isn't formatted as <i>bill-id,amount</i>.
+         */
+        private static Payment parse(int lineNumber, String line) {
+            int comma = line.indexOf(',');
+            if (comma < 0 || line.indexOf(',', comma + 1) >= 0) {
+                return null;
+            }
+            try {
+                int billId = Integer.parseInt(line.substring(0, comma).trim());
+                long amount = Money.fromDecimal(new BigDecimal(line.substring(comma + 1).trim()));
+                if (amount < 0) {
+                    return null;
+                }
+                return new Payment(lineNumber, billId, amount);
+            } catch (NumberFormatException | ArithmeticException e) {
+                // The amount isn't a number or doesn't fit in a long once it's in units
+                return null;
+            }
+        }
+
+    }
+
+    /**
+     * A bill as it was once a chunk locked it.
+     */
+    private static final class LockedBill {
+
+        private final int accountId;
+        private final String billingPeriod;
+        private final boolean isPaid;
+        private final long charges;
+
+        private LockedBill(int accountId, String billingPeriod, boolean isPaid, long charges) {
+            this.accountId = accountId;
+            this.billingPeriod = billingPeriod;
+            this.isPaid = isPaid;
+            this.charges = charges;
+        }
+
+    }
+
+}
@@ -0,0 +1,183 @@
+package database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * An immutable index from phone numbers to the accounts that own them, stored in an open-addressing hash table of
+ * primitive <i>long</i> keys and <i>int</i> values. Looking up a phone costs a hash and usually a single probe,
+ * without boxing the phone into a {@link Long}.
+ * <p></p>
+ * Since the index can't be changed once it's built, it's safe to read from several threads at once.
+ */
+public final class PhoneAccountIndex {
+
+    /**
+     * Returned by {@link #getAccount(long)} when the phone isn't on an account.
+     */
+    public static final int NO_ACCOUNT = -1;
+
+    /**
+     * Marks an empty slot in the table. A phone number of 0 is stored outside of the table instead.
+     */
+    private static final long EMPTY = 0;
+
+    /**
+     * The table is kept at most half full, so probe sequences stay short.
+     */
+    private static final int MAXIMUM_LOAD_PERCENT = 50;
+
+    private static final int INITIAL_LOAD_CAPACITY = 1024;
+
+    /**
+     * The number of rows the driver fetches per round trip while loading, instead of Oracle's default of 10.
+     */
+    private static final int LOAD_FETCH_SIZE = 5000;
+
+    private final long[] phones;
+    private final int[] accounts;
+    private final int mask;
+    private final int size;
+    private final boolean hasZeroPhone;
+    private final int zeroPhoneAccount;
+
+    /**
+     * Builds an index from parallel arrays. If a phone appears more than once, the last account wins.
+     *
+     * @param phones   The phone numbers, as they are stored in the database.
+     * @param accounts The account that owns the phone at the same position.
+     * @param count    The number of entries to read from the arrays.
+     */
+    PhoneAccountIndex(long[] phones, int[] accounts, int count) {
+        int capacity = tableCapacity(count);
+        this.phones = new long[capacity];
+        this.accounts = new int[capacity];
+        this.mask = capacity - 1;
+
+        int size = 0;
+        boolean hasZeroPhone = false;
+        int zeroPhoneAccount = NO_ACCOUNT;
+        for (int i = 0; i < count; i++) {
+            long phone = phones[i];
+            if (phone == EMPTY) {
+                if (!hasZeroPhone) {
+                    size++;
+                }
+                hasZeroPhone = true;
+                zeroPhoneAccount = accounts[i];
+                continue;
+            }
+            int slot = hash(phone) & mask;
+            while (this.phones[slot] != EMPTY && this.phones[slot] != phone) {
+                slot = (slot + 1) & mask;
+            }
+            if (this.phones[slot] == EMPTY) {
+                this.phones[slot] = phone;
+                size++;
+            }
+            this.accounts[slot] = accounts[i];
+        }
+        this.size = size;
+        this.hasZeroPhone = hasZeroPhone;
+        this.zeroPhoneAccount = zeroPhoneAccount;
+    }
+
+    /**
+     * Reads every row of the result set straight into primitive arrays and builds an index from them.
+     *
+     * @param resultSet     The rows to index. The result set is read to the end but is not closed.
+     * @param phoneColumn   The name of the column that holds the phone number.
+     * @param accountColumn The name of the column that holds the account ID.
+     * @return The index of every phone in the result set.
+     * @throws SQLException If the rows couldn't be read.
+     */
+    static PhoneAccountIndex load(ResultSet resultSet, String phoneColumn, String accountColumn)
+            throws SQLException {
+        int phoneIndex = resultSet.findColumn(phoneColumn);
+        int accountIndex = resultSet.findColumn(accountColumn);
+        resultSet.setFetchSize(LOAD_FETCH_SIZE);
+        long[] phones = new long[INITIAL_LOAD_CAPACITY];
+        int[] accounts = new int[INITIAL_LOAD_CAPACITY];
+        int count = 0;
+        while (resultSet.next()) {
+            if (count == phones.length) {
+                phones = Arrays.copyOf(phones, count * 2);
+                accounts = Arrays.copyOf(accounts, count * 2);
+            }
+            phones[count] = resultSet.getLong(phoneIndex);
+            accounts[count] = resultSet.getInt(accountIndex);
+            count++;
+        }
+        return new PhoneAccountIndex(phones, accounts, count);
+    }
+
+    /**
+     * @return An index that contains no phones.
+     */
+    static PhoneAccountIndex empty() {
+        return new PhoneAccountIndex(new long[0], new int[0], 0);
+    }
+
+    /**
+     * @param phone The phone number, as it is stored in the database.
+     * @return The ID of the account that owns the phone or {@link #NO_ACCOUNT} if it isn't on an account.
+     */
+    public int getAccount(long phone) {
+        if (phone == EMPTY) {
+            return hasZeroPhone ? zeroPhoneAccount : NO_ACCOUNT;
+        }
+        int slot = hash(phone) & mask;
+        long current;
+        while ((current = phones[slot]) != EMPTY) {
+            if (current == phone) {
+                return accounts[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ACCOUNT;
+    }
+
+    /**
+     * @param phone The phone number, as it is stored in the database.
+     * @return True if the phone is on an account, false otherwise.
+     */
+    public boolean containsPhone(long phone) {
+        if (phone == EMPTY) {
+            return hasZeroPhone;
+        }
+        int slot = hash(phone) & mask;
+        long current;
+        while ((current = phones[slot]) != EMPTY) {
+            if (current == phone) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of phones in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int tableCapacity(int count) {
+        long minimum = Math.max(2L, (long) count * 100 / MAXIMUM_LOAD_PERCENT + 1);
+        if (minimum > 1 << 30) {
+            throw new IllegalArgumentException("Too many phones to index: " + count);
+        }
+        return Integer.highestOneBit((int) minimum - 1) << 1;
+    }
+
+    /**
+     * Spreads the phone's bits so that numbers which only differ in their last few digits land far apart.
+     */
+    private static int hash(long phone) {
+        long hash = phone * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+}
@@ -0,0 +1,118 @@
+package database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable snapshot of the PLANS table, split into residential and corporate plans, with every plan's
+ * {@link PlanParser#parse()} description rendered once when the snapshot is loaded. PLANS only changes when a plan is
+ * created, so customers browsing and switching plans are served from memory instead of querying and formatting the
+ * plans every time.
+ * <p></p>
+ * Every snapshot carries the version it was loaded for. {@link #invalidate()} moves to the next version in a single
+ * atomic step, so a snapshot that was loaded before a plan was created is never served afterwards, even if its load
+ * finishes later. Plans that are created by another program are only seen once this one creates a plan or restarts.
+ */
+final class PlanCatalog {
+
+    private static final String PLANS_QUERY = "SELECT *\n" +
+            "FROM PLANS\n" +
+            "ORDER BY PLAN_ID";
+
+    private static final AtomicLong currentVersion = new AtomicLong();
+    private static final AtomicReference<PlanCatalog> currentCatalog = new AtomicReference<>();
+
+    private final long version;
+    private final Map<Integer, RatePlan> plans;
+    private final Map<Integer, String> descriptions;
+    private final List<RatePlan> residentialPlans;
+    private final List<RatePlan> corporatePlans;
+
+    private PlanCatalog(long version, List<RatePlan> ratePlans) {
+        this.version = version;
+        Map<Integer, RatePlan> plans = new HashMap<>();
+        Map<Integer, String> descriptions = new HashMap<>();
+        List<RatePlan> residentialPlans = new ArrayList<>();
+        List<RatePlan> corporatePlans = new ArrayList<>();
+        for (RatePlan ratePlan : ratePlans) {
+            plans.put(ratePlan.getPlanId(), ratePlan);
+            descriptions.put(ratePlan.getPlanId(), ratePlan.toPlanParser().parse());
+            if (ratePlan.isResidential()) {
+                residentialPlans.add(ratePlan);
+            } else {
+                corporatePlans.add(ratePlan);
+            }
+        }
+        this.plans = Collections.unmodifiableMap(plans);
+        this.descriptions = Collections.unmodifiableMap(descriptions);
+        this.residentialPlans = Collections.unmodifiableList(residentialPlans);
+        this.corporatePlans = Collections.unmodifiableList(corporatePlans);
+    }
+
+    /**
+     * Returns the current snapshot, loading it first if a plan was created since it was last loaded. The caller is
+     * responsible for logging out of the connection, which is only borrowed if the snapshot has to be loaded.
+     */
+    static PlanCatalog get(DatabaseApi databaseApi) throws SQLException {
+        long version = currentVersion.get();
+        PlanCatalog planCatalog = currentCatalog.get();
+        if (planCatalog != null && planCatalog.version == version) {
+            return planCatalog;
+        }
+
+        List<RatePlan> ratePlans = new ArrayList<>();
+        ResultSet resultSet = databaseApi.executeQuery(PLANS_QUERY);
+        while (resultSet.next()) {
+            ratePlans.add(RatePlan.fromResultSet(resultSet));
+        }
+        PlanCatalog loadedCatalog = new PlanCatalog(version, ratePlans);
+        // Keep whichever snapshot is newer, in case another thread loaded one for a later version in the meantime
+        currentCatalog.accumulateAndGet(loadedCatalog, (existing, loaded) ->
+                existing != null && existing.version > loaded.version ? existing : loaded);
+        return loadedCatalog;
+    }
+
+    /**
+     * Makes the next {@link #get(DatabaseApi)} load the plans again. Should be called whenever a plan is created.
+     */
+    static void invalidate() {
+        currentVersion.incrementAndGet();
+    }
+
+    /**
+     * @return Every plan by its ID.
+     */
+    Map<Integer, RatePlan> getPlans() {
+        return plans;
+    }
+
+    /**
+     * @return The plan with the given ID or <b>null</b> if there isn't one.
+     */
+    RatePlan getPlan(int planId) {
+        return plans.get(planId);
+    }
+
+    /**
+     * @return The human readable description of the plan with the given ID or <b>null</b> if there isn't one.
+     */
+    String getDescription(int planId) {
+        return descriptions.get(planId);
+    }
+
+    /**
+     * @param isResidential True for the residential plans, or false for the corporate ones.
+     * @return The plans in the order of their IDs.
+     */
+    List<RatePlan> getPlans(boolean isResidential) {
+        return isResidential ? residentialPlans : corporatePlans;
+    }
+
+}
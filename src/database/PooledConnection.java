@@ -0,0 +1,213 @@
+package database;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A long-lived connection that is owned by a {@link ConnectionPool}. Any statements that are created while the
+ * connection is borrowed are tracked so they can be closed once the connection is returned to the pool.
+ * <p></p>
+ * Prepared and callable statements are kept in a per-connection LRU cache keyed by their SQL text, so a statement
+ * is only parsed by Oracle once per connection and is re-executed with new bind variables afterwards. The cache size
+ * may be tuned with the <i>jog.pool.statementCacheSize</i> system property.
+ */
+final class PooledConnection {
+
+    private static final int STATEMENT_CACHE_SIZE = Math.max(1, Integer.getInteger("jog.pool.statementCacheSize",
+            64));
+
+    private final Connection connection;
+    private final long createdMillis;
+    private final List<Statement> openStatements = new ArrayList<>();
+    private final List<ResultSet> openResultSets = new ArrayList<>();
+    private final StatementCache statementCache = new StatementCache();
+
+    /**
+     * Read by the pool's evictor thread without holding the pool's lock.
+     */
+    private volatile long lastUsedMillis;
+
+    PooledConnection(Connection connection) {
+        this.connection = connection;
+        this.createdMillis = System.currentTimeMillis();
+        this.lastUsedMillis = createdMillis;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    void markUsed() {
+        lastUsedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates a plain statement that will be closed once the connection is returned to the pool.
+     *
+     * @return A new {@link Statement} bound to this connection.
+     * @throws SQLException If the statement could not be created.
+     */
+    Statement createStatement() throws SQLException {
+        Statement statement = connection.createStatement();
+        openStatements.add(statement);
+        return statement;
+    }
+
+    /**
+     * Retrieves a prepared statement for the given SQL from the statement cache, preparing it if it isn't cached.
+     * The returned statement must not be closed by the caller.
+     *
+     * @param sql The SQL, using <i>?</i> for every bind variable.
+     * @return A cached {@link PreparedStatement} with its parameters cleared.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        String key = "S:" + sql;
+        PreparedStatement statement = statementCache.get(key);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statementCache.put(key, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Retrieves a callable statement for the given procedure call from the statement cache, preparing it if it isn't
+     * cached. The returned statement must not be closed by the caller.
+     *
+     * @param sql The procedure call, such as <i>{call SEND_PHONE_CALL(?, ?, ?, ?)}</i>.
+     * @return A cached {@link CallableStatement} with its parameters cleared.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    CallableStatement prepareCall(String sql) throws SQLException {
+        String key = "C:" + sql;
+        CallableStatement statement = (CallableStatement) statementCache.get(key);
+        if (statement == null) {
+            statement = connection.prepareCall(sql);
+            statementCache.put(key, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Tracks a result set so it gets closed once the connection is returned to the pool.
+     *
+     * @param resultSet The result set that was produced by one of the cached statements.
+     * @return The same result set, for convenience.
+     */
+    ResultSet trackResultSet(ResultSet resultSet) {
+        openResultSets.add(resultSet);
+        return resultSet;
+    }
+
+    /**
+     * Checks if the underlying connection is still usable.
+     *
+     * @param timeoutSeconds The maximum amount of time to wait for the database to respond.
+     * @return True if the connection is open and responded in time, false otherwise.
+     */
+    boolean isValid(int timeoutSeconds) {
+        try {
+            return !connection.isClosed() && connection.isValid(timeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes every statement opened during the last borrow and puts the connection back into auto-commit mode so
+     * the next borrower starts from a clean slate.
+     *
+     * @return True if the connection can be reused, false if it should be discarded.
+     */
+    boolean reset() {
+        for (ResultSet resultSet : openResultSets) {
+            try {
+                resultSet.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        openResultSets.clear();
+        for (Statement statement : openStatements) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        openStatements.clear();
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            markUsed();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        reset();
+        statementCache.closeAll();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * An access-ordered map that closes the least recently used statement once the cache grows past its capacity.
+     */
+    private static final class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+
+        private static final long serialVersionUID = 1L;
+
+        private StatementCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException ignored) {
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void closeAll() {
+            for (PreparedStatement statement : values()) {
+                try {
+                    statement.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            clear();
+        }
+
+    }
+
+}
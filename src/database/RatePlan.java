@@ -0,0 +1,179 @@
+package database;
+
+import database.TableConstants.Plans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * An immutable row of the PLANS table, kept in the units the database uses: rates per text, per second of calls and
+ * per megabyte of data. It prices usage the same way the usage procedures charge a bill and can be turned into a
+ * {@link PlanParser} to describe the plan to a customer. Any limit that is <b>0</b> corresponds to a <b>null</b> in the
+ * SQL and means there is no limit.
+ * <p></p>
+ * The pricing of each kind of usage is compiled into a {@link Tariff} when the plan is read, so rating an event doesn't
+ * look at the hard limit or check for a missing limit again. Unlimited and hard limit plans become a tariff whose limit
+ * is never reached, so every plan is priced by the same final class and the call stays monomorphic for the JIT. The
+ * tariffs and the base rate price usage in the fixed point units of {@link Money}.
+ */
+public final class RatePlan {
+
+    private final int planId;
+    private final String planName;
+    private final boolean hardLimit;
+    private final boolean residential;
+    private final int limitTexts;
+    private final int limitCallsSeconds;
+    private final int limitInternetMegabytes;
+    private final double rateTexts;
+    private final double rateCallsSeconds;
+    private final double rateInternetMegabytes;
+    private final double overdraftRateTexts;
+    private final double overdraftRateCallsSeconds;
+    private final double overdraftRateInternetMegabytes;
+    private final double baseRate;
+    private final long baseRateUnits;
+    private final Tariff textsTariff;
+    private final Tariff callSecondsTariff;
+    private final Tariff megabytesTariff;
+
+    private RatePlan(ResultSet resultSet) throws SQLException {
+        planId = resultSet.getInt(Plans.PLAN_ID);
+        planName = resultSet.getString(Plans.P_NAME);
+        hardLimit = resultSet.getInt(Plans.HARD_LIMIT) == 1;
+        residential = resultSet.getInt(Plans.IS_RESIDENTIAL) == 1;
+        limitTexts = resultSet.getInt(Plans.LIMIT_TEXTS);
+        limitCallsSeconds = resultSet.getInt(Plans.LIMIT_CALLS_SECONDS);
+        limitInternetMegabytes = resultSet.getInt(Plans.LIMIT_INTERNET_MB);
+        rateTexts = resultSet.getDouble(Plans.RATE_TEXTS);
+        rateCallsSeconds = resultSet.getDouble(Plans.RATE_CALLS_SECONDS);
+        rateInternetMegabytes = resultSet.getDouble(Plans.RATE_INTERNET_MB);
+        overdraftRateTexts = resultSet.getDouble(Plans.OVERDRAFT_RATE_TEXTS);
+        overdraftRateCallsSeconds = resultSet.getDouble(Plans.OVERDRAFT_RATE_CALLS_SECONDS);
+        overdraftRateInternetMegabytes = resultSet.getDouble(Plans.OVERDRAFT_RATE_INTERNET_MB);
+        baseRate = resultSet.getDouble(Plans.BASE_RATE);
+        baseRateUnits = Money.fromDecimal(resultSet.getBigDecimal(Plans.BASE_RATE));
+        textsTariff = Tariff.compile(hardLimit, limitTexts,
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.RATE_TEXTS)),
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.OVERDRAFT_RATE_TEXTS)));
+        callSecondsTariff = Tariff.compile(hardLimit, limitCallsSeconds,
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.RATE_CALLS_SECONDS)),
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.OVERDRAFT_RATE_CALLS_SECONDS)));
+        megabytesTariff = Tariff.compile(hardLimit, limitInternetMegabytes,
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.RATE_INTERNET_MB)),
+                Money.fromDecimal(resultSet.getBigDecimal(Plans.OVERDRAFT_RATE_INTERNET_MB)));
+    }
+
+    /**
+     * Reads the plan in the current row of a query over the PLANS table, which must select every column of the table.
+     */
+    static RatePlan fromResultSet(ResultSet resultSet) throws SQLException {
+        return new RatePlan(resultSet);
+    }
+
+    public int getPlanId() {
+        return planId;
+    }
+
+    public String getPlanName() {
+        return planName;
+    }
+
+    public boolean isHardLimit() {
+        return hardLimit;
+    }
+
+    public boolean isResidential() {
+        return residential;
+    }
+
+    /**
+     * @return A parser that describes the plan to a customer, in minutes and gigabytes instead of the seconds and
+     * megabytes that are stored in the database.
+     */
+    public PlanParser toPlanParser() {
+        return new PlanParser(planName, hardLimit ? 1 : 0, limitTexts, limitCallsSeconds / 60,
+                limitInternetMegabytes / 1024, rateTexts, rateCallsSeconds * 60, rateInternetMegabytes * 1024,
+                overdraftRateTexts, overdraftRateCallsSeconds * 60, overdraftRateInternetMegabytes * 1024, baseRate);
+    }
+
+    /**
+     * @param textsBefore The incoming and outgoing texts that were already charged in the billing period.
+     * @param texts       The number of texts to charge.
+     * @return The charge for the texts, in units of {@link Money}.
+     */
+    public long rateTexts(long textsBefore, long texts) {
+        return textsTariff.rate(textsBefore, texts);
+    }
+
+    /**
+     * @param secondsBefore The seconds of incoming and outgoing calls that were already charged in the billing period.
+     * @param seconds       The length of the call, in seconds.
+     * @return The charge for the call, in units of {@link Money}.
+     */
+    public long rateCallSeconds(long secondsBefore, long seconds) {
+        return callSecondsTariff.rate(secondsBefore, seconds);
+    }
+
+    /**
+     * @param megabytesBefore The megabytes that were already charged in the billing period.
+     * @param megabytes       The megabytes of data to charge.
+     * @return The charge for the data, in units of {@link Money}.
+     */
+    public long rateMegabytes(long megabytesBefore, long megabytes) {
+        return megabytesTariff.rate(megabytesBefore, megabytes);
+    }
+
+    /**
+     * The base rate is accumulated evenly throughout the month, so a bill holds the share of it for every day up to
+     * its latest usage. For example, usage on the 2nd of a 31 day month charges (2 / 31) of the base rate.
+     *
+     * @param day         The day of the month, starting at 1.
+     * @param daysInMonth The number of days in the month.
+     * @return The share of the base rate that has been accumulated by the end of the given day, in units of
+     * {@link Money}, rounded down. The share of the last day is the whole base rate.
+     */
+    public long getBaseCharge(int day, int daysInMonth) {
+        return baseRateUnits * day / daysInMonth;
+    }
+
+    /**
+     * The pricing of one kind of usage. The usage within the limit is charged at the rate and the usage over it at the
+     * overdraft rate.
+     */
+    private static final class Tariff {
+
+        /**
+         * The limit of a tariff that's charged at its rate no matter how much is used.
+         */
+        private static final long UNLIMITED = Long.MAX_VALUE;
+
+        private final long limit;
+        private final long rate;
+        private final long overdraftRate;
+
+        private Tariff(long limit, long rate, long overdraftRate) {
+            this.limit = limit;
+            this.rate = rate;
+            this.overdraftRate = overdraftRate;
+        }
+
+        /**
+         * A plan without a limit charges all of its usage at the rate. So does a hard limit plan, since the database
+         * rejects the usage that would go over its limit.
+         */
+        private static Tariff compile(boolean hardLimit, int limit, long rate, long overdraftRate) {
+            if (limit <= 0 || hardLimit) {
+                return new Tariff(UNLIMITED, rate, rate);
+            }
+            return new Tariff(limit, rate, overdraftRate);
+        }
+
+        private long rate(long before, long amount) {
+            long withinLimit = Math.min(amount, Math.max(0, limit - before));
+            return withinLimit * rate + (amount - withinLimit) * overdraftRate;
+        }
+
+    }
+
+}
@@ -0,0 +1,351 @@
+package database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prices usage in Java instead of in the usage procedures, so the charges of many events can be summed up and sent
+ * to the BILL table as one {@link BillDelta} per account and billing period.
+ * <p></p>
+ * The engine takes every plan from the {@link PlanCatalog} and loads the current plan of every account once. It keeps
+ * the texts, call seconds and megabytes that it has rated for each bill, since the usage over a limit is charged at
+ * the plan's overdraft rate. Texts and calls are charged to the accounts of both phones, and internet usage to the
+ * account of the source phone. A bill is rated with the plan it was started with, which is the account's current plan
+ * unless {@link #setBillPlan(int, String, int)} says otherwise.
+ * <p></p>
+ * The engine may be used from several threads at once. Each bill is rated under its own lock, but the usage of one
+ * account should be rated in the order it happened for the overdraft charges to land on the right events.
+ */
+public final class RatingEngine {
+
+    private static final String ACCOUNT_PLANS_QUERY = "SELECT\n" +
+            "  A_ID,\n" +
+            "  CURRENT_PLAN\n" +
+            "FROM ACCOUNT";
+
+    /**
+     * Every text, call and internet usage of a billing period, in the order they happened.
+     */
+    private static final String USAGE_LOG_QUERY = "SELECT\n" +
+            "  USAGE_TYPE,\n" +
+            "  SOURCE_PHONE,\n" +
+            "  DEST_PHONE,\n" +
+            "  to_char(START_TIME, 'yyyy-MM-dd HH24:mi:ss') AS START_TIME,\n" +
+            "  to_char(END_TIME, 'yyyy-MM-dd HH24:mi:ss') AS END_TIME,\n" +
+            "  AMOUNT\n" +
+            "FROM (SELECT 'T' AS USAGE_TYPE, SOURCE_PHONE, DEST_PHONE, TIME_SENT AS START_TIME,\n" +
+            "        TIME_SENT AS END_TIME, 0 AS AMOUNT\n" +
+            "      FROM TEXT_LOG\n" +
+            "      WHERE TIME_SENT >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "            AND TIME_SENT < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "      UNION ALL\n" +
+            "      SELECT 'C', SOURCE_PHONE, DEST_PHONE, START_TIME, END_TIME, 0\n" +
+            "      FROM CALL_LOG\n" +
+            "      WHERE START_TIME >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "            AND START_TIME < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1)\n" +
+            "      UNION ALL\n" +
+            "      SELECT 'I', SOURCE_PHONE, 0, USAGE_DATE, USAGE_DATE, AMOUNT_MEGABYTES\n" +
+            "      FROM INTERNET_USAGE\n" +
+            "      WHERE USAGE_DATE >= to_date(?, 'yyyy-MM-dd HH24:mi:ss')\n" +
+            "            AND USAGE_DATE < add_months(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 1))\n" +
+            "ORDER BY 4";
+
+    /**
+     * The number of usage rows the driver fetches per round trip while a billing period is rated.
+     */
+    private static final int USAGE_LOG_FETCH_SIZE = 5000;
+
+    private final Map<Integer, RatePlan> plans;
+    private final Map<Integer, Integer> accountPlans;
+    private final ConcurrentHashMap<Long, BillRating> billRatings = new ConcurrentHashMap<>();
+
+    private RatingEngine(Map<Integer, RatePlan> plans, Map<Integer, Integer> accountPlans) {
+        this.plans = plans;
+        this.accountPlans = accountPlans;
+    }
+
+    /**
+     * Loads every plan and the current plan of every account. The caller is responsible for logging out of the
+     * connection that was used.
+     */
+    static RatingEngine load(DatabaseApi databaseApi) throws SQLException {
+        Map<Integer, RatePlan> plans = PlanCatalog.get(databaseApi).getPlans();
+        Map<Integer, Integer> accountPlans = new HashMap<>();
+        ResultSet resultSet = databaseApi.executeQuery(ACCOUNT_PLANS_QUERY);
+        while (resultSet.next()) {
+            accountPlans.put(resultSet.getInt(TableConstants.Account.A_ID),
+                    resultSet.getInt(TableConstants.Account.CURRENT_PLAN));
+        }
+        return new RatingEngine(plans, Collections.unmodifiableMap(accountPlans));
+    }
+
+    /**
+     * @return The ID of every account, in ascending order.
+     */
+    int[] getAccountIds() {
+        int[] accountIds = new int[accountPlans.size()];
+        int i = 0;
+        for (int accountId : accountPlans.keySet()) {
+            accountIds[i++] = accountId;
+        }
+        Arrays.sort(accountIds);
+        return accountIds;
+    }
+
+    /**
+     * @return The plan with the given ID or <b>null</b> if there isn't one.
+     */
+    public RatePlan getPlan(int planId) {
+        return plans.get(planId);
+    }
+
+    /**
+     * Makes a bill be rated with the given plan, which should be the PLAN_ID of its BILL row. Must be called before
+     * any of the bill's usage is rated.
+     *
+     * @param accountId     The account that owns the bill.
+     * @param billingPeriod Any time within the billing period, as "yyyy-MM-dd HH:mm:ss".
+     * @param planId        The plan that the bill was started with.
+     */
+    public void setBillPlan(int accountId, String billingPeriod, int planId) {
+        RatePlan ratePlan = getRatePlan(planId);
+        int period = getPeriod(billingPeriod);
+        billRatings.putIfAbsent(getBillKey(accountId, period), new BillRating(accountId, period, ratePlan));
+    }
+
+    /**
+     * Rates an event for every account that it is charged to.
+     *
+     * @param event              The text, call or internet usage to rate.
+     * @param sourceAccount      The account of the source phone or {@link PhoneAccountIndex#NO_ACCOUNT}.
+     * @param destinationAccount The account of the destination phone or {@link PhoneAccountIndex#NO_ACCOUNT}. Ignored
+     *                           for internet usage.
+     */
+    public void rate(UsageEvent event, int sourceAccount, int destinationAccount) {
+        if (sourceAccount != PhoneAccountIndex.NO_ACCOUNT) {
+            rate(sourceAccount, event);
+        }
+        if (event.getType() != UsageEvent.Type.INTERNET && destinationAccount != PhoneAccountIndex.NO_ACCOUNT &&
+                destinationAccount != sourceAccount) {
+            rate(destinationAccount, event);
+        }
+    }
+
+    /**
+     * Rates an event for a single account.
+     *
+     * @param accountId The account whose bill is charged.
+     * @param event     The text, call or internet usage to rate.
+     * @return The amount that was added to the account's bill, in units of {@link Money}.
+     */
+    public long rate(int accountId, UsageEvent event) {
+        BillRating billRating = getBillRating(accountId, getPeriod(event.getStartTime()));
+        synchronized (billRating) {
+            return billRating.rate(event);
+        }
+    }
+
+    /**
+     * Charges the rest of the base rate to a bill once its billing period is over, so a bill ends up holding the
+     * whole base rate even if the account had no usage on the last days of the month, or at all.
+     *
+     * @param accountId     The account that owns the bill.
+     * @param billingPeriod Any time within the billing period, as "yyyy-MM-dd HH:mm:ss".
+     * @return The bill's plan along with every charge that was rated for it, including the base rate, instead of
+     * only the ones since the last {@link #drainBillDeltas()}.
+     */
+    BillDelta closeBill(int accountId, String billingPeriod) {
+        BillRating billRating = getBillRating(accountId, getPeriod(billingPeriod));
+        synchronized (billRating) {
+            billRating.chargeBaseRate(billRating.daysInMonth);
+            return new BillDelta(accountId, getBillingPeriod(billRating.period), billRating.ratePlan.getPlanId(),
+                    billRating.totalCharges);
+        }
+    }
+
+    /**
+     * Collects the charges that were rated since the last call, one delta per bill, and starts counting from zero
+     * again. The usage that was rated so far is kept, so later usage is still charged against the plan's limits.
+     *
+     * @return The charges of every bill that changed.
+     */
+    public List<BillDelta> drainBillDeltas() {
+        List<BillDelta> billDeltas = new ArrayList<>();
+        for (BillRating billRating : billRatings.values()) {
+            synchronized (billRating) {
+                if (billRating.pendingCharges != 0) {
+                    billDeltas.add(new BillDelta(billRating.accountId, getBillingPeriod(billRating.period),
+                            billRating.ratePlan.getPlanId(), billRating.pendingCharges));
+                    billRating.pendingCharges = 0;
+                }
+            }
+        }
+        return billDeltas;
+    }
+
+    /**
+     * Rates every usage that was logged in a billing period, in the order it happened. The caller is responsible for
+     * logging out of the connection that was used.
+     *
+     * @param billingPeriod     The first moment of the billing period, as "yyyy-MM-01 00:00:00".
+     * @param phoneAccountIndex The accounts that own each phone.
+     * @return The number of usages that were rated.
+     */
+    int rateBillingPeriod(DatabaseApi databaseApi, String billingPeriod, PhoneAccountIndex phoneAccountIndex)
+            throws SQLException {
+        ResultSet resultSet = databaseApi.executeQuery(USAGE_LOG_QUERY, billingPeriod, billingPeriod, billingPeriod,
+                billingPeriod, billingPeriod, billingPeriod);
+        return rateUsageLog(resultSet, phoneAccountIndex);
+    }
+
+    private int rateUsageLog(ResultSet resultSet, PhoneAccountIndex phoneAccountIndex) throws SQLException {
+        resultSet.setFetchSize(USAGE_LOG_FETCH_SIZE);
+        int count = 0;
+        while (resultSet.next()) {
+            long sourcePhone = resultSet.getLong("SOURCE_PHONE");
+            long destinationPhone = resultSet.getLong("DEST_PHONE");
+            String startTime = resultSet.getString("START_TIME");
+            UsageEvent event;
+            switch (resultSet.getString("USAGE_TYPE")) {
+                case "T":
+                    event = UsageEvent.text(sourcePhone, destinationPhone, startTime, startTime, 0);
+                    break;
+                case "C":
+                    event = UsageEvent.call(sourcePhone, destinationPhone, startTime,
+                            resultSet.getString("END_TIME"));
+                    break;
+                default:
+                    event = UsageEvent.internet(sourcePhone, startTime, resultSet.getInt("AMOUNT"));
+                    break;
+            }
+            rate(event, phoneAccountIndex.getAccount(sourcePhone), phoneAccountIndex.getAccount(destinationPhone));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The length of a call, in seconds.
+     */
+    static long getCallSeconds(UsageEvent event) {
+        return toEpochSeconds(event.getEndTime()) - toEpochSeconds(event.getStartTime());
+    }
+
+    private BillRating getBillRating(int accountId, int period) {
+        long key = getBillKey(accountId, period);
+        BillRating billRating = billRatings.get(key);
+        if (billRating == null) {
+            Integer planId = accountPlans.get(accountId);
+            if (planId == null) {
+                throw new IllegalArgumentException("Invalid account, found: " + accountId);
+            }
+            billRating = billRatings.computeIfAbsent(key, k -> new BillRating(accountId, period,
+                    getRatePlan(planId)));
+        }
+        return billRating;
+    }
+
+    private RatePlan getRatePlan(int planId) {
+        RatePlan ratePlan = plans.get(planId);
+        if (ratePlan == null) {
+            throw new IllegalArgumentException("Invalid plan, found: " + planId);
+        }
+        return ratePlan;
+    }
+
+    private static long toEpochSeconds(String dateTime) {
+        return LocalDateTime.parse(dateTime.replace(' ', 'T')).toEpochSecond(ZoneOffset.UTC);
+    }
+
+    /**
+     * @return The billing period of the given time, counted in months since year 0.
+     */
+    static int getPeriod(String dateTime) {
+        int year = Integer.parseInt(dateTime.substring(0, 4));
+        int month = Integer.parseInt(dateTime.substring(5, 7));
+        return year * 12 + month - 1;
+    }
+
+    static String getBillingPeriod(int period) {
+        return String.format("%04d-%02d-01 00:00:00", period / 12, period % 12 + 1);
+    }
+
+    static long getBillKey(int accountId, int period) {
+        return (long) accountId << 32 | period;
+    }
+
+    /**
+     * The usage that has been rated for one bill. Guarded by itself.
+     */
+    private static final class BillRating {
+
+        private final int accountId;
+        private final int period;
+        private final RatePlan ratePlan;
+        private final int daysInMonth;
+        private long texts;
+        private long callSeconds;
+        private long megabytes;
+        private int baseChargeDay;
+        private long pendingCharges;
+        private long totalCharges;
+
+        private BillRating(int accountId, int period, RatePlan ratePlan) {
+            this.accountId = accountId;
+            this.period = period;
+            this.ratePlan = ratePlan;
+            daysInMonth = YearMonth.of(period / 12, period % 12 + 1).lengthOfMonth();
+        }
+
+        private long rate(UsageEvent event) {
+            long charge;
+            switch (event.getType()) {
+                case TEXT:
+                    charge = ratePlan.rateTexts(texts, 1);
+                    texts++;
+                    break;
+                case CALL:
+                    long seconds = getCallSeconds(event);
+                    charge = ratePlan.rateCallSeconds(callSeconds, seconds);
+                    callSeconds += seconds;
+                    break;
+                default:
+                    charge = ratePlan.rateMegabytes(megabytes, event.getAmount());
+                    megabytes += event.getAmount();
+                    break;
+            }
+            pendingCharges += charge;
+            totalCharges += charge;
+            return charge + chargeBaseRate(Integer.parseInt(event.getStartTime().substring(8, 10)));
+        }
+
+        /**
+         * Charges the share of the base rate up to the end of the given day, if it wasn't charged already.
+         *
+         * @return The amount that was charged.
+         */
+        private long chargeBaseRate(int day) {
+            if (day <= baseChargeDay) {
+                return 0;
+            }
+            long charge = ratePlan.getBaseCharge(day, daysInMonth) - ratePlan.getBaseCharge(baseChargeDay,
+                    daysInMonth);
+            baseChargeDay = day;
+            pendingCharges += charge;
+            totalCharges += charge;
+            return charge;
+        }
+
+    }
+
+}
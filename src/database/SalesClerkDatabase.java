@@ -53,12 +53,12 @@ public class SalesClerkDatabase {
                 "  QUANTITY\n" +
                 "FROM STOCKS\n" +
                 "NATURAL JOIN PHONE_MODEL\n" +
-                "WHERE STORE_NUMBER = " + storeNumber + "\n" +
-                "      AND PHONE_ID = " + phoneId + "\n" +
+                "WHERE STORE_NUMBER = ?\n" +
+                "      AND PHONE_ID = ?\n" +
                 "ORDER BY PHONE_ID ASC";
         try {
 
-            ResultSet resultSet = databaseApi.executeQuery(query);
+            ResultSet resultSet = databaseApi.executeQuery(query, storeNumber, phoneId);
             if (!ResultSetHelper.isResultSetValid(resultSet, "No inventory was found!")) {
                 return;
             }
@@ -87,9 +87,9 @@ public class SalesClerkDatabase {
      * @param quantity    The quantity of the phone that should be replenished.
      */
     public void buyMoreInventory(int storeNumber, int phoneId, int quantity) {
-        String procedure = "{CALL BUY_MORE_INVENTORY(" + storeNumber + ", " + phoneId + ", " + quantity + ")}";
+        String procedure = "{CALL BUY_MORE_INVENTORY(?, ?, ?)}";
         try {
-            databaseApi.executeProcedure(procedure);
+            databaseApi.executeProcedure(procedure, storeNumber, phoneId, quantity);
             System.out.println("Successfully refilled store number " + storeNumber + "\'s inventory!");
             System.out.println();
         } catch (SQLException e) {
@@ -112,5 +112,19 @@ interface TableConstants {
 
     }
 
+    interface UsageRollup {
+        String A_ID = "A_ID";
+        String USAGE_DAY = "USAGE_DAY";
+        String TEXTS = "TEXTS";
+        String CALL_SECONDS = "CALL_SECONDS";
+        String MEGABYTES = "MEGABYTES";
+
+        ColumnTypes A_ID_TYPE = INTEGER;
+        ColumnTypes USAGE_DAY_TYPE = DATE;
+        ColumnTypes TEXTS_TYPE = INTEGER;
+        ColumnTypes CALL_SECONDS_TYPE = LONG;
+        ColumnTypes MEGABYTES_TYPE = LONG;
+    }
+
 
 }
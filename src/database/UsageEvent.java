@@ -0,0 +1,97 @@
+package database;
+
+/**
+ * A single text message, phone call or internet usage record that can be queued and sent to the database in a batch
+ * with {@link CustomerUsageDatabase#executeUsageBatch(java.util.List)}.
+ */
+public final class UsageEvent {
+
+    public enum Type {
+        TEXT, CALL, INTERNET
+    }
+
+    private final Type type;
+    private final long sourcePhone;
+    private final long destinationPhone;
+    private final String startTime;
+    private final String endTime;
+    private final int amount;
+
+    private UsageEvent(Type type, long sourcePhone, long destinationPhone, String startTime, String endTime,
+                       int amount) {
+        this.type = type;
+        this.sourcePhone = sourcePhone;
+        this.destinationPhone = destinationPhone;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.amount = amount;
+    }
+
+    /**
+     * @param sourcePhone      The phone that is sending the text message.
+     * @param destinationPhone The phone that is receiving the text message.
+     * @param timeSent         The time that the source phone sent the text message, as "yyyy-MM-dd HH:mm:ss".
+     * @param timeReceived     The time that the receiving phone got the text message, as "yyyy-MM-dd HH:mm:ss".
+     * @param bytes            The size of the text message, in bytes.
+     * @return A new text message event.
+     */
+    public static UsageEvent text(long sourcePhone, long destinationPhone, String timeSent, String timeReceived,
+                                  int bytes) {
+        return new UsageEvent(Type.TEXT, sourcePhone, destinationPhone, timeSent, timeReceived, bytes);
+    }
+
+    /**
+     * @param sourcePhone      The phone that made the call.
+     * @param destinationPhone The phone that received the call.
+     * @param startTime        The time that the call started, as "yyyy-MM-dd HH:mm:ss".
+     * @param endTime          The time that the call ended, as "yyyy-MM-dd HH:mm:ss".
+     * @return A new phone call event.
+     */
+    public static UsageEvent call(long sourcePhone, long destinationPhone, String startTime, String endTime) {
+        return new UsageEvent(Type.CALL, sourcePhone, destinationPhone, startTime, endTime, 0);
+    }
+
+    /**
+     * @param sourcePhone    The phone that used the data.
+     * @param usageDate      The date that the data was accessed, as "yyyy-MM-dd HH:mm:ss".
+     * @param megabyteAmount The amount of data that was used, in megabytes.
+     * @return A new internet usage event.
+     */
+    public static UsageEvent internet(long sourcePhone, String usageDate, int megabyteAmount) {
+        return new UsageEvent(Type.INTERNET, sourcePhone, 0, usageDate, null, megabyteAmount);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getSourcePhone() {
+        return sourcePhone;
+    }
+
+    /**
+     * @return The destination phone or <b>0</b> for internet usage, which has no destination.
+     */
+    public long getDestinationPhone() {
+        return destinationPhone;
+    }
+
+    public String getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The end time of the event or <b>null</b> for internet usage.
+     */
+    public String getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return The number of bytes for a text message, megabytes for internet usage or <b>0</b> for a phone call.
+     */
+    public int getAmount() {
+        return amount;
+    }
+
+}
@@ -0,0 +1,277 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps the USAGE_ROLLUP table, which holds the texts, call seconds and megabytes of every account per day, so usage
+ * reports read a row per day of the period instead of scanning the usage logs. The table is created by
+ * <i>insertion_queries/usage_rollup_table.sql</i>.
+ * <p></p>
+ * Once the <i>jog.usage.rollups</i> system property is set to true, {@link CustomerUsageDatabase} adds every usage it
+ * records to the rollups in the same transaction as the usage itself, and the reports read the rollups. Texts and
+ * calls count once for each account that owns one of their phones and internet usage counts for the account of the
+ * source phone, the same way the reports count the logs. The rollups should be rebuilt from the logs with
+ * {@link #rebuild(String)} before the property is turned on, and whenever usage was recorded without it.
+ */
+public final class UsageRollups {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jog.usage.rollups", "false"));
+
+    private static final int IN_LIST_SIZE = 1000;
+
+    /**
+     * The accounts that own some phones.
+     */
+    private static final String PHONE_ACCOUNTS_QUERY = "SELECT DISTINCT\n" +
+            "  A_ID,\n" +
+            "  PHONE_NUMBER\n" +
+            "FROM SUBSCRIBES\n" +
+            "WHERE PHONE_NUMBER IN (" + getInList() + ")";
+
+    /**
+     * Adds usage to the rollup of an account on one day. Writers of other accounts may share the row, since texts and
+     * calls count for the destination's account too, so a row that another session inserted first is updated instead.
+     */
+    private static final String ADD_USAGE = "DECLARE\n" +
+            "  account_id NUMBER := ?;\n" +
+            "  rollup_day DATE := to_date(?, 'yyyy-MM-dd');\n" +
+            "  added_texts NUMBER := ?;\n" +
+            "  added_call_seconds NUMBER := ?;\n" +
+            "  added_megabytes NUMBER := ?;\n" +
+            "BEGIN\n" +
+            "  UPDATE USAGE_ROLLUP R SET\n" +
+            "    R.TEXTS = R.TEXTS + added_texts,\n" +
+            "    R.CALL_SECONDS = R.CALL_SECONDS + added_call_seconds,\n" +
+            "    R.MEGABYTES = R.MEGABYTES + added_megabytes\n" +
+            "  WHERE R.A_ID = account_id AND R.USAGE_DAY = rollup_day;\n" +
+            "  IF SQL%ROWCOUNT = 0 THEN\n" +
+            "    BEGIN\n" +
+            "      INSERT INTO USAGE_ROLLUP (A_ID, USAGE_DAY, TEXTS, CALL_SECONDS, MEGABYTES)\n" +
+            "      VALUES (account_id, rollup_day, added_texts, added_call_seconds, added_megabytes);\n" +
+            "    EXCEPTION\n" +
+            "      WHEN DUP_VAL_ON_INDEX THEN\n" +
+            "        UPDATE USAGE_ROLLUP R SET\n" +
+            "          R.TEXTS = R.TEXTS + added_texts,\n" +
+            "          R.CALL_SECONDS = R.CALL_SECONDS + added_call_seconds,\n" +
+            "          R.MEGABYTES = R.MEGABYTES + added_megabytes\n" +
+            "        WHERE R.A_ID = account_id AND R.USAGE_DAY = rollup_day;\n" +
+            "    END;\n" +
+            "  END IF;\n" +
+            "END;";
+
+    private static final String DELETE_ROLLUPS = "DELETE FROM USAGE_ROLLUP";
+    private static final String DELETE_PERIOD_ROLLUPS = "DELETE FROM USAGE_ROLLUP\n" +
+            "WHERE USAGE_DAY >= trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM')\n" +
+            "      AND USAGE_DAY < add_months(trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM'), 1)";
+
+    private static final String REBUILD_ROLLUPS = getRebuildQuery("", "", "");
+    private static final String REBUILD_PERIOD_ROLLUPS = getRebuildQuery(
+            "\n      WHERE T.TIME_SENT >= trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM')\n" +
+                    "            AND T.TIME_SENT < add_months(trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM'), 1)",
+            "\n      WHERE C.START_TIME >= trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM')\n" +
+                    "            AND C.START_TIME < add_months(trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM'), 1)",
+            "\n      WHERE I.USAGE_DATE >= trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM')\n" +
+                    "            AND I.USAGE_DATE < add_months(trunc(to_date(?, 'yyyy-MM-dd HH24:mi:ss'), 'MM'), 1)");
+
+    private final DatabaseApi databaseApi;
+
+    public UsageRollups() {
+        databaseApi = DatabaseApi.getInstance();
+    }
+
+    /**
+     * @return True if the rollups are kept up to date and used by the reports.
+     */
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Adds usage that was recorded in the current thread's open transaction to the rollups. The usage is summed up per
+     * account and day first, so each row costs a single update, and the rows are updated in account and then day
+     * order, so sessions that add usage to the same accounts lock their rows in the same order and never deadlock.
+     *
+     * @param events The usage that was recorded successfully.
+     */
+    void addUsage(List<UsageEvent> events) throws SQLException {
+        if (events.isEmpty()) {
+            return;
+        }
+        Map<Long, Set<Integer>> phoneAccounts = getPhoneAccounts(events);
+        // Keyed by the account in the high half and the day as yyyyMMdd in the low half, so they sort in that order
+        TreeMap<Long, long[]> accountDayUsage = new TreeMap<>();
+        Set<Integer> accounts = new HashSet<>();
+        for (UsageEvent event : events) {
+            accounts.clear();
+            addAccounts(accounts, phoneAccounts, event.getSourcePhone());
+            if (event.getType() != UsageEvent.Type.INTERNET) {
+                addAccounts(accounts, phoneAccounts, event.getDestinationPhone());
+            }
+            long day = Long.parseLong(event.getStartTime().substring(0, 10).replace("-", ""));
+            for (int accountId : accounts) {
+                long key = (long) accountId << 32 | day;
+                long[] usage = accountDayUsage.get(key);
+                if (usage == null) {
+                    usage = new long[3];
+                    accountDayUsage.put(key, usage);
+                }
+                switch (event.getType()) {
+                    case TEXT:
+                        usage[0]++;
+                        break;
+                    case CALL:
+                        usage[1] += RatingEngine.getCallSeconds(event);
+                        break;
+                    default:
+                        usage[2] += event.getAmount();
+                        break;
+                }
+            }
+        }
+
+        PreparedStatement statement = databaseApi.prepareStatement(ADD_USAGE);
+        statement.clearBatch();
+        for (Map.Entry<Long, long[]> entry : accountDayUsage.entrySet()) {
+            int accountId = (int) (entry.getKey() >>> 32);
+            int day = (int) (entry.getKey() & 0xFFFFFFFFL);
+            long[] usage = entry.getValue();
+            DatabaseApi.bindParameters(statement, accountId,
+                    String.format("%04d-%02d-%02d", day / 10000, day / 100 % 100, day % 100), usage[0], usage[1],
+                    usage[2]);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    /**
+     * Reads the accounts that own the phones of the usage, {@link #IN_LIST_SIZE} phones at a time.
+     */
+    private Map<Long, Set<Integer>> getPhoneAccounts(List<UsageEvent> events) throws SQLException {
+        Set<Long> phoneSet = new HashSet<>();
+        for (UsageEvent event : events) {
+            phoneSet.add(event.getSourcePhone());
+            if (event.getType() != UsageEvent.Type.INTERNET) {
+                phoneSet.add(event.getDestinationPhone());
+            }
+        }
+        List<Long> phones = new ArrayList<>(phoneSet);
+        Map<Long, Set<Integer>> phoneAccounts = new HashMap<>();
+        for (int start = 0; start < phones.size(); start += IN_LIST_SIZE) {
+            int end = Math.min(phones.size(), start + IN_LIST_SIZE);
+            Object[] parameters = new Object[IN_LIST_SIZE];
+            for (int i = 0; i < IN_LIST_SIZE; i++) {
+                parameters[i] = phones.get(Math.min(start + i, end - 1));
+            }
+            ResultSet resultSet = databaseApi.executeQuery(PHONE_ACCOUNTS_QUERY, parameters);
+            while (resultSet.next()) {
+                long phone = resultSet.getLong("PHONE_NUMBER");
+                Set<Integer> accounts = phoneAccounts.get(phone);
+                if (accounts == null) {
+                    accounts = new HashSet<>();
+                    phoneAccounts.put(phone, accounts);
+                }
+                accounts.add(resultSet.getInt("A_ID"));
+            }
+        }
+        return phoneAccounts;
+    }
+
+    private static void addAccounts(Set<Integer> accounts, Map<Long, Set<Integer>> phoneAccounts, long phone) {
+        Set<Integer> phoneAccountIds = phoneAccounts.get(phone);
+        if (phoneAccountIds != null) {
+            accounts.addAll(phoneAccountIds);
+        }
+    }
+
+    /**
+     * Regenerates the rollups from the usage logs in a single transaction. Usage shouldn't be recorded while the
+     * rollups are rebuilt.
+     *
+     * @param billingPeriod Any time within the billing period to rebuild, as "yyyy-MM-dd HH:mm:ss", or <b>null</b> to
+     *                      rebuild every period.
+     * @return The number of rollup rows that were written.
+     * @throws SQLException If the rollups couldn't be rebuilt, in which case they are left as they were.
+     */
+    public int rebuild(String billingPeriod) throws SQLException {
+        try {
+            databaseApi.beginTransaction();
+            int rows;
+            if (billingPeriod == null) {
+                databaseApi.executeUpdate(DELETE_ROLLUPS);
+                rows = databaseApi.executeUpdate(REBUILD_ROLLUPS);
+            } else {
+                databaseApi.executeUpdate(DELETE_PERIOD_ROLLUPS, billingPeriod, billingPeriod);
+                rows = databaseApi.executeUpdate(REBUILD_PERIOD_ROLLUPS, billingPeriod, billingPeriod, billingPeriod,
+                        billingPeriod, billingPeriod, billingPeriod, billingPeriod, billingPeriod, billingPeriod,
+                        billingPeriod);
+            }
+            databaseApi.commit();
+            return rows;
+        } catch (SQLException e) {
+            try {
+                databaseApi.rollback();
+            } catch (SQLException ignored) {
+            }
+            throw e;
+        } finally {
+            databaseApi.logout();
+        }
+    }
+
+    /**
+     * Sums up the logs per account and day. Texts and calls are counted for the account of the source phone, and for
+     * the account of the destination phone unless it's the same one.
+     *
+     * @param textFilter     The WHERE clause of the texts, which are aliased as T.
+     * @param callFilter     The WHERE clause of the calls, which are aliased as C.
+     * @param internetFilter The WHERE clause of the internet usage, which is aliased as I.
+     */
+    private static String getRebuildQuery(String textFilter, String callFilter, String internetFilter) {
+        return "INSERT INTO USAGE_ROLLUP (A_ID, USAGE_DAY, TEXTS, CALL_SECONDS, MEGABYTES)\n" +
+                "SELECT\n" +
+                "  A_ID,\n" +
+                "  USAGE_DAY,\n" +
+                "  sum(TEXTS),\n" +
+                "  sum(CALL_SECONDS),\n" +
+                "  sum(MEGABYTES)\n" +
+                "FROM (SELECT T.SOURCE_PHONE, T.DEST_PHONE, trunc(T.TIME_SENT) AS USAGE_DAY, 1 AS TEXTS,\n" +
+                "        0 AS CALL_SECONDS, 0 AS MEGABYTES\n" +
+                "      FROM TEXT_LOG T" + textFilter + "\n" +
+                "      UNION ALL\n" +
+                "      SELECT C.SOURCE_PHONE, C.DEST_PHONE, trunc(C.START_TIME), 0,\n" +
+                "        round((C.END_TIME - C.START_TIME) * 86400), 0\n" +
+                "      FROM CALL_LOG C" + callFilter + "\n" +
+                "      UNION ALL\n" +
+                "      SELECT I.SOURCE_PHONE, I.SOURCE_PHONE, trunc(I.USAGE_DATE), 0, 0, I.AMOUNT_MEGABYTES\n" +
+                "      FROM INTERNET_USAGE I" + internetFilter + ") U\n" +
+                "  JOIN (SELECT DISTINCT A_ID, PHONE_NUMBER FROM SUBSCRIBES) S\n" +
+                "    ON S.PHONE_NUMBER = U.SOURCE_PHONE\n" +
+                "       OR (S.PHONE_NUMBER = U.DEST_PHONE\n" +
+                "           AND NOT EXISTS(SELECT 1\n" +
+                "                          FROM SUBSCRIBES SOURCE_ACCOUNT\n" +
+                "                          WHERE SOURCE_ACCOUNT.PHONE_NUMBER = U.SOURCE_PHONE\n" +
+                "                                AND SOURCE_ACCOUNT.A_ID = S.A_ID))\n" +
+                "GROUP BY A_ID, USAGE_DAY";
+    }
+
+    /**
+     * @return The parameters of an IN list of {@link #IN_LIST_SIZE} values. Shorter lists repeat their last value.
+     */
+    private static String getInList() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < IN_LIST_SIZE; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,201 @@
+package database;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the usage totals that customers look up for an account and billing period, so looking the same totals up
+ * again doesn't cost a query over the usage logs.
+ * <p></p>
+ * Each cached summary remembers the phones of its account. Every successful usage that this program records
+ * invalidates the summaries of the accounts that own its phones for the usage's billing period, and a summary that
+ * was queried while usage of one of its phones in the same period was being recorded is never cached, since it may
+ * have missed that usage.
+ * Usage that other programs record can't be seen, so summaries also expire after
+ * <i>jog.usage.summaryCacheMillis</i> milliseconds, which defaults to a minute.
+ */
+final class UsageSummaryCache {
+
+    private static final long TIME_TO_LIVE_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+            Long.getLong("jog.usage.summaryCacheMillis", 60000)));
+
+    /**
+     * The cache is simply emptied once it holds this many summaries.
+     */
+    private static final int MAXIMUM_SUMMARIES = 10000;
+
+    /**
+     * The versions of the phones are simply forgotten once this many are kept, which keeps every summary that was
+     * being queried from being cached.
+     */
+    private static final int MAXIMUM_PHONE_VERSIONS = 100000;
+
+    private static final UsageSummaryCache instance = new UsageSummaryCache();
+
+    private final ConcurrentHashMap<Long, UsageSummary> summaries = new ConcurrentHashMap<>();
+
+    /**
+     * The bill key of the summary that each phone and billing period belongs to.
+     */
+    private final ConcurrentHashMap<Long, Long> phoneSummaryKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the usage that was recorded, so a query can tell if usage of its phones was recorded while it ran.
+     */
+    private final AtomicLong usageVersion = new AtomicLong();
+
+    /**
+     * The version of the last usage that was recorded for each phone and billing period.
+     */
+    private final ConcurrentHashMap<Long, Long> phoneVersions = new ConcurrentHashMap<>();
+
+    /**
+     * The version at which {@link #phoneVersions} was last emptied. Older versions can't be checked anymore.
+     */
+    private volatile long clearedVersion;
+
+    private UsageSummaryCache() {
+    }
+
+    static UsageSummaryCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param period The billing period, counted in months as by {@link RatingEngine#getPeriod(String)}.
+     * @return The cached summary or <b>null</b> if there isn't one or it expired.
+     */
+    UsageSummary get(int accountId, int period) {
+        long key = RatingEngine.getBillKey(accountId, period);
+        UsageSummary usageSummary = summaries.get(key);
+        if (usageSummary != null && System.nanoTime() - usageSummary.cachedNanos > TIME_TO_LIVE_NANOS) {
+            summaries.remove(key, usageSummary);
+            return null;
+        }
+        return usageSummary;
+    }
+
+    /**
+     * @return The version to hand to {@link #put(int, int, long, UsageSummary, long[])}, which must be taken before
+     * the summary is queried.
+     */
+    long getVersion() {
+        return usageVersion.get();
+    }
+
+    /**
+     * Caches a summary, unless usage of one of its phones in its billing period was recorded since the version was
+     * taken.
+     *
+     * @param phones The phones of the account.
+     */
+    void put(int accountId, int period, long version, UsageSummary usageSummary, long[] phones) {
+        if (TIME_TO_LIVE_NANOS == 0 || !isCurrent(period, version, phones)) {
+            return;
+        }
+        if (summaries.size() >= MAXIMUM_SUMMARIES) {
+            summaries.clear();
+            phoneSummaryKeys.clear();
+        }
+        long key = RatingEngine.getBillKey(accountId, period);
+        for (long phone : phones) {
+            phoneSummaryKeys.put(getPhoneKey(phone, period), key);
+        }
+        summaries.put(key, usageSummary);
+        if (!isCurrent(period, version, phones)) {
+            // Usage was recorded while the summary was being cached, so it may already have been invalidated
+            summaries.remove(key, usageSummary);
+        }
+    }
+
+    /**
+     * Invalidates the summaries that the usage is a part of. Must be called after the usage was committed.
+     */
+    void invalidate(UsageEvent event) {
+        int period = RatingEngine.getPeriod(event.getStartTime());
+        long eventVersion = usageVersion.incrementAndGet();
+        if (phoneVersions.size() >= MAXIMUM_PHONE_VERSIONS) {
+            clearedVersion = eventVersion;
+            phoneVersions.clear();
+        }
+        invalidate(event.getSourcePhone(), period, eventVersion);
+        if (event.getType() != UsageEvent.Type.INTERNET) {
+            invalidate(event.getDestinationPhone(), period, eventVersion);
+        }
+    }
+
+    /**
+     * Invalidates the summaries that the successful events are a part of.
+     *
+     * @param results The result of each event, at the same index as the event.
+     */
+    void invalidate(List<UsageEvent> events, CustomerUsageDatabase.UsageResult[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == CustomerUsageDatabase.UsageResult.SUCCESS) {
+                invalidate(events.get(i));
+            }
+        }
+    }
+
+    private void invalidate(long phone, int period, long eventVersion) {
+        long phoneKey = getPhoneKey(phone, period);
+        phoneVersions.merge(phoneKey, eventVersion, Math::max);
+        Long key = phoneSummaryKeys.get(phoneKey);
+        if (key != null) {
+            summaries.remove(key);
+        }
+    }
+
+    /**
+     * @return True if no usage of the phones in the billing period was recorded since the version was taken.
+     */
+    private boolean isCurrent(int period, long version, long[] phones) {
+        if (version < clearedVersion) {
+            return false;
+        }
+        for (long phone : phones) {
+            Long phoneVersion = phoneVersions.get(getPhoneKey(phone, period));
+            if (phoneVersion != null && phoneVersion > version) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getPhoneKey(long phone, int period) {
+        return phone * 100000 + period;
+    }
+
+    /**
+     * The usage totals of an account for one billing period.
+     */
+    static final class UsageSummary {
+
+        private final int totalTexts;
+        private final double totalMinutes;
+        private final double totalGigabytes;
+        private final long cachedNanos = System.nanoTime();
+
+        UsageSummary(int totalTexts, double totalMinutes, double totalGigabytes) {
+            this.totalTexts = totalTexts;
+            this.totalMinutes = totalMinutes;
+            this.totalGigabytes = totalGigabytes;
+        }
+
+        int getTotalTexts() {
+            return totalTexts;
+        }
+
+        double getTotalMinutes() {
+            return totalMinutes;
+        }
+
+        double getTotalGigabytes() {
+            return totalGigabytes;
+        }
+
+    }
+
+}
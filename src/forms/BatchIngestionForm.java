@@ -0,0 +1,252 @@
+package forms;
+
+import database.DatabaseInitializer;
+import interfaces.IngestionStatistics;
+import interfaces.StreamInputInterface;
+import interfaces.UsageDirectoryWatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ingests usage files without the interactive menu, so loads can be scheduled and benchmarked. Usage:
+ * <pre>
+ * java forms.BatchIngestionForm [--url jdbc-url] --user username [--password password] [--log-dir directory]
+ *     file-or-directory...
+ * java forms.BatchIngestionForm [--url jdbc-url] --user username [--password password] [--log-dir directory]
+ *     --watch directory [--parallelism files]
+ * </pre>
+ * The password may also be given with the <i>JOG_DB_PASSWORD</i> environment variable. Every regular file in a
+ * directory is ingested in name order, except for hidden files, such as ingestion checkpoints, and the logs
+ * themselves. Progress is written to standard error and a single line of JSON that summarizes the run is written to
+ * standard output.
+ * <p></p>
+ * With <i>--watch</i>, the program runs until it is stopped and ingests every file that appears in the directory,
+ * as described by {@link UsageDirectoryWatcher}. Up to <i>--parallelism</i> files are ingested at once, which
+ * defaults to the <i>jog.watch.parallelism</i> system property or <b>2</b>. A line of JSON is written to standard
+ * output as soon as each file has been ingested.
+ * <p></p>
+ * The program exits with <b>0</b> if every file was ingested, <b>1</b> if any file failed or the watched directory
+ * went away and <b>2</b> if the arguments were invalid or the login failed.
+ */
+public class BatchIngestionForm {
+
+    private static final String USAGE = "Usage: java forms.BatchIngestionForm [--url jdbc-url] --user username " +
+            "[--password password] [--log-dir directory] (file-or-directory... | --watch directory " +
+            "[--parallelism files])";
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(USAGE, args);
+        Path logDirectory = Paths.get("usage");
+        Path watchDirectory = null;
+        int parallelism = Integer.getInteger("jog.watch.parallelism", 2);
+        List<Path> inputs = new ArrayList<>();
+        String argument;
+        while ((argument = commandLine.next()) != null) {
+            switch (argument) {
+                case "--log-dir":
+                    logDirectory = Paths.get(commandLine.getValue(argument));
+                    break;
+                case "--watch":
+                    watchDirectory = Paths.get(commandLine.getValue(argument));
+                    break;
+                case "--parallelism":
+                    parallelism = commandLine.getInt(argument, "parallelism");
+                    break;
+                default:
+                    if (argument.startsWith("--")) {
+                        commandLine.exitWithUsage("Unknown option " + argument);
+                    }
+                    inputs.add(Paths.get(argument));
+            }
+        }
+        if (parallelism < 1) {
+            commandLine.exitWithUsage("The parallelism must be at least 1");
+        }
+        if (watchDirectory != null) {
+            if (!inputs.isEmpty()) {
+                commandLine.exitWithUsage("Files can't be given along with --watch");
+            }
+            if (!Files.isDirectory(watchDirectory)) {
+                commandLine.exitWithUsage("The watched directory doesn't exist: " + watchDirectory);
+            }
+            commandLine.login();
+            System.exit(watchDirectory(watchDirectory, logDirectory, parallelism));
+            return;
+        }
+        if (inputs.isEmpty()) {
+            commandLine.exitWithUsage("At least one file or directory is required");
+        }
+
+        List<Path> usageFiles;
+        try {
+            usageFiles = getUsageFiles(inputs, logDirectory);
+        } catch (IOException e) {
+            System.err.println("Could not list the usage files: " + e.getMessage());
+            System.exit(CommandLine.EXIT_INVALID_USAGE);
+            return;
+        }
+        commandLine.login();
+
+        int exitCode = CommandLine.EXIT_SUCCESS;
+        IngestionStatistics totalStatistics = new IngestionStatistics();
+        List<String> fileSummaries = new ArrayList<>();
+        StreamInputInterface streamInputInterface = null;
+        try {
+            streamInputInterface = new StreamInputInterface(logDirectory);
+            for (Path usageFile : usageFiles) {
+                System.err.println("Ingesting " + usageFile + "...");
+                IngestionStatistics fileStatistics = new IngestionStatistics();
+                String error = null;
+                try {
+                    streamInputInterface.ingestFile(usageFile, fileStatistics);
+                } catch (IOException e) {
+                    error = e.toString();
+                    exitCode = CommandLine.EXIT_FAILED;
+                    System.err.println("Failed to ingest " + usageFile + ": " + e);
+                }
+                totalStatistics.add(fileStatistics);
+                fileSummaries.add(getFileSummary(usageFile, fileStatistics, error));
+            }
+        } finally {
+            closeStreamInputInterface(streamInputInterface);
+            DatabaseInitializer.logout();
+        }
+
+        System.out.println(getSummary(fileSummaries, totalStatistics));
+        System.exit(exitCode);
+    }
+
+    /**
+     * Ingests the files that appear in the directory until the program is stopped or the directory goes away.
+     *
+     * @return The code to exit with.
+     */
+    private static int watchDirectory(Path watchDirectory, Path logDirectory, int parallelism) {
+        final AtomicBoolean fileFailed = new AtomicBoolean();
+        StreamInputInterface streamInputInterface = null;
+        try {
+            streamInputInterface = new StreamInputInterface(logDirectory);
+            final UsageDirectoryWatcher watcher = new UsageDirectoryWatcher(streamInputInterface, watchDirectory,
+                    parallelism, new UsageDirectoryWatcher.Listener() {
+                @Override
+                public void fileIngested(Path usageFile, IngestionStatistics statistics, Exception error) {
+                    if (error != null) {
+                        fileFailed.set(true);
+                        System.err.println("Failed to ingest " + usageFile + ": " + error);
+                    }
+                    System.out.println(getFileSummary(usageFile, statistics, error == null ? null :
+                            error.toString()));
+                }
+            });
+            // Let the files that are being ingested finish when the program is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watcher.stop();
+                }
+            }, "jog-watch-shutdown"));
+            System.err.println("Watching " + watchDirectory + " with a parallelism of " + parallelism + "...");
+            watcher.run();
+            return fileFailed.get() ? CommandLine.EXIT_FAILED : CommandLine.EXIT_SUCCESS;
+        } catch (IOException e) {
+            System.err.println("Stopped watching " + watchDirectory + ": " + e.getMessage());
+            return CommandLine.EXIT_FAILED;
+        } finally {
+            closeStreamInputInterface(streamInputInterface);
+            DatabaseInitializer.logout();
+        }
+    }
+
+    private static void closeStreamInputInterface(StreamInputInterface streamInputInterface) {
+        if (streamInputInterface == null) {
+            return;
+        }
+        try {
+            streamInputInterface.close();
+        } catch (IOException e) {
+            System.err.println("Some lines could not be written to the logs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Expands directories into the regular files they contain, skipping hidden files and the log files.
+     */
+    private static List<Path> getUsageFiles(List<Path> inputs, Path logDirectory) throws IOException {
+        Path errorLog = logDirectory.resolve("error.txt").toAbsolutePath().normalize();
+        Path usageLog = logDirectory.resolve("usage_information.txt").toAbsolutePath().normalize();
+        List<Path> usageFiles = new ArrayList<>();
+        for (Path input : inputs) {
+            if (!Files.isDirectory(input)) {
+                usageFiles.add(input);
+                continue;
+            }
+            List<Path> directoryFiles = new ArrayList<>();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(input)) {
+                for (Path path : directoryStream) {
+                    Path absolutePath = path.toAbsolutePath().normalize();
+                    if (Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".") &&
+                            !absolutePath.equals(errorLog) && !absolutePath.equals(usageLog)) {
+                        directoryFiles.add(path);
+                    }
+                }
+            }
+            Collections.sort(directoryFiles);
+            usageFiles.addAll(directoryFiles);
+        }
+        return usageFiles;
+    }
+
+    private static String getFileSummary(Path usageFile, IngestionStatistics statistics, String error) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"file\":").append(CommandLine.quote(usageFile.toString()))
+                .append(",\"status\":").append(CommandLine.quote(error == null ? "ok" : "failed"));
+        if (error != null) {
+            builder.append(",\"error\":").append(CommandLine.quote(error));
+        }
+        builder.append(",\"lines\":").append(statistics.getLineCount())
+                .append(",\"records\":").append(statistics.getRecordCount())
+                .append(",\"seconds\":").append(CommandLine.format(statistics.getElapsedSeconds()))
+                .append(",\"recordsPerSecond\":").append(CommandLine.format(statistics.getRecordsPerSecond()))
+                .append('}');
+        return builder.toString();
+    }
+
+    private static String getSummary(List<String> fileSummaries, IngestionStatistics statistics) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"files\":[");
+        for (int i = 0; i < fileSummaries.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(fileSummaries.get(i));
+        }
+        builder.append("],\"lines\":").append(statistics.getLineCount())
+                .append(",\"records\":").append(statistics.getRecordCount())
+                .append(",\"seconds\":").append(CommandLine.format(statistics.getElapsedSeconds()))
+                .append(",\"recordsPerSecond\":").append(CommandLine.format(statistics.getRecordsPerSecond()))
+                .append(",\"usageTypes\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : statistics.getUsageTypeCounts().entrySet()) {
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append(CommandLine.quote(entry.getKey())).append(':').append(entry.getValue());
+        }
+        builder.append("},\"dbLatencyMillis\":{\"batches\":").append(statistics.getDatabaseCallCount())
+                .append(",\"p50\":").append(CommandLine.format(statistics.getDatabaseLatencyMillis(50)))
+                .append(",\"p99\":").append(CommandLine.format(statistics.getDatabaseLatencyMillis(99)))
+                .append("}}");
+        return builder.toString();
+    }
+
+}
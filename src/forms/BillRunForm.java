@@ -0,0 +1,99 @@
+package forms;
+
+import database.BillRun;
+import database.DatabaseInitializer;
+
+import java.time.YearMonth;
+import java.util.List;
+
+/**
+ * Closes a billing period for every account without the interactive menu, as described by {@link BillRun}. Usage:
+ * <pre>
+ * java forms.BillRunForm [--url jdbc-url] --user username [--password password] --period yyyy-MM
+ *     [--parallelism partitions] [--dry-run]
+ * </pre>
+ * The password may also be given with the <i>JOG_DB_PASSWORD</i> environment variable. Up to <i>--parallelism</i>
+ * partitions of accounts are billed at once, which defaults to the <i>jog.billrun.parallelism</i> system property or
+ * <b>4</b>, and should stay below <i>jog.pool.maxSize</i>. Progress is written to standard error and a single line of
+ * JSON that summarizes the run is written to standard output. With <i>--dry-run</i>, the usage is only rated and
+ * compared with the bills, which are left as they are.
+ * <p></p>
+ * The program exits with <b>0</b> if every account was billed, or every bill matched in a dry run, <b>1</b> if too
+ * many bills mismatched or any partition failed and <b>2</b> if the arguments were invalid or the login failed.
+ */
+public class BillRunForm {
+
+    private static final String USAGE = "Usage: java forms.BillRunForm [--url jdbc-url] --user username " +
+            "[--password password] --period yyyy-MM [--parallelism partitions] [--dry-run]";
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(USAGE, args);
+        YearMonth period = null;
+        int parallelism = Integer.getInteger("jog.billrun.parallelism", 4);
+        boolean dryRun = false;
+        String argument;
+        while ((argument = commandLine.next()) != null) {
+            switch (argument) {
+                case "--period":
+                    period = commandLine.getPeriod(argument);
+                    break;
+                case "--parallelism":
+                    parallelism = commandLine.getInt(argument, "parallelism");
+                    break;
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                default:
+                    commandLine.exitWithUsage("Unknown argument " + argument);
+            }
+        }
+        if (period == null) {
+            commandLine.exitWithUsage("A billing period is required");
+        }
+        if (parallelism < 1) {
+            commandLine.exitWithUsage("The parallelism must be at least 1");
+        }
+        commandLine.login();
+
+        String billingPeriod = period + "-01 00:00:00";
+        BillRun billRun = new BillRun(billingPeriod, parallelism, dryRun);
+        boolean success;
+        try {
+            success = billRun.run();
+        } finally {
+            DatabaseInitializer.logout();
+        }
+
+        System.out.println(getSummary(period, billRun, dryRun, success));
+        System.exit(success ? CommandLine.EXIT_SUCCESS : CommandLine.EXIT_FAILED);
+    }
+
+    private static String getSummary(YearMonth period, BillRun billRun, boolean dryRun, boolean success) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"period\":\"").append(period).append('"')
+                .append(",\"status\":\"").append(success ? "ok" : "failed").append('"')
+                .append(",\"dryRun\":").append(dryRun)
+                .append(",\"accounts\":").append(billRun.getAccountCount())
+                .append(",\"comparedBills\":").append(billRun.getComparedBillCount())
+                .append(",\"mismatchedBills\":").append(billRun.getMismatchedBillCount())
+                .append(",\"closedAccounts\":").append(billRun.getClosedAccountCount())
+                .append(",\"updatedBills\":").append(billRun.getUpdatedBillCount())
+                .append(",\"insertedBills\":").append(billRun.getInsertedBillCount())
+                .append(",\"skippedPaidBills\":").append(billRun.getSkippedPaidBillCount())
+                .append(",\"ratedUsages\":").append(billRun.getRatedUsageCount())
+                .append(",\"retries\":").append(billRun.getRetryCount())
+                .append(",\"failedPartitions\":[");
+        List<String> failedPartitions = billRun.getFailedPartitions();
+        for (int i = 0; i < failedPartitions.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(CommandLine.quote(failedPartitions.get(i)));
+        }
+        builder.append("],\"seconds\":").append(CommandLine.format(billRun.getElapsedSeconds()))
+                .append(",\"accountsPerSecond\":").append(CommandLine.format(billRun.getAccountsPerSecond()))
+                .append('}');
+        return builder.toString();
+    }
+
+}
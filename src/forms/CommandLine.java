@@ -0,0 +1,162 @@
+package forms;
+
+import database.DatabaseInitializer;
+
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Reads the arguments of a headless program and logs it in. The <i>--url</i>, <i>--user</i> and <i>--password</i>
+ * options that every program takes are consumed here, and the password falls back to the <i>JOG_DB_PASSWORD</i>
+ * environment variable. Every other argument is handed back to the program, which reads its value, if it has one,
+ * with the getters.
+ * <p></p>
+ * The programs share their exit codes: <b>0</b> if everything was done, <b>1</b> if some of the work failed and
+ * <b>2</b> if the arguments were invalid or the login failed.
+ */
+final class CommandLine {
+
+    static final int EXIT_SUCCESS = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_INVALID_USAGE = 2;
+
+    private final String usage;
+    private final String[] args;
+    private int index;
+    private String url;
+    private String username;
+    private String password = System.getenv("JOG_DB_PASSWORD");
+
+    /**
+     * @param usage The usage message that is printed along with every invalid argument.
+     * @param args  The program's arguments.
+     */
+    CommandLine(String usage, String[] args) {
+        this.usage = usage;
+        this.args = args;
+    }
+
+    /**
+     * @return The next argument that isn't a login option, or <b>null</b> once every argument has been read.
+     */
+    String next() {
+        while (index < args.length) {
+            String argument = args[index++];
+            switch (argument) {
+                case "--url":
+                    url = getValue(argument);
+                    break;
+                case "--user":
+                    username = getValue(argument);
+                    break;
+                case "--password":
+                    password = getValue(argument);
+                    break;
+                default:
+                    return argument;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param option The option that was just returned by {@link #next()}.
+     * @return The value that follows the option.
+     */
+    String getValue(String option) {
+        if (index >= args.length) {
+            exitWithUsage("Missing a value for " + option);
+        }
+        return args[index++];
+    }
+
+    /**
+     * @param name The name of the value in the message that is printed if it isn't a number.
+     */
+    int getInt(String option, String name) {
+        String value = getValue(option);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            exitWithUsage("The " + name + " must be a number, found: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * @param name The name of the value in the message that is printed if it isn't a number.
+     */
+    long getLong(String option, String name) {
+        String value = getValue(option);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            exitWithUsage("The " + name + " must be a number, found: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * @return The billing period that follows the option, formatted as yyyy-MM.
+     */
+    YearMonth getPeriod(String option) {
+        String value = getValue(option);
+        try {
+            return YearMonth.parse(value);
+        } catch (DateTimeParseException e) {
+            exitWithUsage("The period must be formatted as yyyy-MM, found: " + value);
+            return null;
+        }
+    }
+
+    /**
+     * Logs in with the options that were read, exiting if a username or password is missing or the login failed.
+     * Must be called once every argument has been read.
+     */
+    void login() {
+        if (username == null || password == null) {
+            exitWithUsage("A username and password are required");
+        }
+        if (!DatabaseInitializer.login(url, username, password)) {
+            System.err.println("Login failed");
+            System.exit(EXIT_INVALID_USAGE);
+        }
+    }
+
+    void exitWithUsage(String message) {
+        System.err.println(message);
+        System.err.println(usage);
+        System.exit(EXIT_INVALID_USAGE);
+    }
+
+    /**
+     * @return The value with three decimal places, which is how the summaries write seconds and rates.
+     */
+    static String format(double value) {
+        return format(value, 3);
+    }
+
+    static String format(double value, int decimals) {
+        return String.format(Locale.US, "%." + decimals + "f", value);
+    }
+
+    /**
+     * @return The value as a JSON string.
+     */
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < ' ') {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+}
@@ -0,0 +1,107 @@
+package forms;
+
+import database.DatabaseInitializer;
+import database.PaymentPosting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * Posts a file of payments to the bills, as described by {@link PaymentPosting}. Usage:
+ * <pre>
+ * java forms.PaymentPostingForm [--url jdbc-url] --user username [--password password] [--report file]
+ *     payment-file
+ * </pre>
+ * The password may also be given with the <i>JOG_DB_PASSWORD</i> environment variable. The reconciliation report is
+ * written to <i>--report</i>, which defaults to the payment file's name followed by <i>.report.csv</i>. A single line
+ * of JSON that summarizes the posting is written to standard output.
+ * <p></p>
+ * The program exits with <b>0</b> if every payment was posted, <b>1</b> if any payment was rejected or failed and
+ * <b>2</b> if the arguments were invalid, the files couldn't be opened or the login failed.
+ */
+public class PaymentPostingForm {
+
+    private static final String USAGE = "Usage: java forms.PaymentPostingForm [--url jdbc-url] --user username " +
+            "[--password password] [--report file] payment-file";
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(USAGE, args);
+        Path paymentFile = null;
+        Path reportFile = null;
+        String argument;
+        while ((argument = commandLine.next()) != null) {
+            switch (argument) {
+                case "--report":
+                    reportFile = Paths.get(commandLine.getValue(argument));
+                    break;
+                default:
+                    if (argument.startsWith("--")) {
+                        commandLine.exitWithUsage("Unknown argument " + argument);
+                    }
+                    if (paymentFile != null) {
+                        commandLine.exitWithUsage("Only one payment file may be given");
+                    }
+                    paymentFile = Paths.get(argument);
+            }
+        }
+        if (paymentFile == null) {
+            commandLine.exitWithUsage("A payment file is required");
+            return;
+        }
+        if (reportFile == null) {
+            reportFile = Paths.get(paymentFile + ".report.csv");
+        }
+        commandLine.login();
+
+        System.err.println("Posting the payments of " + paymentFile + "...");
+        PaymentPosting paymentPosting = new PaymentPosting();
+        String status;
+        try (BufferedReader reader = Files.newBufferedReader(paymentFile, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            paymentPosting.post(reader, writer);
+            status = "ok";
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            status = "failed";
+        } finally {
+            DatabaseInitializer.logout();
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"file\":").append(CommandLine.quote(paymentFile.toString()))
+                .append(",\"status\":").append(CommandLine.quote(status))
+                .append(",\"payments\":").append(paymentPosting.getPaymentCount());
+        for (PaymentPosting.Status paymentStatus : PaymentPosting.Status.values()) {
+            builder.append(",\"").append(toCamelCase(paymentStatus.name())).append("\":")
+                    .append(paymentPosting.getCount(paymentStatus));
+        }
+        builder.append(",\"postedAmount\":").append(CommandLine.format(paymentPosting.getPostedAmount(), 2))
+                .append(",\"seconds\":").append(CommandLine.format(paymentPosting.getElapsedSeconds()))
+                .append(",\"paymentsPerMinute\":").append(CommandLine.format(paymentPosting.getPaymentsPerMinute(), 0))
+                .append('}');
+        System.out.println(builder);
+
+        boolean allPosted = status.equals("ok") &&
+                paymentPosting.getCount(PaymentPosting.Status.POSTED) == paymentPosting.getPaymentCount();
+        System.exit(allPosted ? CommandLine.EXIT_SUCCESS : CommandLine.EXIT_FAILED);
+    }
+
+    /**
+     * @return The name of a status as a JSON key, such as <i>alreadyPaid</i> for <i>ALREADY_PAID</i>.
+     */
+    private static String toCamelCase(String name) {
+        StringBuilder builder = new StringBuilder();
+        for (String word : name.toLowerCase(Locale.US).split("_")) {
+            builder.append(builder.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,97 @@
+package forms;
+
+import database.BillTotals;
+import database.DatabaseInitializer;
+
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciles the running accounts receivable and cash collected totals with the bills, as described by
+ * {@link BillTotals}. Usage:
+ * <pre>
+ * java forms.ReconciliationForm [--url jdbc-url] --user username [--password password] [--repair]
+ *     [--every seconds]
+ * </pre>
+ * The password may also be given with the <i>JOG_DB_PASSWORD</i> environment variable. With <i>--repair</i>, totals
+ * that drifted are recomputed from the bills. With <i>--every</i>, the program reconciles on that interval until it is
+ * stopped. A line of JSON is written to standard output after every reconciliation, and drift is also reported on
+ * standard error.
+ * <p></p>
+ * The program exits with <b>0</b> if the totals matched the bills or were repaired, <b>1</b> if they drifted or
+ * couldn't be reconciled and <b>2</b> if the arguments were invalid or the login failed.
+ */
+public class ReconciliationForm {
+
+    private static final String USAGE = "Usage: java forms.ReconciliationForm [--url jdbc-url] --user username " +
+            "[--password password] [--repair] [--every seconds]";
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(USAGE, args);
+        boolean repair = false;
+        long intervalSeconds = 0;
+        String argument;
+        while ((argument = commandLine.next()) != null) {
+            switch (argument) {
+                case "--repair":
+                    repair = true;
+                    break;
+                case "--every":
+                    intervalSeconds = commandLine.getLong(argument, "interval");
+                    if (intervalSeconds < 1) {
+                        commandLine.exitWithUsage("The interval must be at least 1 second");
+                    }
+                    break;
+                default:
+                    commandLine.exitWithUsage("Unknown argument " + argument);
+            }
+        }
+        commandLine.login();
+
+        BillTotals billTotals = new BillTotals();
+        int exitCode;
+        try {
+            exitCode = reconcile(billTotals, repair);
+            while (intervalSeconds > 0) {
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+                } catch (InterruptedException e) {
+                    break;
+                }
+                exitCode = reconcile(billTotals, repair);
+            }
+        } finally {
+            DatabaseInitializer.logout();
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * @return The code to exit with if this is the last reconciliation.
+     */
+    private static int reconcile(BillTotals billTotals, boolean repair) {
+        BillTotals.Reconciliation reconciliation;
+        try {
+            reconciliation = billTotals.reconcile(repair);
+        } catch (SQLException e) {
+            System.err.println("Could not reconcile the totals: " + e.getMessage());
+            System.out.println("{\"status\":\"failed\"}");
+            return CommandLine.EXIT_FAILED;
+        }
+        String status = !reconciliation.hasDrift() ? "ok" : reconciliation.wasRepaired() ? "repaired" : "drifted";
+        if (reconciliation.hasDrift()) {
+            System.err.printf(Locale.US, "The totals drifted from the bills by $%.2f receivable and $%.2f " +
+                    "collected%s\n", reconciliation.getAccountsReceivableDrift(),
+                    reconciliation.getCashCollectedDrift(), reconciliation.wasRepaired() ? " and were repaired" : "");
+        }
+        System.out.println("{\"status\":\"" + status + "\"" +
+                ",\"accountsReceivable\":" + CommandLine.format(reconciliation.getAccountsReceivable(), 4) +
+                ",\"billsReceivable\":" + CommandLine.format(reconciliation.getBillsReceivable(), 4) +
+                ",\"cashCollected\":" + CommandLine.format(reconciliation.getCashCollected(), 4) +
+                ",\"billsCollected\":" + CommandLine.format(reconciliation.getBillsCollected(), 4) + "}");
+        boolean drifted = reconciliation.hasDrift() && !reconciliation.wasRepaired();
+        return drifted ? CommandLine.EXIT_FAILED : CommandLine.EXIT_SUCCESS;
+    }
+
+}
@@ -0,0 +1,68 @@
+package forms;
+
+import database.DatabaseInitializer;
+import database.UsageRollups;
+
+import java.sql.SQLException;
+import java.time.YearMonth;
+
+/**
+ * Rebuilds the daily usage rollups from the usage logs, as described by {@link UsageRollups}. Usage:
+ * <pre>
+ * java forms.UsageRollupForm [--url jdbc-url] --user username [--password password] (--period yyyy-MM | --all)
+ * </pre>
+ * The password may also be given with the <i>JOG_DB_PASSWORD</i> environment variable. A single line of JSON that
+ * summarizes the rebuild is written to standard output.
+ * <p></p>
+ * The program exits with <b>0</b> if the rollups were rebuilt, <b>1</b> if the rebuild failed and <b>2</b> if the
+ * arguments were invalid or the login failed.
+ */
+public class UsageRollupForm {
+
+    private static final String USAGE = "Usage: java forms.UsageRollupForm [--url jdbc-url] --user username " +
+            "[--password password] (--period yyyy-MM | --all)";
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new CommandLine(USAGE, args);
+        YearMonth period = null;
+        boolean allPeriods = false;
+        String argument;
+        while ((argument = commandLine.next()) != null) {
+            switch (argument) {
+                case "--all":
+                    allPeriods = true;
+                    break;
+                case "--period":
+                    period = commandLine.getPeriod(argument);
+                    break;
+                default:
+                    commandLine.exitWithUsage("Unknown argument " + argument);
+            }
+        }
+        if ((period == null) == !allPeriods) {
+            commandLine.exitWithUsage("Either a billing period or --all is required");
+        }
+        commandLine.login();
+
+        String billingPeriod = period == null ? null : period + "-01 00:00:00";
+        System.err.println("Rebuilding the usage rollups of " + (period == null ? "every period" : period) + "...");
+        long startNanos = System.nanoTime();
+        int exitCode = CommandLine.EXIT_SUCCESS;
+        String summary;
+        try {
+            int rows = new UsageRollups().rebuild(billingPeriod);
+            summary = "\"status\":\"ok\",\"rows\":" + rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            exitCode = CommandLine.EXIT_FAILED;
+            summary = "\"status\":\"failed\"";
+        } finally {
+            DatabaseInitializer.logout();
+        }
+
+        System.out.println("{\"period\":\"" + (period == null ? "all" : period) + "\"," + summary +
+                ",\"seconds\":" + CommandLine.format((System.nanoTime() - startNanos) / 1e9) + "}");
+        System.exit(exitCode);
+    }
+
+}
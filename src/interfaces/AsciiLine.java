@@ -0,0 +1,62 @@
+package interfaces;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A line of a memory-mapped usage file, read straight from the file's bytes without decoding them into a
+ * {@link String}. Every byte is treated as a single ISO-8859-1 character, which is exact for ASCII usage files.
+ * <p></p>
+ * The line only reads the buffer with absolute gets, so it may be shared between threads.
+ */
+final class AsciiLine implements CharSequence {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param buffer The bytes of the chunk that holds the line.
+     * @param offset The index of the line's first byte in the buffer.
+     * @param length The number of bytes in the line, without its line terminator.
+     */
+    AsciiLine(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+        }
+        return (char) (buffer.get(offset + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: " + length);
+        }
+        return new AsciiLine(buffer, offset + start, end - start);
+    }
+
+    /**
+     * @return A copy of the line as a {@link String}, which is only needed once the line gets logged.
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+}
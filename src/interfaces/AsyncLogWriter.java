@@ -0,0 +1,358 @@
+package interfaces;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends timestamped lines to a log file from a dedicated writer thread, so the threads that log never wait on the
+ * disk or format a date.
+ * <p></p>
+ * Every logged message is put on a bounded ring buffer along with the time it was logged. The writer thread drains
+ * the ring, prefixes each message with its time in the form <i>2016-01-20 11:15:23</i>, and collects the bytes in a
+ * large buffer that is written to a {@link FileChannel} once it is full or once the flush interval has passed. The
+ * timestamp prefix is only formatted again when the second changes. If the ring is full, the logging thread waits
+ * for room instead of dropping the message.
+ * <p></p>
+ * {@link #close()} writes every message that was logged before it. When <i>jog.log.flushOnExit</i> is true (the
+ * default), a shutdown hook also closes the writer, so nothing is lost if the program exits while it is still open.
+ * The ring size, buffer size and flush interval may be tuned with the <i>jog.log.queueCapacity</i>,
+ * <i>jog.log.bufferBytes</i> and <i>jog.log.flushIntervalMillis</i> system properties.
+ */
+final class AsyncLogWriter implements Closeable {
+
+    private static final int QUEUE_CAPACITY = Math.max(1, Integer.getInteger("jog.log.queueCapacity", 8192));
+    private static final int BUFFER_BYTES = Math.max(1024, Integer.getInteger("jog.log.bufferBytes", 256 * 1024));
+    private static final long FLUSH_INTERVAL_MILLIS = Math.max(1, Integer.getInteger("jog.log.flushIntervalMillis",
+            1000));
+    private static final boolean FLUSH_ON_EXIT = Boolean.parseBoolean(System.getProperty("jog.log.flushOnExit",
+            "true"));
+
+    private final FileChannel fileChannel;
+    private final Thread writerThread;
+    private final Thread shutdownHook;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition written = lock.newCondition();
+
+    // The ring buffer, guarded by the lock
+    private final long[] times = new long[QUEUE_CAPACITY];
+    private final CharSequence[] messages = new CharSequence[QUEUE_CAPACITY];
+    private int head;
+    private int count;
+    private long loggedCount;
+    private long writtenCount;
+    private boolean flushRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // Only used by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final long[] drainedTimes = new long[QUEUE_CAPACITY];
+    private final CharSequence[] drainedMessages = new CharSequence[QUEUE_CAPACITY];
+    private final Calendar calendar = Calendar.getInstance();
+    private final byte[] timestamp = new byte[19];
+    private long timestampSecond = Long.MIN_VALUE;
+    private long appendedCount;
+
+    /**
+     * Opens the log file for appending, creating it if it doesn't exist, and starts the writer thread.
+     *
+     * @param path The log file.
+     * @throws IOException If the file couldn't be opened.
+     */
+    AsyncLogWriter(Path path) throws IOException {
+        fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "jog-log-writer-" + path.getFileName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        if (FLUSH_ON_EXIT) {
+            shutdownHook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }, "jog-log-flush-" + path.getFileName());
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            shutdownHook = null;
+        }
+    }
+
+    /**
+     * Queues a line to be written to the log, prefixed with the current time and followed by a newline. Messages
+     * logged after the writer has been closed are dropped.
+     *
+     * @param message The rest of the line, such as <i> - Error at line &lt;3&gt; ...</i>.
+     */
+    void log(CharSequence message) {
+        long timeMillis = System.currentTimeMillis();
+        lock.lock();
+        try {
+            while (count == QUEUE_CAPACITY && !closed) {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            int tail = (head + count) % QUEUE_CAPACITY;
+            times[tail] = timeMillis;
+            messages[tail] = message;
+            count++;
+            loggedCount++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every message that was logged before this call has been written to the file.
+     *
+     * @throws IOException If the writer thread failed to write to the file.
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = loggedCount;
+            while (writtenCount < target && failure == null && writerThread.isAlive()) {
+                flushRequested = true;
+                notEmpty.signal();
+                written.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every message that was logged before this call, stops the writer thread and closes the file. Calling
+     * this method more than once has no further effect.
+     *
+     * @throws IOException If the writer thread failed to write to the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // The program is already exiting
+            }
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        long lastWriteMillis = System.currentTimeMillis();
+        while (true) {
+            int drained;
+            boolean flushNow;
+            boolean closing;
+            lock.lock();
+            try {
+                long waitMillis = lastWriteMillis + FLUSH_INTERVAL_MILLIS - System.currentTimeMillis();
+                while (count == 0 && !closed && !flushRequested && (buffer.position() == 0 || waitMillis > 0)) {
+                    if (buffer.position() == 0) {
+                        notEmpty.awaitUninterruptibly();
+                    } else {
+                        try {
+                            notEmpty.await(waitMillis, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    waitMillis = lastWriteMillis + FLUSH_INTERVAL_MILLIS - System.currentTimeMillis();
+                }
+                drained = count;
+                for (int i = 0; i < drained; i++) {
+                    int index = (head + i) % QUEUE_CAPACITY;
+                    drainedTimes[i] = times[index];
+                    drainedMessages[i] = messages[index];
+                    messages[index] = null;
+                }
+                head = (head + drained) % QUEUE_CAPACITY;
+                count = 0;
+                notFull.signalAll();
+                flushNow = flushRequested;
+                flushRequested = false;
+                closing = closed;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException writeFailure = null;
+            try {
+                for (int i = 0; i < drained; i++) {
+                    append(drainedTimes[i], drainedMessages[i]);
+                    drainedMessages[i] = null;
+                }
+                appendedCount += drained;
+                if (flushNow || closing || System.currentTimeMillis() - lastWriteMillis >= FLUSH_INTERVAL_MILLIS) {
+                    writeBuffer();
+                    lastWriteMillis = System.currentTimeMillis();
+                }
+                if (closing) {
+                    fileChannel.close();
+                }
+            } catch (IOException e) {
+                writeFailure = e;
+            }
+
+            lock.lock();
+            try {
+                if (writeFailure != null && failure == null) {
+                    failure = writeFailure;
+                }
+                if (failure != null) {
+                    // Nothing else will reach the file, so release anyone who is waiting for a flush
+                    writtenCount = loggedCount;
+                    written.signalAll();
+                } else if (buffer.position() == 0) {
+                    writtenCount = appendedCount;
+                    written.signalAll();
+                }
+                if (closing || failure != null) {
+                    closed = true;
+                    notFull.signalAll();
+                    written.signalAll();
+                    if (closing) {
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds a line to the buffer, writing the buffer out first if the line doesn't fit.
+     */
+    private void append(long timeMillis, CharSequence message) throws IOException {
+        if (failure != null) {
+            return;
+        }
+        updateTimestamp(timeMillis);
+        byte[] encoded = null;
+        int length = message.length();
+        for (int i = 0; i < length; i++) {
+            if (message.charAt(i) >= 0x80) {
+                encoded = message.toString().getBytes(Charset.defaultCharset());
+                length = encoded.length;
+                break;
+            }
+        }
+        if (buffer.remaining() < timestamp.length + length + 1) {
+            writeBuffer();
+        }
+        if (buffer.remaining() < timestamp.length + length + 1) {
+            // The line is larger than the whole buffer, so write it on its own
+            if (encoded == null) {
+                encoded = message.toString().getBytes(Charset.defaultCharset());
+            }
+            ByteBuffer line = ByteBuffer.allocate(timestamp.length + encoded.length + 1);
+            line.put(timestamp).put(encoded).put((byte) '\n');
+            line.flip();
+            while (line.hasRemaining()) {
+                fileChannel.write(line);
+            }
+            return;
+        }
+        buffer.put(timestamp);
+        if (encoded != null) {
+            buffer.put(encoded);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) message.charAt(i));
+            }
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Formats the timestamp prefix again if the given time is in a different second than the last line's.
+     */
+    private void updateTimestamp(long timeMillis) {
+        long second = Math.floorDiv(timeMillis, 1000);
+        if (second == timestampSecond) {
+            return;
+        }
+        timestampSecond = second;
+        calendar.setTimeInMillis(timeMillis);
+        writeDigits(0, 4, calendar.get(Calendar.YEAR));
+        timestamp[4] = '-';
+        writeDigits(5, 2, calendar.get(Calendar.MONTH) + 1);
+        timestamp[7] = '-';
+        writeDigits(8, 2, calendar.get(Calendar.DAY_OF_MONTH));
+        timestamp[10] = ' ';
+        writeDigits(11, 2, calendar.get(Calendar.HOUR_OF_DAY));
+        timestamp[13] = ':';
+        writeDigits(14, 2, calendar.get(Calendar.MINUTE));
+        timestamp[16] = ':';
+        writeDigits(17, 2, calendar.get(Calendar.SECOND));
+    }
+
+    private void writeDigits(int offset, int width, int value) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            timestamp[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}
@@ -27,6 +27,9 @@ public class ChiefExecutiveInterface extends BaseInterface {
         System.out.printf("%-75s %d\n", "See Jog\'s customers whose bills are past due", 5);
         System.out.printf("%-75s %d\n", "Create a new billing plan", 6);
         System.out.printf("%-75s %d\n", "Create a new phone to add to Jog\'s inventory", 7);
+        System.out.printf("%-75s %d\n", "Check a billing period\'s bills against Jog\'s rating engine", 8);
+        System.out.printf("%-75s %d\n", "See the accounts that owe or paid Jog the most", 9);
+        System.out.printf("%-75s %d\n", "Break down the bills of a range of accounts and billing periods", 10);
         System.out.printf("%-75s %d\n", "Return to the interface selection screen", -1);
         System.out.println("**********************************************************************");
         while (true) {
@@ -52,6 +55,15 @@ public class ChiefExecutiveInterface extends BaseInterface {
             } else if (choice == 7) {
                 createNewPhone();
                 break;
+            } else if (choice == 8) {
+                checkBillingPeriodCharges();
+                break;
+            } else if (choice == 9) {
+                getTopAccounts();
+                break;
+            } else if (choice == 10) {
+                getFinancialInformationSlice();
+                break;
             } else if (choice == -1) {
                 return true;
             } else {
@@ -90,6 +102,38 @@ public class ChiefExecutiveInterface extends BaseInterface {
         chiefExecutiveDatabase.getBillsPastDue(currentDate);
     }
 
+    private void checkBillingPeriodCharges() {
+        String billingPeriod = FormValidation.getBillingPeriod("Please enter the billing period whose bills should " +
+                "be checked:");
+        chiefExecutiveDatabase.checkBillingPeriodCharges(billingPeriod);
+        System.out.println("Returning to the selection screen...");
+        System.out.println();
+    }
+
+    private void getTopAccounts() {
+        int count = FormValidation.getIntegerInput("Please enter the number of accounts to show:", 1000);
+        System.out.println("Should the accounts be ranked by the bills they paid (as opposed to the unpaid ones)?");
+        boolean isPaid = FormValidation.getTrueOrFalse();
+        String firstBillingPeriod = FormValidation.getBillingPeriod("Please enter the first billing period:");
+        String lastBillingPeriod = FormValidation.getBillingPeriod("Please enter the last billing period:");
+        chiefExecutiveDatabase.getTopAccounts(Math.max(1, count), firstBillingPeriod, lastBillingPeriod, isPaid);
+        System.out.println("Returning to the selection screen...");
+        System.out.println();
+    }
+
+    private void getFinancialInformationSlice() {
+        int firstAccountId = FormValidation.getIntegerInput("Please enter the first account ID:", Integer.MAX_VALUE);
+        int lastAccountId = FormValidation.getIntegerInput("Please enter the last account ID:", Integer.MAX_VALUE);
+        String firstBillingPeriod = FormValidation.getBillingPeriod("Please enter the first billing period:");
+        String lastBillingPeriod = FormValidation.getBillingPeriod("Please enter the last billing period:");
+        System.out.println("Should the paid bills be shown (as opposed to the unpaid ones)?");
+        boolean isPaid = FormValidation.getTrueOrFalse();
+        chiefExecutiveDatabase.getFinancialInformationSlice(firstAccountId, lastAccountId, firstBillingPeriod,
+                lastBillingPeriod, isPaid);
+        System.out.println("Returning to the selection screen...");
+        System.out.println();
+    }
+
     private void createNewBillingPlan() {
         String planName = FormValidation.getStringInput("Please enter the plan\'s name or -q to quit:", "plan name",
                 30);
@@ -0,0 +1,177 @@
+package interfaces;
+
+import interfaces.StreamInputInterface.UsageType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the outcome of every line that was ingested from one or more usage files, along with how long the database
+ * took to execute each batch of usage. Lines are counted by their final {@link UsageType}: a valid text, call or
+ * internet usage that the database rejected is counted as {@link UsageType#TYPE_NO_SERVICE} or
+ * {@link UsageType#TYPE_UNKNOWN_SQL_ERROR} instead of its own type.
+ * <p></p>
+ * The database latencies are kept in a log-linear histogram of microseconds with 16 buckets per power of two, so a
+ * percentile is accurate to within about 6% no matter how many batches were recorded.
+ */
+public final class IngestionStatistics {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] usageTypeCounts = new LongAdder[UsageType.values().length];
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAdder elapsedNanos = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public IngestionStatistics() {
+        for (int i = 0; i < usageTypeCounts.length; i++) {
+            usageTypeCounts[i] = new LongAdder();
+        }
+    }
+
+    void countLine(UsageType usageType) {
+        usageTypeCounts[usageType.ordinal()].increment();
+    }
+
+    /**
+     * @param nanos   How long the database took to execute a batch.
+     * @param records The number of usage records in the batch.
+     */
+    void recordDatabaseCall(long nanos, int records) {
+        latencyBuckets.incrementAndGet(getBucket(Math.max(0, nanos / 1000)));
+        recordCount.add(records);
+    }
+
+    void addFile(long nanos) {
+        fileCount.increment();
+        elapsedNanos.add(nanos);
+    }
+
+    /**
+     * Adds every count and latency from the given statistics to these ones.
+     *
+     * @param other The statistics of another file.
+     */
+    public void add(IngestionStatistics other) {
+        for (int i = 0; i < usageTypeCounts.length; i++) {
+            usageTypeCounts[i].add(other.usageTypeCounts[i].sum());
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            latencyBuckets.addAndGet(i, other.latencyBuckets.get(i));
+        }
+        recordCount.add(other.recordCount.sum());
+        elapsedNanos.add(other.elapsedNanos.sum());
+        fileCount.add(other.fileCount.sum());
+    }
+
+    /**
+     * @return The number of files that were ingested.
+     */
+    public long getFileCount() {
+        return fileCount.sum();
+    }
+
+    /**
+     * @return The number of lines that were read, including comments and invalid lines.
+     */
+    public long getLineCount() {
+        long lineCount = 0;
+        for (LongAdder usageTypeCount : usageTypeCounts) {
+            lineCount += usageTypeCount.sum();
+        }
+        return lineCount;
+    }
+
+    /**
+     * @return The number of usage records that were sent to the database, whether or not they succeeded.
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    /**
+     * @return The total time spent ingesting files, in seconds.
+     */
+    public double getElapsedSeconds() {
+        return elapsedNanos.sum() / 1000000000.0;
+    }
+
+    /**
+     * @return The number of records sent to the database per second of ingestion.
+     */
+    public double getRecordsPerSecond() {
+        long nanos = elapsedNanos.sum();
+        return nanos <= 0 ? 0 : getRecordCount() * 1000000000.0 / nanos;
+    }
+
+    /**
+     * @return The number of lines of every {@link UsageType}, keyed by the type's name, in declaration order.
+     */
+    public Map<String, Long> getUsageTypeCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (UsageType usageType : UsageType.values()) {
+            counts.put(usageType.name(), usageTypeCounts[usageType.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * @return The number of batches that were sent to the database.
+     */
+    public long getDatabaseCallCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += latencyBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile A percentile between 0 and 100, such as 99.
+     * @return The latency of a database batch at the given percentile, in milliseconds, or <b>0</b> if no batches
+     * were recorded.
+     */
+    public double getDatabaseLatencyMillis(double percentile) {
+        long count = getDatabaseCallCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketUpperBound(i) / 1000.0;
+            }
+        }
+        return getBucketUpperBound(BUCKET_COUNT - 1) / 1000.0;
+    }
+
+    /**
+     * Values below 16 get a bucket each. Larger values are bucketed by their highest bit and the four bits after it.
+     */
+    private static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int mantissa = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
@@ -0,0 +1,140 @@
+package interfaces;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits a memory-mapped usage file into chunks that end on a line end, so each chunk holds whole lines and can be
+ * parsed independently of the others.
+ * <p></p>
+ * A single {@link MappedByteBuffer} can't be larger than 2 GB, so the file is mapped in windows of at most
+ * <i>jog.stream.mappedWindowBytes</i> bytes. A new window is mapped at the start of the first chunk that doesn't fit
+ * in the current one. The chunks are read-only slices of the window and are never copied.
+ */
+final class MappedUsageReader {
+
+    private static final int WINDOW_BYTES = Math.max(1 << 20, Integer.getInteger("jog.stream.mappedWindowBytes",
+            256 << 20));
+
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final int chunkBytes;
+    private final int windowBytes;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long nextChunkStart;
+
+    /**
+     * @param fileChannel The usage file, opened for reading.
+     * @param chunkBytes  The number of bytes after which a chunk is cut at the next line end.
+     * @param startOffset The offset of the first line to read, which is where a resumed file left off.
+     * @throws IOException If the size of the file couldn't be read.
+     */
+    MappedUsageReader(FileChannel fileChannel, int chunkBytes, long startOffset) throws IOException {
+        this.fileChannel = fileChannel;
+        this.fileSize = fileChannel.size();
+        this.chunkBytes = chunkBytes;
+        this.windowBytes = (int) Math.min(Integer.MAX_VALUE, Math.max((long) WINDOW_BYTES, 2L * chunkBytes));
+        this.nextChunkStart = startOffset;
+    }
+
+    /**
+     * @return The next chunk of whole lines, or <b>null</b> if the end of the file has been reached.
+     * @throws IOException If the file couldn't be mapped or a line is longer than a whole window.
+     */
+    ByteBuffer nextChunk() throws IOException {
+        if (nextChunkStart >= fileSize) {
+            return null;
+        }
+        if (window == null || nextChunkStart >= windowStart + window.limit()) {
+            mapWindow(nextChunkStart);
+        }
+
+        int start = (int) (nextChunkStart - windowStart);
+        int end = findChunkEnd(start);
+        if (end == -1 && start > 0) {
+            // The chunk runs past the end of the window, so map a new window that starts with it
+            mapWindow(nextChunkStart);
+            start = 0;
+            end = findChunkEnd(start);
+        }
+        if (end == -1) {
+            throw new IOException("A line that starts at byte " + nextChunkStart + " is longer than " +
+                    window.limit() + " bytes");
+        }
+
+        ByteBuffer chunk = window.duplicate();
+        chunk.position(start);
+        chunk.limit(end);
+        nextChunkStart = windowStart + end;
+        return chunk.slice();
+    }
+
+    /**
+     * @return The byte offset in the file at which the next chunk starts.
+     */
+    long getOffset() {
+        return nextChunkStart;
+    }
+
+    /**
+     * @return The index just past the line end that ends a chunk starting at the given index, or <b>-1</b> if there is
+     * no line end in the rest of the window and the window doesn't end the file.
+     */
+    private int findChunkEnd(int start) {
+        int limit = window.limit();
+        boolean windowEndsFile = windowStart + limit == fileSize;
+        int target = (int) Math.min((long) start + chunkBytes, limit);
+        if (target == limit && windowEndsFile) {
+            return limit;
+        }
+        for (int i = target - 1; i < limit; i++) {
+            int lineEnd = getLineEnd(i, windowEndsFile);
+            if (lineEnd != -1) {
+                return lineEnd;
+            }
+        }
+        if (windowEndsFile) {
+            return limit;
+        }
+        if (start == 0) {
+            // The window can't be moved forward, so cut the chunk at the last line end before the target instead
+            for (int i = target - 2; i >= start; i--) {
+                int lineEnd = getLineEnd(i, windowEndsFile);
+                if (lineEnd != -1) {
+                    return lineEnd;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lines end with <i>\n</i>, <i>\r</i> or <i>\r\n</i>, the same as they're split when the chunks are parsed, so a
+     * <i>\r\n</i> is never cut in two.
+     *
+     * @return The index just past the line end at the given index, or <b>-1</b> if the byte doesn't end a line or is
+     * a <i>\r</i> at the end of a window that doesn't end the file, which may still be followed by a <i>\n</i>.
+     */
+    private int getLineEnd(int index, boolean windowEndsFile) {
+        byte b = window.get(index);
+        if (b == '\n') {
+            return index + 1;
+        } else if (b != '\r') {
+            return -1;
+        } else if (index + 1 < window.limit()) {
+            return window.get(index + 1) == '\n' ? index + 2 : index + 1;
+        }
+        return windowEndsFile ? index + 1 : -1;
+    }
+
+    private void mapWindow(long position) throws IOException {
+        long length = Math.min(windowBytes, fileSize - position);
+        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        windowStart = position;
+    }
+
+}
@@ -0,0 +1,95 @@
+package interfaces;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a usage file the same way as a {@link BufferedReader} over a {@link java.io.FileReader}, while
+ * keeping track of the exact byte offset in the file at which the next line starts. The offset is what lets an
+ * interrupted file be resumed by seeking straight to a line instead of reading the file again from the start.
+ * <p></p>
+ * Lines end with <i>\n</i>, <i>\r</i> or <i>\r\n</i> and are decoded with the default charset. Neither byte can be
+ * part of a multi-byte character in the charsets that usage files are written in, so the lines are split before they
+ * are decoded.
+ */
+final class OffsetLineReader implements Closeable {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final FileChannel fileChannel;
+    private final Charset charset = Charset.defaultCharset();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private byte[] line = new byte[256];
+    private long offset;
+
+    /**
+     * @param fileChannel The usage file, opened for reading and positioned at the first line to read.
+     * @throws IOException If the position of the file couldn't be read.
+     */
+    OffsetLineReader(FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        this.offset = fileChannel.position();
+        buffer.limit(0);
+    }
+
+    /**
+     * @return The next line without its line terminator, or <b>null</b> if the end of the file has been reached.
+     * @throws IOException If the file couldn't be read.
+     */
+    String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining() && !fill()) {
+                return length == 0 ? null : decode(length);
+            }
+            byte b = buffer.get();
+            offset++;
+            if (b == '\n') {
+                return decode(length);
+            } else if (b == '\r') {
+                // Consume the \n of a \r\n now, so the offset never points between the two
+                if ((buffer.hasRemaining() || fill()) && buffer.get(buffer.position()) == '\n') {
+                    buffer.get();
+                    offset++;
+                }
+                return decode(length);
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+    }
+
+    /**
+     * @return The byte offset in the file at which the next line starts.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read;
+        do {
+            read = fileChannel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+
+    private String decode(int length) {
+        return new String(line, 0, length, charset);
+    }
+
+}
@@ -2,15 +2,16 @@ package interfaces;
 
 import database.CustomerUsageDatabase;
 import database.CustomerUsageDatabase.UsageResult;
-import validation.FormValidation;
+import database.PhoneAccountIndex;
+import database.UsageEvent;
 
 import java.io.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
-import java.util.TreeMap;
 
 /**
  * Created by coreycaplan on 4/28/16.
@@ -18,23 +19,83 @@ import java.util.TreeMap;
  * An interface used to represent the transactions that occur when a user of the program wants to manually upload
  * customer usage information to the database.
  */
-public class StreamInputInterface extends BaseInterface {
+public class StreamInputInterface extends BaseInterface implements Closeable {
+
+    /**
+     * Usage files are memory-mapped and parsed straight from their bytes when the <i>jog.stream.mapped</i> system
+     * property is true, which is faster for large ASCII files.
+     */
+    private static final boolean MAPPED_FILES = Boolean.getBoolean("jog.stream.mapped");
+
+    /**
+     * Usage of accounts that have already reached their hard limit is refused without asking the database, unless
+     * the <i>jog.usage.limitPrecheck</i> system property is false.
+     */
+    private static final boolean HARD_LIMIT_PRECHECK = Boolean.parseBoolean(
+            System.getProperty("jog.usage.limitPrecheck", "true"));
 
     private CustomerUsageDatabase customerUsageDatabase;
 
-    private TreeMap<Long, Integer> accountsTreeMap;
+    private PhoneAccountIndex phoneAccountIndex;
+
+    private final Path logDirectory;
+    private final boolean printErrors;
+
+    /**
+     * A headless interface may ingest several files at once, so its files share one writer per log instead of each
+     * opening their own. They are opened by the first file and closed by {@link #close()}. Guarded by this.
+     */
+    private final boolean sharedLogWriters;
+    private AsyncLogWriter sharedErrorWriter;
+    private AsyncLogWriter sharedDatabaseWriter;
 
-    private enum UsageType {
+    /**
+     * Each parse worker gets its own tokenizer and record, which are reused for every line it validates.
+     */
+    private final ThreadLocal<UsageTokenizer> usageTokenizer = ThreadLocal.withInitial(UsageTokenizer::new);
+    private final ThreadLocal<UsageRecord> usageRecord = ThreadLocal.withInitial(UsageRecord::new);
+
+    /**
+     * Catches records that were already ingested, across every file this interface ingests, or <b>null</b> if
+     * deduplication is turned off.
+     */
+    private final UsageDeduplicator usageDeduplicator = UsageDeduplicator.ENABLED ? new UsageDeduplicator() : null;
+
+    enum UsageType {
         TYPE_TEXT, TYPE_CALL, TYPE_INTERNET, TYPE_COMMENT, TYPE_UNKNOWN_USAGE, TYPE_INVALID_FORMAT, TYPE_INVALID_DATE,
         TYPE_INVALID_PHONE, TYPE_NO_ACCOUNT, TYPE_NO_SERVICE, TYPE_UNKNOWN_SQL_ERROR, TYPE_SOURCE_AND_DEST_SAME,
         TYPE_END_BEFORE_START, TYPE_TOO_MANY_BYTES, TYPE_TOO_MANY_MEGABYTES, TYPE_TOO_FEW_BYTES, TYPE_TOO_FEW_MEGABYTES,
-        TYPE_INVALID_BYTES, TYPE_INVALID_MEGABYTES
+        TYPE_INVALID_BYTES, TYPE_INVALID_MEGABYTES, TYPE_DUPLICATE
     }
 
     public StreamInputInterface() {
         System.out.println("************** Welcome to the Jog Wireless data stream! **************");
         customerUsageDatabase = new CustomerUsageDatabase();
-        accountsTreeMap = customerUsageDatabase.getAllPhoneNumbersWithAccounts();
+        phoneAccountIndex = customerUsageDatabase.getAllPhoneNumbersWithAccounts();
+        if (HARD_LIMIT_PRECHECK) {
+            customerUsageDatabase.enableHardLimitPrecheck(phoneAccountIndex);
+        }
+        logDirectory = Paths.get("usage");
+        printErrors = true;
+        sharedLogWriters = false;
+    }
+
+    /**
+     * Creates a stream interface for programs that run without a console. Errors are only written to the error log,
+     * not to standard output. Several files may be ingested at once, and the logs stay open until {@link #close()}
+     * is called.
+     *
+     * @param logDirectory The directory that holds the <i>error.txt</i> and <i>usage_information.txt</i> logs.
+     */
+    public StreamInputInterface(Path logDirectory) {
+        customerUsageDatabase = new CustomerUsageDatabase();
+        phoneAccountIndex = customerUsageDatabase.getAllPhoneNumbersWithAccounts();
+        if (HARD_LIMIT_PRECHECK) {
+            customerUsageDatabase.enableHardLimitPrecheck(phoneAccountIndex);
+        }
+        this.logDirectory = logDirectory;
+        printErrors = false;
+        sharedLogWriters = true;
     }
 
     @Override
@@ -64,109 +125,257 @@ public class StreamInputInterface extends BaseInterface {
                 continue;
             }
             fileName = "usage/" + fileName;
-            BufferedReader bufferedReader = null;
-            FileReader inputFile = null;
-
-            FileWriter errorWriter = null;
-            FileWriter databaseWriter = null;
             try {
-                inputFile = new FileReader(fileName);
-                bufferedReader = new BufferedReader(inputFile);
-                errorWriter = new FileWriter("usage/error.txt", true);
-                databaseWriter = new FileWriter("usage/usage_information.txt", true);
-                processFile(bufferedReader, databaseWriter, errorWriter);
+                UsagePipeline usagePipeline = processFile(Paths.get(fileName), new IngestionStatistics());
+                System.out.println(usagePipeline.getStatistics());
                 System.out.println("Finished processing file!");
                 System.out.println("You may view a more detailed output of the successful operations in the " +
                         "\"usage_information.txt\" file.");
                 System.out.println("You may view a more detailed output of the failed operations in the " +
                         "\"error.txt\" file.");
                 System.out.println();
-            } catch (FileNotFoundException e) {
+            } catch (FileNotFoundException | NoSuchFileException e) {
                 System.out.println("Sorry, \"" + fileName + "\" could not be found. Please try again.");
             } catch (IOException e) {
                 System.out.println("Sorry, there was an error reading that file. Please enter a different one.");
-            } finally {
-                try {
-                    if (inputFile != null) {
-                        inputFile.close();
-                    }
-                    if (bufferedReader != null) {
-                        bufferedReader.close();
-                    }
-                    if (errorWriter != null) {
-                        errorWriter.close();
-                    }
-                    if (databaseWriter != null) {
-                        databaseWriter.close();
-                    }
-                } catch (Exception ignored) {
-                }
             }
         }
     }
 
-    private void processFile(BufferedReader bufferedReader, FileWriter databaseWriter, FileWriter errorWriter)
-            throws IOException {
-        String line;
-        int lineCount = 0;
-        while ((line = bufferedReader.readLine()) != null) {
-            lineCount++;
-            UsageType usageType = getUsageType(line);
-            String[] information;
-            UsageResult usageResult;
-            if (usageType == UsageType.TYPE_TEXT) {
-                information = getTextInformation(line);
-                long sourcePhone = Long.parseLong(information[0]);
-                long destinationPhone = Long.parseLong(information[1]);
-                String endTime = FormValidation.getUsageEndDate(information[2], 1);
-                String startTime = information[2];
-                int bytes = Integer.parseInt(information[3]);
-                if (!accountsTreeMap.containsKey(sourcePhone) && !accountsTreeMap.containsKey(destinationPhone)) {
-                    printError(UsageType.TYPE_NO_ACCOUNT, lineCount, line, errorWriter);
-                    continue;
-                }
-                usageResult = customerUsageDatabase.sendTextMessage(sourcePhone, destinationPhone, startTime, endTime,
-                        bytes);
-            } else if (usageType == UsageType.TYPE_CALL) {
-                information = getCallInformation(line);
-                long sourcePhone = Long.parseLong(information[0]);
-                long destinationPhone = Long.parseLong(information[1]);
-                String startTime = information[2];
-                String endTime = information[3];
-                if (!accountsTreeMap.containsKey(sourcePhone) && !accountsTreeMap.containsKey(destinationPhone)) {
-                    printError(UsageType.TYPE_NO_ACCOUNT, lineCount, line, errorWriter);
-                    continue;
+    /**
+     * Ingests a whole usage file without prompting the user, logging the results to the log directory.
+     *
+     * @param usageFile           The usage file to ingest.
+     * @param ingestionStatistics The statistics to which the outcome of every line and the time spent on the file
+     *                            are added.
+     * @throws IOException If the file couldn't be read or ingesting it failed.
+     */
+    public void ingestFile(Path usageFile, IngestionStatistics ingestionStatistics) throws IOException {
+        processFile(usageFile, ingestionStatistics);
+    }
+
+    private UsagePipeline processFile(Path usageFile, IngestionStatistics ingestionStatistics) throws IOException {
+        long startNanos = System.nanoTime();
+        OffsetLineReader lineReader = null;
+        FileChannel fileChannel = null;
+        AsyncLogWriter errorWriter = null;
+        AsyncLogWriter databaseWriter = null;
+        try {
+            fileChannel = FileChannel.open(usageFile, StandardOpenOption.READ);
+            UsageCheckpoint usageCheckpoint = null;
+            if (UsageCheckpoint.ENABLED) {
+                usageCheckpoint = UsageCheckpoint.load(usageFile, UsagePipeline.getWriterWorkers());
+                if (usageCheckpoint.isResumed()) {
+                    // Headless programs keep standard output for their own results
+                    PrintStream printStream = printErrors ? System.out : System.err;
+                    printStream.println("Resuming " + usageFile + " after line " + usageCheckpoint.getLineNumber() +
+                            "...");
+                    fileChannel.position(usageCheckpoint.getOffset());
                 }
-                usageResult = customerUsageDatabase.sendPhoneCall(sourcePhone, destinationPhone, startTime, endTime);
-            } else if (usageType == UsageType.TYPE_INTERNET) {
-                information = getInternetInformation(line);
-                long sourcePhone = Long.parseLong(information[0]);
-                String usageDate = information[1];
-                int megabytes = Integer.parseInt(information[2]);
-                if (!accountsTreeMap.containsKey(sourcePhone)) {
-                    printError(UsageType.TYPE_NO_ACCOUNT, lineCount, line, errorWriter);
-                    continue;
+            }
+            if (!MAPPED_FILES) {
+                lineReader = new OffsetLineReader(fileChannel);
+            }
+            if (sharedLogWriters) {
+                synchronized (this) {
+                    if (sharedErrorWriter == null) {
+                        sharedErrorWriter = new AsyncLogWriter(logDirectory.resolve("error.txt"));
+                    }
+                    if (sharedDatabaseWriter == null) {
+                        sharedDatabaseWriter = new AsyncLogWriter(logDirectory.resolve("usage_information.txt"));
+                    }
+                    errorWriter = sharedErrorWriter;
+                    databaseWriter = sharedDatabaseWriter;
                 }
-                usageResult = customerUsageDatabase.useInternet(sourcePhone, usageDate, megabytes);
-            } else if (usageType != UsageType.TYPE_COMMENT) {
-                printError(usageType, lineCount, line, errorWriter);
-                continue;
             } else {
-                //A comment
-                continue;
+                errorWriter = new AsyncLogWriter(logDirectory.resolve("error.txt"));
+                databaseWriter = new AsyncLogWriter(logDirectory.resolve("usage_information.txt"));
             }
-            if (usageResult == UsageResult.SUCCESS) {
-                printUsage(usageType, lineCount, line, databaseWriter);
-            } else if (usageResult == UsageResult.NO_SERVICE) {
-                printError(UsageType.TYPE_NO_SERVICE, usageType, lineCount, line, errorWriter);
+            UsagePipeline usagePipeline = new UsagePipeline(this, customerUsageDatabase, databaseWriter,
+                    errorWriter, ingestionStatistics, usageCheckpoint);
+            if (lineReader != null) {
+                usagePipeline.process(lineReader);
             } else {
-                printError(UsageType.TYPE_UNKNOWN_SQL_ERROR, lineCount, line, errorWriter);
+                usagePipeline.process(fileChannel);
             }
+            if (usageCheckpoint != null) {
+                usageCheckpoint.delete();
+            }
+            return usagePipeline;
+        } finally {
+            try {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+            } catch (Exception ignored) {
+            }
+            // Closing or flushing the log writers waits until every logged line has been written to the file
+            if (sharedLogWriters) {
+                flushLogWriter(errorWriter);
+                flushLogWriter(databaseWriter);
+            } else {
+                closeLogWriter(errorWriter);
+                closeLogWriter(databaseWriter);
+            }
+            ingestionStatistics.addFile(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void closeLogWriter(AsyncLogWriter logWriter) {
+        if (logWriter == null) {
+            return;
+        }
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            printLogFailure(e);
+        }
+    }
+
+    private void flushLogWriter(AsyncLogWriter logWriter) {
+        if (logWriter == null) {
+            return;
+        }
+        try {
+            logWriter.flush();
+        } catch (IOException e) {
+            printLogFailure(e);
         }
     }
 
-    private void printError(UsageType serviceError, UsageType typeOfServiceError, int lineCount, String line,
-                            FileWriter errorWriter) {
+    private void printLogFailure(IOException e) {
+        // Headless programs keep standard output for their own results
+        PrintStream printStream = printErrors ? System.out : System.err;
+        printStream.println("Sorry, some lines could not be written to the log: " + e.getMessage());
+    }
+
+    /**
+     * Closes the logs that are shared by the files of a headless interface, after writing every line that was logged
+     * to them. Files that are ingested afterwards open the logs again.
+     *
+     * @throws IOException If some lines couldn't be written to a log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        AsyncLogWriter errorWriter = sharedErrorWriter;
+        AsyncLogWriter databaseWriter = sharedDatabaseWriter;
+        sharedErrorWriter = null;
+        sharedDatabaseWriter = null;
+        try {
+            if (errorWriter != null) {
+                errorWriter.close();
+            }
+        } finally {
+            if (databaseWriter != null) {
+                databaseWriter.close();
+            }
+        }
+    }
+
+    /**
+     * @param path A file in a usage directory.
+     * @return True if the file is one of the logs that this interface writes to.
+     */
+    boolean isLogFile(Path path) {
+        Path absolutePath = path.toAbsolutePath().normalize();
+        return absolutePath.equals(logDirectory.resolve("error.txt").toAbsolutePath().normalize()) ||
+                absolutePath.equals(logDirectory.resolve("usage_information.txt").toAbsolutePath().normalize());
+    }
+
+    /**
+     * Validates a single line from a usage file. This method is safe to call from several threads at once.
+     *
+     * @param lineNumber The line number of the line in its chunk, starting at 1.
+     * @param line       The raw line.
+     * @return The validated line, which holds the event to send to the database if the line is valid.
+     */
+    UsageLine parseLine(int lineNumber, CharSequence line) {
+        UsageRecord record = usageRecord.get();
+        UsageType usageType = usageTokenizer.get().tokenize(line, record);
+        if (usageType == UsageType.TYPE_TEXT) {
+            long sourcePhone = record.getSourcePhone();
+            long destinationPhone = record.getDestinationPhone();
+            if (!phoneAccountIndex.containsPhone(sourcePhone) && !phoneAccountIndex.containsPhone(destinationPhone)) {
+                return UsageLine.invalid(lineNumber, line, UsageType.TYPE_NO_ACCOUNT);
+            }
+            return new UsageLine(lineNumber, line, usageType, UsageEvent.text(sourcePhone, destinationPhone,
+                    record.getStartTime(), record.getEndTime(), record.getAmount()), getAccount(sourcePhone),
+                    getAccount(destinationPhone), record.getStartSeconds(), record.getEndSeconds());
+        } else if (usageType == UsageType.TYPE_CALL) {
+            long sourcePhone = record.getSourcePhone();
+            long destinationPhone = record.getDestinationPhone();
+            if (!phoneAccountIndex.containsPhone(sourcePhone) && !phoneAccountIndex.containsPhone(destinationPhone)) {
+                return UsageLine.invalid(lineNumber, line, UsageType.TYPE_NO_ACCOUNT);
+            }
+            return new UsageLine(lineNumber, line, usageType, UsageEvent.call(sourcePhone, destinationPhone,
+                    record.getStartTime(), record.getEndTime()), getAccount(sourcePhone),
+                    getAccount(destinationPhone), record.getStartSeconds(), record.getEndSeconds());
+        } else if (usageType == UsageType.TYPE_INTERNET) {
+            long sourcePhone = record.getSourcePhone();
+            if (!phoneAccountIndex.containsPhone(sourcePhone)) {
+                return UsageLine.invalid(lineNumber, line, UsageType.TYPE_NO_ACCOUNT);
+            }
+            return new UsageLine(lineNumber, line, usageType, UsageEvent.internet(sourcePhone,
+                    record.getStartTime(), record.getAmount()), getAccount(sourcePhone), UsageLine.NO_ACCOUNT,
+                    record.getStartSeconds(), record.getStartSeconds());
+        } else {
+            return UsageLine.invalid(lineNumber, line, usageType);
+        }
+    }
+
+    private int getAccount(long phoneNumber) {
+        return phoneAccountIndex.getAccount(phoneNumber);
+    }
+
+    /**
+     * Checks a valid line against every record that this interface ingested recently, including those of other
+     * files. The line is remembered if it is new.
+     *
+     * @return True if the line is a duplicate that should not be sent to the database.
+     */
+    boolean isDuplicate(UsageLine usageLine) {
+        return usageDeduplicator != null && usageDeduplicator.isDuplicate(usageLine.getUsageEvent(),
+                usageLine.getStartSeconds(), usageLine.getEndSeconds());
+    }
+
+    /**
+     * Forgets a line that the database failed to record, so it isn't treated as a duplicate if it is sent again.
+     */
+    void forgetUsage(UsageLine usageLine) {
+        if (usageDeduplicator != null) {
+            usageDeduplicator.forget(usageLine.getUsageEvent(), usageLine.getStartSeconds(),
+                    usageLine.getEndSeconds());
+        }
+    }
+
+    /**
+     * Logs a line that was not sent to the database. Comments are skipped.
+     */
+    void logInvalidLine(UsageLine usageLine, AsyncLogWriter errorWriter) {
+        if (usageLine.getUsageType() != UsageType.TYPE_COMMENT) {
+            printError(usageLine.getUsageType(), usageLine.getLineNumber(), usageLine.getLine(), errorWriter);
+        }
+    }
+
+    /**
+     * Logs the database's result for a line that was sent to the database.
+     */
+    void logUsageResult(UsageLine usageLine, UsageResult usageResult, AsyncLogWriter databaseWriter,
+                        AsyncLogWriter errorWriter) {
+        UsageType usageType = usageLine.getUsageType();
+        int lineCount = usageLine.getLineNumber();
+        CharSequence line = usageLine.getLine();
+        if (usageResult == UsageResult.SUCCESS) {
+            printUsage(usageType, lineCount, line, databaseWriter);
+        } else if (usageResult == UsageResult.NO_SERVICE) {
+            printError(UsageType.TYPE_NO_SERVICE, usageType, lineCount, line, errorWriter);
+        } else {
+            printError(UsageType.TYPE_UNKNOWN_SQL_ERROR, lineCount, line, errorWriter);
+        }
+    }
+
+    private void printError(UsageType serviceError, UsageType typeOfServiceError, int lineCount, CharSequence line,
+                            AsyncLogWriter errorWriter) {
         String errorType;
         if (UsageType.TYPE_NO_SERVICE != serviceError) {
             throw new IllegalArgumentException("Invalid argument. Expected no service!");
@@ -180,16 +389,14 @@ public class StreamInputInterface extends BaseInterface {
         } else {
             throw new IllegalArgumentException("Invalid argument, found: " + typeOfServiceError.toString());
         }
-        try {
-            errorWriter.append(FormValidation.getDate()).append(" - Error at line <").append(String.valueOf(lineCount))
-                    .append("> ").append(errorType).append(" : ").append(line).append('\n');
-        } catch (IOException ignored) {
-        }
+        errorWriter.log(" - Error at line <" + lineCount + "> " + errorType + " : " + line);
     }
 
-    private void printError(UsageType typeOfError, int lineCount, String line, FileWriter errorWriter) {
+    private void printError(UsageType typeOfError, int lineCount, CharSequence line, AsyncLogWriter errorWriter) {
         String errorType;
-        System.out.println("Error processing file at line " + lineCount + ".");
+        if (printErrors) {
+            System.out.println("Error processing file at line " + lineCount + ".");
+        }
         if (UsageType.TYPE_INVALID_FORMAT == typeOfError) {
             errorType = "<INVALID FORMATTING>";
         } else if (UsageType.TYPE_UNKNOWN_USAGE == typeOfError) {
@@ -216,17 +423,15 @@ public class StreamInputInterface extends BaseInterface {
             errorType = "<TOO FEW MEGABYTES SPECIFIED>";
         } else if (UsageType.TYPE_TOO_MANY_MEGABYTES == typeOfError) {
             errorType = "<TOO MANY MEGABYTES SPECIFIED>";
+        } else if (UsageType.TYPE_DUPLICATE == typeOfError) {
+            errorType = "<DUPLICATE RECORD>";
         } else {
             errorType = "<UNKNOWN ERROR>";
         }
-        try {
-            errorWriter.append(FormValidation.getDate()).append(" - Error at line <").append(String.valueOf(lineCount))
-                    .append("> ").append(errorType).append(" : ").append(line).append('\n');
-        } catch (IOException ignored) {
-        }
+        errorWriter.log(" - Error at line <" + lineCount + "> " + errorType + " : " + line);
     }
 
-    private void printUsage(UsageType usageType, int lineCount, String line, FileWriter usageWriter) throws IOException {
+    private void printUsage(UsageType usageType, int lineCount, CharSequence line, AsyncLogWriter usageWriter) {
         String usageString;
         if (usageType == UsageType.TYPE_TEXT) {
             usageString = "<TEXT>";
@@ -237,307 +442,7 @@ public class StreamInputInterface extends BaseInterface {
         } else {
             throw new IllegalArgumentException("Invalid argument, found: " + usageType.toString());
         }
-        usageWriter.append(FormValidation.getDate()).append(" at line ").append(String.valueOf(lineCount)).append(" ")
-                .append(usageString).append(" : ").append(line).append('\n');
-    }
-
-    private UsageType getUsageType(String line) {
-        if (line == null || line.trim().length() == 0) {
-            return UsageType.TYPE_INVALID_FORMAT;
-        }
-
-        if (line.charAt(0) == '-') {
-            return UsageType.TYPE_COMMENT;
-        }
-
-        String[] tokens = line.split("\\s");
-        if (tokens.length == 0 || tokens[0] == null) {
-            return UsageType.TYPE_INVALID_FORMAT;
-        }
-
-        switch (tokens[0]) {
-            case "TEXT":
-                return verifyText(tokens);
-            case "CALL":
-                return verifyCall(tokens);
-            case "INTERNET":
-                return verifyInternet(tokens);
-            default:
-                return UsageType.TYPE_UNKNOWN_USAGE;
-        }
-    }
-
-    private UsageType verifyText(String[] tokens) {
-        if (tokens.length != 5) {
-            return UsageType.TYPE_INVALID_FORMAT;
-        }
-
-        if (!isPhoneValid(tokens[1])) {
-            return UsageType.TYPE_INVALID_PHONE;
-        }
-
-        if (!isPhoneValid(tokens[2])) {
-            return UsageType.TYPE_INVALID_PHONE;
-        }
-
-        if (getPhone(tokens[1]).equals(getPhone(tokens[2]))) {
-            return UsageType.TYPE_SOURCE_AND_DEST_SAME;
-        }
-
-        if (!isTimeValid(tokens[3])) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-
-        UsageType usageType = isBytesValid(tokens[4]);
-        if (usageType != null) {
-            return usageType;
-        }
-        return UsageType.TYPE_TEXT;
-    }
-
-    private UsageType isBytesValid(String rawBytes) {
-        if (rawBytes == null || rawBytes.length() < 2) {
-            return UsageType.TYPE_INVALID_BYTES;
-        }
-
-        if (!rawBytes.substring(rawBytes.length() - 1).equals("B")) {
-            return UsageType.TYPE_INVALID_BYTES;
-        }
-
-        int bytes;
-        try {
-            bytes = Integer.parseInt(rawBytes.substring(0, rawBytes.length() - 1));
-        } catch (NumberFormatException e) {
-            return UsageType.TYPE_INVALID_BYTES;
-        }
-        if (bytes < 0) {
-            return UsageType.TYPE_TOO_FEW_BYTES;
-        } else if (bytes > 100000) {
-            return UsageType.TYPE_TOO_MANY_BYTES;
-        }
-        return null;
-    }
-
-    private boolean isPhoneValid(String rawPhone) {
-        return FormValidation.isPhoneNumberValid(rawPhone, false);
-
-    }
-
-    private boolean isTimeValid(String rawTime) {
-        if (rawTime == null) {
-            return false;
-        }
-        String[] dateTimePieces = rawTime.split(";");
-        if (dateTimePieces.length != 2) {
-            return false;
-        }
-
-        String[] datePieces = dateTimePieces[0].split("-");
-        if (datePieces.length != 3) {
-            return false;
-        }
-
-        String[] timePieces = dateTimePieces[1].split(":");
-        if (timePieces.length != 3) {
-            return false;
-        }
-
-        Calendar calendar = Calendar.getInstance();
-        int year;
-        int month;
-        int day;
-        int hour;
-        int minute;
-        int second;
-
-        try {
-            year = Integer.parseInt(datePieces[0]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        if (year < 2000 || year > 2100) {
-            return false;
-        }
-        calendar.set(Calendar.YEAR, year);
-
-        try {
-            month = Integer.parseInt(datePieces[1]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        if (month < 1 || month > 12) {
-            return false;
-        }
-        calendar.set(Calendar.MONTH, month);
-
-        try {
-            day = Integer.parseInt(datePieces[2]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        if (day < 1 || day > calendar.getMaximum(Calendar.DAY_OF_MONTH)) {
-            return false;
-        }
-
-        try {
-            hour = Integer.parseInt(timePieces[0]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        if (hour < 0 || hour > 23) {
-            return false;
-        }
-
-        try {
-            minute = Integer.parseInt(timePieces[1]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-        if (minute < 0 || minute > 59) {
-            return false;
-        }
-
-        try {
-            second = Integer.parseInt(timePieces[2]);
-        } catch (NumberFormatException e) {
-            return false;
-        }
-
-        return !(second < 0 || second > 59);
-    }
-
-    private UsageType verifyCall(String[] tokens) {
-        if (tokens.length != 5) {
-            return UsageType.TYPE_INVALID_FORMAT;
-        }
-
-        if (!isPhoneValid(tokens[1])) {
-            return UsageType.TYPE_INVALID_PHONE;
-        }
-
-        if (!isPhoneValid(tokens[2])) {
-            return UsageType.TYPE_INVALID_PHONE;
-        }
-
-        if (getPhone(tokens[1]).equals(getPhone(tokens[2]))) {
-            return UsageType.TYPE_SOURCE_AND_DEST_SAME;
-        }
-
-        if (!isTimeValid(tokens[3])) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-        String[] timePieces = tokens[3].split(";");
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        Date startDate;
-        try {
-            startDate = dateFormat.parse(timePieces[0] + " " + timePieces[1]);
-        } catch (ParseException e) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-
-        if (!isTimeValid(tokens[4])) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-        timePieces = tokens[4].split(";");
-        Date endDate;
-        try {
-            endDate = dateFormat.parse(timePieces[0] + " " + timePieces[1]);
-        } catch (ParseException e) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-
-        //Check that the dates make sense (end date is after the start date)
-        if (endDate.getTime() - startDate.getTime() <= 0) {
-            return UsageType.TYPE_END_BEFORE_START;
-        }
-
-        return UsageType.TYPE_CALL;
-    }
-
-    private UsageType verifyInternet(String[] tokens) {
-        if (tokens.length != 4) {
-            return UsageType.TYPE_INVALID_FORMAT;
-        }
-
-        if (!isPhoneValid(tokens[1])) {
-            return UsageType.TYPE_INVALID_PHONE;
-        }
-
-        if (!isTimeValid(tokens[2])) {
-            return UsageType.TYPE_INVALID_DATE;
-        }
-
-        UsageType usageType = isMegabytesValid(tokens[3]);
-        if (usageType != null) {
-            return usageType;
-        }
-
-        return UsageType.TYPE_INTERNET;
-    }
-
-    private UsageType isMegabytesValid(String rawMegabytes) {
-        if (rawMegabytes == null || rawMegabytes.length() < 2) {
-            return UsageType.TYPE_INVALID_MEGABYTES;
-        }
-
-        if (!rawMegabytes.substring(rawMegabytes.length() - 2).equals("MB")) {
-            return UsageType.TYPE_INVALID_MEGABYTES;
-        }
-
-        int megabytes;
-        try {
-            megabytes = Integer.parseInt(rawMegabytes.substring(0, rawMegabytes.length() - 2));
-        } catch (NumberFormatException e) {
-            return UsageType.TYPE_INVALID_MEGABYTES;
-        }
-
-        if (megabytes < 0) {
-            return UsageType.TYPE_TOO_FEW_MEGABYTES;
-        } else if (megabytes > 100000) {
-            return UsageType.TYPE_TOO_MANY_MEGABYTES;
-        }
-        return UsageType.TYPE_INTERNET;
-    }
-
-    private String[] getTextInformation(String sanitizedLine) {
-        String[] tokens = sanitizedLine.split("\\s");
-        String sourcePhone = getPhone(tokens[1]);
-        String destPhone = getPhone(tokens[2]);
-        String time = getTime(tokens[3]);
-        String bytes = tokens[4].substring(0, tokens[4].length() - 1);
-        return new String[]{sourcePhone, destPhone, time, bytes};
-    }
-
-    private String[] getCallInformation(String sanitizedLine) {
-        String[] tokens = sanitizedLine.split("\\s");
-        String sourcePhone = getPhone(tokens[1]);
-        String destPhone = getPhone(tokens[2]);
-        String startTime = getTime(tokens[3]);
-        String endTime = getTime(tokens[4]);
-        return new String[]{sourcePhone, destPhone, startTime, endTime};
-    }
-
-    private String[] getInternetInformation(String sanitizedLine) {
-        String[] tokens = sanitizedLine.split("\\s");
-        String sourcePhone = getPhone(tokens[1]);
-        String timeUsed = getTime(tokens[2]);
-        String megabytes = tokens[3].substring(0, tokens[3].length() - 2);
-        return new String[]{sourcePhone, timeUsed, megabytes};
-    }
-
-    private String getPhone(String sanitizedRawPhone) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < sanitizedRawPhone.length(); i++) {
-            if (Character.isDigit(sanitizedRawPhone.charAt(i))) {
-                builder.append(sanitizedRawPhone.charAt(i));
-            }
-        }
-        return builder.toString();
-    }
-
-    private String getTime(String sanitizedRawDate) {
-        String[] tokens = sanitizedRawDate.split(";");
-        return tokens[0] + " " + tokens[1];
+        usageWriter.log(" at line " + lineCount + " " + usageString + " : " + line);
     }
 
 }
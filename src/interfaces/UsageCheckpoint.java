@@ -0,0 +1,236 @@
+package interfaces;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers how far the ingestion of a usage file got in a small sidecar file next to it, named
+ * <i>.&lt;file name&gt;.checkpoint</i>, so a file that was interrupted by a database outage or a restart can be
+ * resumed without sending the usage it had already checkpointed to the database again.
+ * <p></p>
+ * A checkpoint holds the byte offset and line number before which every line of the file has been committed, and the
+ * last line that each DB writer committed after that. The writers commit the lines of their own accounts in file
+ * order, so a resumed file seeks straight to the offset and each writer skips the lines it had already committed.
+ * A resumed file always uses the writer count it was started with, since that decides which writer owns a line.
+ * <p></p>
+ * The checkpoint is saved right after every batch that the database commits, and each batch is committed in a
+ * single transaction, so an outage never leaves part of a batch committed. The checkpoint is still a separate file
+ * though, so a process that dies between the commit of a batch and the save of its checkpoint sends that batch again
+ * when the file is resumed, up to one batch per writer. The checkpoint is deleted once the whole file has been
+ * ingested. It is only trusted if it belongs to the same file, which is checked with the file's key and a checksum
+ * of the bytes before the offset, so a new file with the same name starts from the beginning. Checkpoints may be
+ * turned off with the <i>jog.stream.checkpoints</i> system property.
+ */
+final class UsageCheckpoint {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jog.stream.checkpoints", "true"));
+
+    private static final String SUFFIX = ".checkpoint";
+    private static final int CHECKSUM_BYTES = 4096;
+
+    private static final String KEY_FILE_KEY = "fileKey";
+    private static final String KEY_CHECKSUM = "checksum";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_LINE = "line";
+    private static final String KEY_LAST_RECORD_LINE = "lastRecordLine";
+    private static final String KEY_WRITER_LINES = "writerLines";
+
+    private final Path usageFile;
+    private final Path checkpointFile;
+    private final String fileKey;
+    private final long offset;
+    private final int lineNumber;
+    private final int[] writerLines;
+
+    // The checksum only changes until the offset passes CHECKSUM_BYTES, so it is kept between saves
+    private int checksumBytes = -1;
+    private long checksum;
+
+    private UsageCheckpoint(Path usageFile, String fileKey, long offset, int lineNumber, int[] writerLines) {
+        this.usageFile = usageFile;
+        this.checkpointFile = getCheckpointFile(usageFile);
+        this.fileKey = fileKey;
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+        this.writerLines = writerLines;
+    }
+
+    /**
+     * Reads the checkpoint of a usage file.
+     *
+     * @param usageFile     The usage file that is about to be ingested.
+     * @param writerWorkers The number of DB writers to use if the file is started from the beginning.
+     * @return The point to resume the file from, which is the start of the file if it has no checkpoint or the
+     * checkpoint belongs to a different file.
+     * @throws IOException If the usage file couldn't be read.
+     */
+    static UsageCheckpoint load(Path usageFile, int writerWorkers) throws IOException {
+        String fileKey = getFileKey(usageFile);
+        UsageCheckpoint start = new UsageCheckpoint(usageFile, fileKey, 0, 0, new int[writerWorkers]);
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(getCheckpointFile(usageFile))) {
+            properties.load(inputStream);
+        } catch (NoSuchFileException e) {
+            return start;
+        }
+        try {
+            long offset = Long.parseLong(properties.getProperty(KEY_OFFSET));
+            int lineNumber = Integer.parseInt(properties.getProperty(KEY_LINE));
+            String[] writerLineValues = properties.getProperty(KEY_WRITER_LINES).split(",");
+            int[] writerLines = new int[writerLineValues.length];
+            for (int i = 0; i < writerLines.length; i++) {
+                writerLines[i] = Integer.parseInt(writerLineValues[i]);
+            }
+            long checksum = Long.parseLong(properties.getProperty(KEY_CHECKSUM));
+            if (!fileKey.equals(properties.getProperty(KEY_FILE_KEY)) || offset < 0 ||
+                    offset > Files.size(usageFile) ||
+                    checksum != getChecksum(usageFile, (int) Math.min(offset, CHECKSUM_BYTES))) {
+                return start;
+            }
+            return new UsageCheckpoint(usageFile, fileKey, offset, lineNumber, writerLines);
+        } catch (NullPointerException | NumberFormatException e) {
+            // The checkpoint is from an older version or was damaged
+            return start;
+        }
+    }
+
+    /**
+     * @return The sidecar file that holds the checkpoint of the given usage file.
+     */
+    static Path getCheckpointFile(Path usageFile) {
+        return usageFile.resolveSibling("." + usageFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * @return True if the given file holds the checkpoint of a usage file.
+     */
+    static boolean isCheckpointFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(SUFFIX);
+    }
+
+    /**
+     * @return True if the file is being resumed instead of starting from the beginning.
+     */
+    boolean isResumed() {
+        if (offset > 0) {
+            return true;
+        }
+        for (int writerLine : writerLines) {
+            if (writerLine > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The byte offset at which to start reading the file.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The number of lines before the offset.
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return The last line that each DB writer committed after the offset, or <b>0</b> for a writer that hadn't
+     * committed anything after it. The length of the array is the number of writers to use.
+     */
+    int[] getWriterLines() {
+        return Arrays.copyOf(writerLines, writerLines.length);
+    }
+
+    /**
+     * Replaces the sidecar with a new checkpoint. The new file is written and forced to the disk before it is moved
+     * over the old one, so a crash leaves either the old checkpoint or the new one.
+     *
+     * @param offset         The byte offset before which every line has been committed.
+     * @param lineNumber     The number of lines before the offset.
+     * @param lastRecordLine The last line whose usage was committed, for whoever reads the sidecar.
+     * @param writerLines    The last line that each DB writer committed.
+     * @throws IOException If the checkpoint couldn't be written.
+     */
+    void save(long offset, int lineNumber, int lastRecordLine, int[] writerLines) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_FILE_KEY, fileKey);
+        int bytes = (int) Math.min(offset, CHECKSUM_BYTES);
+        if (bytes != checksumBytes) {
+            checksum = getChecksum(usageFile, bytes);
+            checksumBytes = bytes;
+        }
+        properties.setProperty(KEY_CHECKSUM, Long.toString(checksum));
+        properties.setProperty(KEY_OFFSET, Long.toString(offset));
+        properties.setProperty(KEY_LINE, Integer.toString(lineNumber));
+        properties.setProperty(KEY_LAST_RECORD_LINE, Integer.toString(lastRecordLine));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < writerLines.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(writerLines[i]);
+        }
+        properties.setProperty(KEY_WRITER_LINES, builder.toString());
+
+        Path temporaryFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (FileChannel fileChannel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream outputStream = Channels.newOutputStream(fileChannel);
+            properties.store(outputStream, "Ingestion checkpoint of " + usageFile.getFileName());
+            outputStream.flush();
+            fileChannel.force(true);
+        }
+        Files.move(temporaryFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the sidecar once the whole file has been ingested.
+     *
+     * @throws IOException If the sidecar couldn't be deleted.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(checkpointFile);
+    }
+
+    private static String getFileKey(Path usageFile) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(usageFile, BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        return fileKey != null ? fileKey.toString() : Long.toString(attributes.creationTime().toMillis());
+    }
+
+    /**
+     * @return A checksum of the first bytes of the file, which are never more than the bytes before the offset. Those
+     * bytes have already been ingested, so they stay the same even if more lines are appended to the file.
+     */
+    private static long getChecksum(Path usageFile, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        try (FileChannel fileChannel = FileChannel.open(usageFile, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && fileChannel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 0, buffer.position());
+        return crc32.getValue();
+    }
+
+}
@@ -0,0 +1,227 @@
+package interfaces;
+
+import database.UsageEvent;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the usage records that were recently ingested, so a record that is delivered again, whether in the same
+ * file or in a file that was re-sent, is caught before it reaches the database and bills the customer twice.
+ * <p></p>
+ * A record is identified by its type, source phone, destination phone, start time and amount, where the amount of a
+ * phone call is its length in seconds, since two calls that only differ in their end time are different calls. Those
+ * fit exactly in two longs, so the check never has false positives. A record whose amount doesn't fit in its
+ * {@link #AMOUNT_BITS} bits, such as a call that lasts over a thousand years, is let through without being checked.
+ * The records are kept in one open-addressing table per hour of start time. Only the hours within
+ * <i>jog.stream.dedupWindowHours</i> of the newest record that was seen are kept, and the oldest hours are dropped
+ * early once more than <i>jog.stream.dedupMaxRecords</i> records are held, so the memory stays bounded. A record
+ * that is older than every hour that is kept can't be checked and is let through.
+ * <p></p>
+ * Deduplication may be turned off with the <i>jog.stream.dedup</i> system property.
+ */
+final class UsageDeduplicator {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jog.stream.dedup", "true"));
+
+    private static final int WINDOW_HOURS = Math.max(1, Integer.getInteger("jog.stream.dedupWindowHours", 72));
+    private static final int MAX_RECORDS = Math.max(1024, Integer.getInteger("jog.stream.dedupMaxRecords",
+            2000000));
+
+    private static final long SECONDS_PER_HOUR = 3600;
+
+    /**
+     * The bits of the amount. The lowest {@link #HIGH_AMOUNT_BITS} are packed in the high half of a key and the rest
+     * in the top of the low half, so calls of up to about a thousand years fit.
+     */
+    private static final int AMOUNT_BITS = 35;
+    private static final int HIGH_AMOUNT_BITS = 17;
+
+    /**
+     * Marks a used slot, since the high half of a key never has its top bit set otherwise.
+     */
+    private static final long OCCUPIED = Long.MIN_VALUE;
+
+    // Guarded by this
+    private final TreeMap<Long, HourTable> hourTables = new TreeMap<>();
+    private long newestHour = Long.MIN_VALUE;
+    private long recordCount;
+
+    /**
+     * Remembers a record, unless it has been seen before.
+     *
+     * @param usageEvent   The record's event.
+     * @param startSeconds The record's start time, in seconds since the epoch.
+     * @param endSeconds   The record's end time, in seconds since the epoch.
+     * @return True if the same record was already seen within the window.
+     */
+    synchronized boolean isDuplicate(UsageEvent usageEvent, long startSeconds, long endSeconds) {
+        long amount = getAmount(usageEvent, startSeconds, endSeconds);
+        if (amount >>> AMOUNT_BITS != 0) {
+            return false;
+        }
+        long hour = Math.floorDiv(startSeconds, SECONDS_PER_HOUR);
+        if (hour > newestHour) {
+            newestHour = hour;
+            // Drop the hours that have fallen out of the window
+            Iterator<Map.Entry<Long, HourTable>> iterator = hourTables.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, HourTable> entry = iterator.next();
+                if (entry.getKey() > newestHour - WINDOW_HOURS) {
+                    break;
+                }
+                recordCount -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+        // A full deduplicator would drop the hour of a record that is older than every hour it holds right away
+        if (hour <= newestHour - WINDOW_HOURS || (!hourTables.isEmpty() && hour < hourTables.firstKey() &&
+                recordCount >= MAX_RECORDS)) {
+            return false;
+        }
+
+        HourTable hourTable = hourTables.get(hour);
+        if (hourTable == null) {
+            hourTable = new HourTable();
+            hourTables.put(hour, hourTable);
+        }
+        if (!hourTable.add(getHigh(usageEvent, amount), getLow(usageEvent, amount, startSeconds))) {
+            return true;
+        }
+        recordCount++;
+        while (recordCount > MAX_RECORDS && hourTables.size() > 1) {
+            recordCount -= hourTables.pollFirstEntry().getValue().size;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets a record, so it may be ingested again. Used for records that the database failed to record.
+     *
+     * @param usageEvent   The record's event.
+     * @param startSeconds The record's start time, in seconds since the epoch.
+     * @param endSeconds   The record's end time, in seconds since the epoch.
+     */
+    synchronized void forget(UsageEvent usageEvent, long startSeconds, long endSeconds) {
+        long amount = getAmount(usageEvent, startSeconds, endSeconds);
+        HourTable hourTable = hourTables.get(Math.floorDiv(startSeconds, SECONDS_PER_HOUR));
+        if (amount >>> AMOUNT_BITS == 0 && hourTable != null &&
+                hourTable.remove(getHigh(usageEvent, amount), getLow(usageEvent, amount, startSeconds))) {
+            recordCount--;
+        }
+    }
+
+    /**
+     * @return The length of a phone call in seconds, or the amount of a text message or internet usage.
+     */
+    private static long getAmount(UsageEvent usageEvent, long startSeconds, long endSeconds) {
+        return usageEvent.getType() == UsageEvent.Type.CALL ? endSeconds - startSeconds : usageEvent.getAmount();
+    }
+
+    /**
+     * Packs the type, the low bits of the amount and the source phone. Phones have 10 digits, which fit in 34 bits.
+     */
+    private static long getHigh(UsageEvent usageEvent, long amount) {
+        return OCCUPIED | (long) usageEvent.getType().ordinal() << 51 |
+                (amount & (1L << HIGH_AMOUNT_BITS) - 1) << 34 | usageEvent.getSourcePhone();
+    }
+
+    /**
+     * Packs the high bits of the amount, the destination phone and the second within the hour.
+     */
+    private static long getLow(UsageEvent usageEvent, long amount, long startSeconds) {
+        return amount >>> HIGH_AMOUNT_BITS << 46 | usageEvent.getDestinationPhone() << 12 |
+                Math.floorMod(startSeconds, SECONDS_PER_HOUR);
+    }
+
+    /**
+     * A set of keys with linear probing that is never more than half full.
+     */
+    private static final class HourTable {
+
+        private long[] highs = new long[64];
+        private long[] lows = new long[64];
+        private int size;
+
+        /**
+         * @return True if the key was added, or false if it was already in the table.
+         */
+        private boolean add(long high, long low) {
+            int mask = highs.length - 1;
+            int slot = getSlot(high, low, mask);
+            while (highs[slot] != 0) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            if (++size > highs.length / 2) {
+                grow();
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the key was in the table.
+         */
+        private boolean remove(long high, long low) {
+            int mask = highs.length - 1;
+            int slot = getSlot(high, low, mask);
+            while (highs[slot] != 0) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    highs[slot] = 0;
+                    size--;
+                    closeGap(slot, mask);
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * Moves the keys after an emptied slot back so none of them is cut off from its home slot.
+         */
+        private void closeGap(int gap, int mask) {
+            int slot = (gap + 1) & mask;
+            while (highs[slot] != 0) {
+                int home = getSlot(highs[slot], lows[slot], mask);
+                if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                    highs[gap] = highs[slot];
+                    lows[gap] = lows[slot];
+                    highs[slot] = 0;
+                    gap = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void grow() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            highs = new long[oldHighs.length * 2];
+            lows = new long[oldLows.length * 2];
+            int mask = highs.length - 1;
+            for (int i = 0; i < oldHighs.length; i++) {
+                if (oldHighs[i] != 0) {
+                    int slot = getSlot(oldHighs[i], oldLows[i], mask);
+                    while (highs[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    highs[slot] = oldHighs[i];
+                    lows[slot] = oldLows[i];
+                }
+            }
+        }
+
+        private static int getSlot(long high, long low, int mask) {
+            long hash = (high * 0x9E3779B97F4A7C15L) ^ (low * 0xC2B2AE3D27D4EB4FL);
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+    }
+
+}
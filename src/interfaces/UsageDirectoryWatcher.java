@@ -0,0 +1,331 @@
+package interfaces;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches a usage directory and ingests every file that appears in it, so usage files that the switches drop off
+ * during the day are loaded without anyone naming them at a prompt.
+ * <p></p>
+ * Files that are already in the directory are ingested when watching starts. After that, a file is picked up once it
+ * is created, moved in or rewritten, and once its size and modification time have stayed the same for
+ * <i>jog.watch.settleMillis</i> milliseconds, so a file that is still being written isn't read halfway. Each file is
+ * ingested through {@link StreamInputInterface#ingestFile(Path, IngestionStatistics)} and then moved to the
+ * <i>processed</i> folder, or to the <i>failed</i> folder if ingesting it threw an exception. A failed file keeps its
+ * {@link UsageCheckpoint}, so moving it back into the directory resumes it where it left off. Hidden files, such as
+ * the checkpoints, the logs and the folders themselves are ignored.
+ * <p></p>
+ * At most <i>parallelism</i> files are ingested at once. Every file uses its own writer connections, so the
+ * parallelism times <i>jog.stream.writerWorkers</i> should not be larger than <i>jog.pool.maxSize</i>, or the files
+ * wait on each other for connections. Files that are ingested at the same time may apply their usage in any order.
+ */
+public final class UsageDirectoryWatcher {
+
+    private static final long SETTLE_MILLIS = Math.max(0, Integer.getInteger("jog.watch.settleMillis", 2000));
+    private static final long POLL_MILLIS = 500;
+
+    private static final String PROCESSED_FOLDER = "processed";
+    private static final String FAILED_FOLDER = "failed";
+
+    /**
+     * Notified from an ingestion thread once a file has been ingested and moved out of the directory.
+     */
+    public interface Listener {
+
+        /**
+         * @param usageFile  Where the file was moved to, or where it was if it couldn't be moved.
+         * @param statistics The outcome of every line in the file.
+         * @param error      The exception that stopped the file from being ingested, or <b>null</b> if it was
+         *                   ingested.
+         */
+        void fileIngested(Path usageFile, IngestionStatistics statistics, Exception error);
+
+    }
+
+    private final StreamInputInterface streamInputInterface;
+    private final Path directory;
+    private final Path processedDirectory;
+    private final Path failedDirectory;
+    private final Listener listener;
+    private final ExecutorService ingestionExecutor;
+
+    /**
+     * The files that are waiting to settle or being ingested, which are ignored if they change again.
+     */
+    private final Set<Path> pendingFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The size and modification time of the files that haven't settled yet. Only used by the watching thread.
+     */
+    private final Map<Path, FileState> settlingFiles = new HashMap<>();
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean started;
+    private volatile boolean stopRequested;
+    private volatile WatchService watchService;
+
+    /**
+     * @param streamInputInterface The interface that ingests each file.
+     * @param directory            The directory to watch.
+     * @param parallelism          The most files that may be ingested at once.
+     * @param listener             Notified once each file has been ingested.
+     */
+    public UsageDirectoryWatcher(StreamInputInterface streamInputInterface, Path directory, int parallelism,
+                                 Listener listener) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1, found: " + parallelism);
+        }
+        this.streamInputInterface = streamInputInterface;
+        this.directory = directory;
+        this.processedDirectory = directory.resolve(PROCESSED_FOLDER);
+        this.failedDirectory = directory.resolve(FAILED_FOLDER);
+        this.listener = listener;
+        this.ingestionExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "jog-watch-ingest-" + threadCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Watches the directory on the calling thread until {@link #stop()} is called, then waits for the files that are
+     * being ingested to finish.
+     *
+     * @throws IOException If the directory couldn't be watched, or if it was deleted while being watched.
+     */
+    public void run() throws IOException {
+        started = true;
+        try {
+            Files.createDirectories(processedDirectory);
+            Files.createDirectories(failedDirectory);
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            scanDirectory();
+            while (!stopRequested) {
+                WatchKey watchKey = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (watchKey != null) {
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Some events were lost, so look at everything again
+                            scanDirectory();
+                        } else {
+                            trackFile(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!watchKey.reset()) {
+                        throw new IOException("The directory " + directory + " can no longer be watched");
+                    }
+                }
+                submitSettledFiles();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stop() was called
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeWatchService();
+            ingestionExecutor.shutdown();
+            boolean interrupted = false;
+            while (!ingestionExecutor.isTerminated()) {
+                try {
+                    ingestionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops watching the directory and waits until the files that were being ingested have been moved. Files that
+     * hadn't settled yet are left where they are and are picked up the next time the directory is watched.
+     */
+    public void stop() {
+        stopRequested = true;
+        closeWatchService();
+        boolean interrupted = false;
+        while (started && stopped.getCount() > 0) {
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeWatchService() {
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void scanDirectory() throws IOException {
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+            for (Path path : directoryStream) {
+                trackFile(path);
+            }
+        }
+    }
+
+    /**
+     * Starts waiting for the given file to settle, unless it isn't a usage file or it is already pending.
+     */
+    private void trackFile(Path path) {
+        String name = path.getFileName().toString();
+        if (name.startsWith(".") || pendingFiles.contains(path) || streamInputInterface.isLogFile(path)) {
+            return;
+        }
+        FileState fileState = FileState.read(path);
+        if (fileState != null) {
+            pendingFiles.add(path);
+            settlingFiles.put(path, fileState);
+        }
+    }
+
+    private void submitSettledFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, FileState>> iterator = settlingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, FileState> entry = iterator.next();
+            final Path path = entry.getKey();
+            FileState fileState = FileState.read(path);
+            if (fileState == null) {
+                // The file was deleted or moved away before it settled
+                iterator.remove();
+                pendingFiles.remove(path);
+            } else if (!fileState.equals(entry.getValue())) {
+                entry.setValue(fileState);
+            } else if (now - fileState.seenMillis >= SETTLE_MILLIS) {
+                iterator.remove();
+                ingestionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ingestFile(path);
+                    }
+                });
+            }
+        }
+    }
+
+    private void ingestFile(Path usageFile) {
+        IngestionStatistics statistics = new IngestionStatistics();
+        Exception error = null;
+        try {
+            streamInputInterface.ingestFile(usageFile, statistics);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+        Path movedFile = usageFile;
+        try {
+            movedFile = moveFile(usageFile, error == null ? processedDirectory : failedDirectory);
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        } finally {
+            pendingFiles.remove(usageFile);
+        }
+        listener.fileIngested(movedFile, statistics, error);
+    }
+
+    /**
+     * Moves a file into the given folder, adding a number to its name if the folder already has a file by that name.
+     */
+    private static Path moveFile(Path file, Path folder) throws IOException {
+        String name = file.getFileName().toString();
+        for (int i = 1; ; i++) {
+            Path target = folder.resolve(name);
+            try {
+                return Files.move(file, target);
+            } catch (FileAlreadyExistsException e) {
+                name = file.getFileName() + "." + i;
+            }
+        }
+    }
+
+    /**
+     * The size and modification time of a regular file, along with when they were first seen.
+     */
+    private static final class FileState {
+
+        private final long size;
+        private final long modifiedMillis;
+        private final long seenMillis;
+
+        private FileState(long size, long modifiedMillis) {
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.seenMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The state of the file, or <b>null</b> if it isn't a regular file or no longer exists.
+         */
+        private static FileState read(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileState)) {
+                return false;
+            }
+            FileState other = (FileState) o;
+            return size == other.size && modifiedMillis == other.modifiedMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(size) + Long.hashCode(modifiedMillis);
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package interfaces;
+
+import database.PhoneAccountIndex;
+import database.UsageEvent;
+import interfaces.StreamInputInterface.UsageType;
+
+/**
+ * A line from a usage file after it has been validated. Valid lines carry the {@link UsageEvent} that should be sent
+ * to the database and the accounts that own the source and destination phones, which decide the writer partition
+ * that the line gets sent to.
+ */
+final class UsageLine {
+
+    static final int NO_ACCOUNT = PhoneAccountIndex.NO_ACCOUNT;
+
+    private final CharSequence line;
+    private final UsageType usageType;
+    private final UsageEvent usageEvent;
+    private final int sourceAccount;
+    private final int destinationAccount;
+    private final long startSeconds;
+    private final long endSeconds;
+    private int lineNumber;
+
+    UsageLine(int lineNumber, CharSequence line, UsageType usageType, UsageEvent usageEvent, int sourceAccount,
+              int destinationAccount, long startSeconds, long endSeconds) {
+        this.lineNumber = lineNumber;
+        this.line = line;
+        this.usageType = usageType;
+        this.usageEvent = usageEvent;
+        this.sourceAccount = sourceAccount;
+        this.destinationAccount = destinationAccount;
+        this.startSeconds = startSeconds;
+        this.endSeconds = endSeconds;
+    }
+
+    /**
+     * @param lineNumber The line number in the chunk, starting at 1.
+     * @param line       The raw line.
+     * @param usageType  The comment or error type that was found while validating the line.
+     * @return A line that should not be sent to the database.
+     */
+    static UsageLine invalid(int lineNumber, CharSequence line, UsageType usageType) {
+        return new UsageLine(lineNumber, line, usageType, null, NO_ACCOUNT, NO_ACCOUNT, 0, 0);
+    }
+
+    /**
+     * @return The line number in the file, starting at 1, once the dispatcher has called
+     * {@link #offsetLineNumber(int)}.
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Turns the line number within the line's chunk into the line number within the file. Called by the dispatcher
+     * before the line is logged or handed to a writer.
+     *
+     * @param linesBeforeChunk The number of lines in the file before the line's chunk.
+     */
+    void offsetLineNumber(int linesBeforeChunk) {
+        lineNumber += linesBeforeChunk;
+    }
+
+    CharSequence getLine() {
+        return line;
+    }
+
+    /**
+     * @return {@link UsageType#TYPE_TEXT}, {@link UsageType#TYPE_CALL} or {@link UsageType#TYPE_INTERNET} for valid
+     * lines, {@link UsageType#TYPE_COMMENT} for comments or the error that was found on the line.
+     */
+    UsageType getUsageType() {
+        return usageType;
+    }
+
+    /**
+     * @return The event to send to the database or <b>null</b> if the line is a comment or invalid.
+     */
+    UsageEvent getUsageEvent() {
+        return usageEvent;
+    }
+
+    /**
+     * @return The time that the usage started, in seconds since the epoch, or <b>0</b> if the line isn't usage.
+     */
+    long getStartSeconds() {
+        return startSeconds;
+    }
+
+    /**
+     * @return The time that the usage ended, in seconds since the epoch, the start time for internet usage, which has
+     * no end, or <b>0</b> if the line isn't usage.
+     */
+    long getEndSeconds() {
+        return endSeconds;
+    }
+
+    boolean isUsage() {
+        return usageEvent != null;
+    }
+
+    /**
+     * @return The account that owns the source phone or {@link #NO_ACCOUNT} if it isn't a Jog phone.
+     */
+    int getSourceAccount() {
+        return sourceAccount;
+    }
+
+    /**
+     * @return The account that owns the destination phone or {@link #NO_ACCOUNT} if it isn't a Jog phone or the
+     * usage has no destination.
+     */
+    int getDestinationAccount() {
+        return destinationAccount;
+    }
+
+}
@@ -0,0 +1,836 @@
+package interfaces;
+
+import database.CustomerUsageDatabase;
+import database.CustomerUsageDatabase.UsageOutageException;
+import database.CustomerUsageDatabase.UsageResult;
+import database.UsageEvent;
+import interfaces.StreamInputInterface.UsageType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A multi-stage pipeline that ingests a usage file:
+ * <ol>
+ * <li>The calling thread reads the file in chunks of lines, either through an {@link OffsetLineReader} or by cutting a
+ * memory-mapped file at line ends.</li>
+ * <li>A pool of parse workers validates each chunk in parallel.</li>
+ * <li>A dispatcher takes the parsed chunks back in file order, logs the invalid lines and routes every valid line
+ * to a DB writer, partitioned by the account that owns the phone.</li>
+ * <li>The DB writers send their lines to the database in batches and log the results.</li>
+ * </ol>
+ * Each account always maps to the same writer and the dispatcher hands lines out in file order, so the usage of an
+ * account reaches the database in the same order as it appears in the file. Texts and calls between two accounts
+ * that live on different writers are executed once both writers have caught up to them, which keeps the ordering
+ * for both accounts.
+ * <p></p>
+ * After every batch that the database commits, the pipeline saves a {@link UsageCheckpoint} so an interrupted file
+ * can be resumed where it left off.
+ * <p></p>
+ * The stages may be tuned with the <i>jog.stream.parseWorkers</i>, <i>jog.stream.writerWorkers</i>,
+ * <i>jog.stream.chunkSize</i> (lines per chunk), <i>jog.stream.chunkBytes</i> (bytes per chunk of a mapped file),
+ * <i>jog.stream.chunkQueueDepth</i> and <i>jog.stream.writerQueueDepth</i> system properties.
+ */
+final class UsagePipeline {
+
+    private static final long POLL_MILLIS = 100;
+
+    private static final ParsedChunk END_OF_FILE = new ParsedChunk(CompletableFuture.completedFuture(
+            Collections.<UsageLine>emptyList()), null);
+    private static final WorkItem END_OF_WORK = new WorkItem(null, null, null);
+
+    private final StreamInputInterface streamInputInterface;
+    private final CustomerUsageDatabase customerUsageDatabase;
+    private final AsyncLogWriter databaseWriter;
+    private final AsyncLogWriter errorWriter;
+    private final IngestionStatistics ingestionStatistics;
+    private final UsageCheckpoint usageCheckpoint;
+    private final CheckpointTracker checkpointTracker;
+
+    private final int parseWorkers;
+    private final int writerWorkers;
+    private final int chunkSize;
+    private final int chunkBytes;
+    private final int chunkQueueDepth;
+    private final int writerQueueDepth;
+
+    private StageStatistics readerStatistics = new StageStatistics("Reader", "lines");
+    private final StageStatistics parserStatistics = new StageStatistics("Parse/validate", "lines");
+    private final StageStatistics dispatcherStatistics = new StageStatistics("Dispatcher", "lines");
+    private final StageStatistics writerStatistics = new StageStatistics("DB writers", "records");
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param streamInputInterface  The interface that validates and logs the lines.
+     * @param customerUsageDatabase The database to which the valid lines are written.
+     * @param databaseWriter        The writer for the usage information log.
+     * @param errorWriter           The writer for the error log.
+     * @param ingestionStatistics   Counts the outcome of every line and the latency of every database batch.
+     * @param usageCheckpoint       Where to resume the file from and where to save its progress, or <b>null</b> to
+     *                              read the whole file without saving any checkpoints.
+     */
+    UsagePipeline(StreamInputInterface streamInputInterface, CustomerUsageDatabase customerUsageDatabase,
+                  AsyncLogWriter databaseWriter, AsyncLogWriter errorWriter, IngestionStatistics ingestionStatistics,
+                  UsageCheckpoint usageCheckpoint) {
+        this.streamInputInterface = streamInputInterface;
+        this.customerUsageDatabase = customerUsageDatabase;
+        this.databaseWriter = databaseWriter;
+        this.errorWriter = errorWriter;
+        this.ingestionStatistics = ingestionStatistics;
+        this.usageCheckpoint = usageCheckpoint;
+        parseWorkers = Math.max(1, Integer.getInteger("jog.stream.parseWorkers",
+                Runtime.getRuntime().availableProcessors()));
+        // A resumed file keeps the writers it was started with, since they decide which lines were committed
+        writerWorkers = usageCheckpoint != null ? usageCheckpoint.getWriterLines().length :
+                getWriterWorkers();
+        chunkSize = Math.max(1, Integer.getInteger("jog.stream.chunkSize", 1000));
+        chunkBytes = Math.max(1, Integer.getInteger("jog.stream.chunkBytes", 64 * 1024));
+        chunkQueueDepth = Math.max(1, Integer.getInteger("jog.stream.chunkQueueDepth", 2 * parseWorkers));
+        writerQueueDepth = Math.max(1, Integer.getInteger("jog.stream.writerQueueDepth",
+                2 * CustomerUsageDatabase.getBatchSize()));
+        checkpointTracker = new CheckpointTracker();
+    }
+
+    /**
+     * @return The number of DB writers that a file is started with.
+     */
+    static int getWriterWorkers() {
+        return Math.max(1, Integer.getInteger("jog.stream.writerWorkers", 4));
+    }
+
+    /**
+     * Runs every line of the given file through the pipeline and waits for all of them to be written and logged.
+     *
+     * @param lineReader The usage file, positioned where the checkpoint left off.
+     * @throws IOException If the file couldn't be read or one of the stages failed.
+     */
+    void process(final OffsetLineReader lineReader) throws IOException {
+        readerStatistics = new StageStatistics("Reader", "lines");
+        process(new ChunkReader() {
+            @Override
+            public Callable<List<UsageLine>> readChunk() throws IOException {
+                List<String> chunk = new ArrayList<>(chunkSize);
+                String line;
+                while (chunk.size() < chunkSize && (line = lineReader.readLine()) != null) {
+                    chunk.add(line);
+                }
+                readerStatistics.add(chunk.size());
+                return chunk.isEmpty() ? null : new ParseTask(chunk);
+            }
+
+            @Override
+            public long getOffset() {
+                return lineReader.getOffset();
+            }
+        });
+    }
+
+    /**
+     * Memory-maps the given file and runs every line of it through the pipeline, parsing the lines straight from the
+     * mapped bytes. The file is expected to be ASCII.
+     *
+     * @param fileChannel The usage file, opened for reading.
+     * @throws IOException If the file couldn't be mapped or one of the stages failed.
+     */
+    void process(FileChannel fileChannel) throws IOException {
+        readerStatistics = new StageStatistics("Reader", "bytes");
+        final MappedUsageReader mappedUsageReader = new MappedUsageReader(fileChannel, chunkBytes,
+                usageCheckpoint == null ? 0 : usageCheckpoint.getOffset());
+        process(new ChunkReader() {
+            @Override
+            public Callable<List<UsageLine>> readChunk() throws IOException {
+                ByteBuffer chunk = mappedUsageReader.nextChunk();
+                if (chunk == null) {
+                    return null;
+                }
+                readerStatistics.add(chunk.remaining());
+                return new MappedParseTask(chunk);
+            }
+
+            @Override
+            public long getOffset() {
+                return mappedUsageReader.getOffset();
+            }
+        });
+    }
+
+    private void process(ChunkReader chunkReader) throws IOException {
+        ExecutorService parseExecutor = Executors.newFixedThreadPool(parseWorkers, new StageThreadFactory(
+                "jog-usage-parser"));
+        BlockingQueue<ParsedChunk> parsedChunks = new ArrayBlockingQueue<>(chunkQueueDepth);
+
+        List<BlockingQueue<WorkItem>> writerQueues = new ArrayList<>();
+        List<WriterWorker> writers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writerWorkers; i++) {
+            BlockingQueue<WorkItem> writerQueue = new ArrayBlockingQueue<>(writerQueueDepth);
+            WriterWorker writer = new WriterWorker(i, writerQueue);
+            writerQueues.add(writerQueue);
+            writers.add(writer);
+            threads.add(new Thread(writer, "jog-usage-writer-" + i));
+        }
+        threads.add(new Thread(new Dispatcher(parsedChunks, writerQueues), "jog-usage-dispatcher"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            readerStatistics.start();
+            Callable<List<UsageLine>> parseTask;
+            while ((parseTask = chunkReader.readChunk()) != null) {
+                ChunkProgress chunkProgress = new ChunkProgress(chunkReader.getOffset());
+                checkpointTracker.addChunk(chunkProgress);
+                put(parsedChunks, new ParsedChunk(parseExecutor.submit(parseTask), chunkProgress));
+            }
+            put(parsedChunks, END_OF_FILE);
+            join(threads);
+        } catch (InterruptedException e) {
+            if (failure.get() == null) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            parseExecutor.shutdownNow();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            awaitExit(threads);
+        }
+
+        Throwable throwable = failure.get();
+        if (throwable != null) {
+            forgetUndelivered(writerQueues, writers);
+        }
+        if (throwable instanceof IOException) {
+            throw (IOException) throwable;
+        } else if (throwable instanceof InterruptedException) {
+            throw new InterruptedIOException("Interrupted while processing the usage file");
+        } else if (throwable != null) {
+            throw new IOException("A stage of the usage pipeline failed", throwable);
+        }
+    }
+
+    /**
+     * @return The throughput of every stage, one stage per line.
+     */
+    String getStatistics() {
+        return readerStatistics + "\n" + parserStatistics + "\n" + dispatcherStatistics + "\n" + writerStatistics;
+    }
+
+    /**
+     * Waits for the dispatcher and writers to finish, or for one of the stages to fail.
+     */
+    private void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(POLL_MILLIS);
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the stopped dispatcher and writers to exit, so nothing is written once the file has been given up on.
+     */
+    private static void awaitExit(List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forgets the lines that were handed to the writers but never written, so they aren't dropped as duplicates when
+     * the file is sent again. Must only be called once the writers have exited.
+     */
+    private void forgetUndelivered(List<BlockingQueue<WorkItem>> writerQueues, List<WriterWorker> writers) {
+        List<WorkItem> workItems = new ArrayList<>();
+        for (BlockingQueue<WorkItem> writerQueue : writerQueues) {
+            writerQueue.drainTo(workItems);
+        }
+        for (WriterWorker writer : writers) {
+            workItems.addAll(writer.batch);
+        }
+        for (WorkItem workItem : workItems) {
+            if (workItem != END_OF_WORK) {
+                streamInputInterface.forgetUsage(workItem.usageLine);
+            }
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        failure.compareAndSet(null, throwable);
+    }
+
+    /**
+     * Puts an item on a bounded queue, giving up if another stage has failed in the meantime so the pipeline can't
+     * dead-lock on a queue that is no longer drained.
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkForFailure();
+        }
+    }
+
+    private void await(CountDownLatch latch) throws InterruptedException {
+        while (!latch.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkForFailure();
+        }
+    }
+
+    private void checkForFailure() throws InterruptedException {
+        if (failure.get() != null) {
+            throw new InterruptedException("Another stage of the usage pipeline failed");
+        }
+    }
+
+    private static UsageType getOutcome(UsageLine usageLine, UsageResult usageResult) {
+        if (usageResult == UsageResult.SUCCESS) {
+            return usageLine.getUsageType();
+        } else if (usageResult == UsageResult.NO_SERVICE) {
+            return UsageType.TYPE_NO_SERVICE;
+        } else {
+            return UsageType.TYPE_UNKNOWN_SQL_ERROR;
+        }
+    }
+
+    private int getPartition(int accountId) {
+        return ((accountId * 0x9E3779B9) >>> 1) % writerWorkers;
+    }
+
+    /**
+     * Reads the next chunk of the file on the calling thread.
+     */
+    private interface ChunkReader {
+
+        /**
+         * @return A task that parses the next chunk of lines, or <b>null</b> if the end of the file has been reached.
+         * @throws IOException If the file couldn't be read.
+         */
+        Callable<List<UsageLine>> readChunk() throws IOException;
+
+        /**
+         * @return The byte offset in the file just past the last chunk that was read.
+         */
+        long getOffset();
+
+    }
+
+    /**
+     * Parses a chunk of lines. The lines are numbered from 1 within the chunk, since only the dispatcher knows how
+     * many lines came before it.
+     */
+    private final class ParseTask implements Callable<List<UsageLine>> {
+
+        private final List<String> lines;
+
+        private ParseTask(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public List<UsageLine> call() {
+            parserStatistics.start();
+            List<UsageLine> usageLines = new ArrayList<>(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                usageLines.add(streamInputInterface.parseLine(i + 1, lines.get(i)));
+            }
+            parserStatistics.add(usageLines.size());
+            return usageLines;
+        }
+
+    }
+
+    /**
+     * Parses a chunk of a memory-mapped file. Lines end with <i>\n</i>, <i>\r</i> or <i>\r\n</i>, the same as
+     * {@link BufferedReader#readLine()}, and are numbered from 1 within the chunk.
+     */
+    private final class MappedParseTask implements Callable<List<UsageLine>> {
+
+        private final ByteBuffer chunk;
+
+        private MappedParseTask(ByteBuffer chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public List<UsageLine> call() {
+            parserStatistics.start();
+            List<UsageLine> usageLines = new ArrayList<>();
+            int limit = chunk.limit();
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                byte b = chunk.get(i);
+                if (b == '\n' || b == '\r') {
+                    usageLines.add(streamInputInterface.parseLine(usageLines.size() + 1, new AsciiLine(chunk,
+                            lineStart, i - lineStart)));
+                    if (b == '\r' && i + 1 < limit && chunk.get(i + 1) == '\n') {
+                        i++;
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < limit) {
+                usageLines.add(streamInputInterface.parseLine(usageLines.size() + 1, new AsciiLine(chunk, lineStart,
+                        limit - lineStart)));
+            }
+            parserStatistics.add(usageLines.size());
+            return usageLines;
+        }
+
+    }
+
+    /**
+     * Consumes the parsed chunks in file order, logs invalid lines and routes valid ones to the writers.
+     */
+    private final class Dispatcher implements Runnable {
+
+        private final BlockingQueue<ParsedChunk> parsedChunks;
+        private final List<BlockingQueue<WorkItem>> writerQueues;
+        private final int[] resumedWriterLines;
+        private int linesBeforeChunk;
+
+        private Dispatcher(BlockingQueue<ParsedChunk> parsedChunks, List<BlockingQueue<WorkItem>> writerQueues) {
+            this.parsedChunks = parsedChunks;
+            this.writerQueues = writerQueues;
+            if (usageCheckpoint != null) {
+                resumedWriterLines = usageCheckpoint.getWriterLines();
+                linesBeforeChunk = usageCheckpoint.getLineNumber();
+            } else {
+                resumedWriterLines = new int[writerWorkers];
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                ParsedChunk parsedChunk;
+                while ((parsedChunk = parsedChunks.take()) != END_OF_FILE) {
+                    List<UsageLine> usageLines = parsedChunk.usageLines.get();
+                    dispatcherStatistics.start();
+                    int records = 0;
+                    for (UsageLine usageLine : usageLines) {
+                        usageLine.offsetLineNumber(linesBeforeChunk);
+                        if (dispatch(usageLine, parsedChunk.chunkProgress)) {
+                            records++;
+                        }
+                    }
+                    linesBeforeChunk += usageLines.size();
+                    checkpointTracker.chunkDispatched(parsedChunk.chunkProgress, records, linesBeforeChunk);
+                    dispatcherStatistics.add(usageLines.size());
+                }
+                for (BlockingQueue<WorkItem> writerQueue : writerQueues) {
+                    put(writerQueue, END_OF_WORK);
+                }
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        /**
+         * @return True if the line was handed to a writer, or false if it was logged as invalid or a duplicate, or had
+         * already been committed before the file was resumed.
+         */
+        private boolean dispatch(UsageLine usageLine, ChunkProgress chunkProgress) throws InterruptedException {
+            if (!usageLine.isUsage()) {
+                ingestionStatistics.countLine(usageLine.getUsageType());
+                streamInputInterface.logInvalidLine(usageLine, errorWriter);
+                return false;
+            }
+            int sourceAccount = usageLine.getSourceAccount();
+            int destinationAccount = usageLine.getDestinationAccount();
+            int sourcePartition = sourceAccount == UsageLine.NO_ACCOUNT ? -1 : getPartition(sourceAccount);
+            int destinationPartition = destinationAccount == UsageLine.NO_ACCOUNT ? -1 :
+                    getPartition(destinationAccount);
+            boolean isJoint = sourcePartition != -1 && destinationPartition != -1 &&
+                    sourcePartition != destinationPartition;
+            int ownerPartition = isJoint ? Math.min(sourcePartition, destinationPartition) :
+                    Math.max(sourcePartition, destinationPartition);
+            if (usageLine.getLineNumber() <= resumedWriterLines[ownerPartition]) {
+                // Committed before the file was resumed, so it is only remembered to catch later duplicates of it
+                streamInputInterface.isDuplicate(usageLine);
+                return false;
+            }
+            if (streamInputInterface.isDuplicate(usageLine)) {
+                UsageLine duplicateLine = UsageLine.invalid(usageLine.getLineNumber(), usageLine.getLine(),
+                        UsageType.TYPE_DUPLICATE);
+                ingestionStatistics.countLine(UsageType.TYPE_DUPLICATE);
+                streamInputInterface.logInvalidLine(duplicateLine, errorWriter);
+                return false;
+            }
+            try {
+                if (!isJoint) {
+                    put(writerQueues.get(ownerPartition), new WorkItem(usageLine, null, chunkProgress));
+                } else {
+                    WorkItem workItem = new WorkItem(usageLine, new JointUsage(ownerPartition), chunkProgress);
+                    put(writerQueues.get(sourcePartition), workItem);
+                    put(writerQueues.get(destinationPartition), workItem);
+                }
+            } catch (InterruptedException e) {
+                streamInputInterface.forgetUsage(usageLine);
+                throw e;
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * Sends the lines of one partition to the database in batches.
+     */
+    private final class WriterWorker implements Runnable {
+
+        private final int partition;
+        private final BlockingQueue<WorkItem> writerQueue;
+        private final List<WorkItem> batch = new ArrayList<>();
+        private final int batchSize = CustomerUsageDatabase.getBatchSize();
+
+        private WriterWorker(int partition, BlockingQueue<WorkItem> writerQueue) {
+            this.partition = partition;
+            this.writerQueue = writerQueue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Only block for more work once everything that was already queued has been written
+                    WorkItem workItem = batch.isEmpty() ? writerQueue.take() : writerQueue.poll();
+                    if (workItem == null) {
+                        flush();
+                    } else if (workItem == END_OF_WORK) {
+                        flush();
+                        return;
+                    } else if (workItem.jointUsage == null) {
+                        batch.add(workItem);
+                        if (batch.size() >= batchSize) {
+                            flush();
+                        }
+                    } else {
+                        flush();
+                        writeJointUsage(workItem);
+                    }
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        /**
+         * Waits until both writers that own the line's accounts have reached it, then lets the lower partition
+         * execute it while the other one waits for it to finish.
+         */
+        private void writeJointUsage(WorkItem workItem) throws InterruptedException, IOException {
+            JointUsage jointUsage = workItem.jointUsage;
+            jointUsage.arrivals.countDown();
+            if (jointUsage.ownerPartition == partition) {
+                try {
+                    await(jointUsage.arrivals);
+                } catch (InterruptedException e) {
+                    streamInputInterface.forgetUsage(workItem.usageLine);
+                    throw e;
+                }
+                try {
+                    write(Collections.singletonList(workItem));
+                } finally {
+                    jointUsage.completion.countDown();
+                }
+            } else {
+                await(jointUsage.completion);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                write(batch);
+            } finally {
+                // A failed write has already logged or forgotten every line of the batch
+                batch.clear();
+            }
+        }
+
+        /**
+         * Writes the lines to the database and logs their results. The database commits the whole batch at once, and
+         * the checkpoint is saved right after it. If the database fails, none of the lines were committed, so none of
+         * them are checkpointed or logged, and the pipeline fails so the file is resumed from the last line that every
+         * writer committed.
+         */
+        private void write(List<WorkItem> workItems) throws IOException {
+            writerStatistics.start();
+            List<UsageEvent> usageEvents = new ArrayList<>(workItems.size());
+            for (WorkItem workItem : workItems) {
+                usageEvents.add(workItem.usageLine.getUsageEvent());
+            }
+            long startNanos = System.nanoTime();
+            UsageResult[] usageResults;
+            UsageOutageException outage = null;
+            try {
+                usageResults = customerUsageDatabase.executeUsageBatch(usageEvents);
+            } catch (UsageOutageException e) {
+                usageResults = e.getResults();
+                outage = e;
+            }
+            int committed = outage == null ? usageResults.length : 0;
+            ingestionStatistics.recordDatabaseCall(System.nanoTime() - startNanos, committed);
+            if (committed > 0) {
+                checkpointTracker.batchCommitted(partition, workItems.subList(0, committed));
+            }
+            for (int i = 0; i < committed; i++) {
+                UsageLine usageLine = workItems.get(i).usageLine;
+                if (usageResults[i] == UsageResult.UNKNOWN) {
+                    // The record may not have reached the database, so let it through if it is sent again
+                    streamInputInterface.forgetUsage(usageLine);
+                }
+                ingestionStatistics.countLine(getOutcome(usageLine, usageResults[i]));
+                streamInputInterface.logUsageResult(usageLine, usageResults[i], databaseWriter, errorWriter);
+            }
+            writerStatistics.add(committed);
+            if (outage != null) {
+                for (int i = committed; i < workItems.size(); i++) {
+                    streamInputInterface.forgetUsage(workItems.get(i).usageLine);
+                }
+                throw new IOException("Could not write the usage of lines " +
+                        workItems.get(committed).usageLine.getLineNumber() + " to " +
+                        workItems.get(workItems.size() - 1).usageLine.getLineNumber(), outage);
+            }
+        }
+
+    }
+
+    private static final class WorkItem {
+
+        private final UsageLine usageLine;
+        private final JointUsage jointUsage;
+        private final ChunkProgress chunkProgress;
+
+        private WorkItem(UsageLine usageLine, JointUsage jointUsage, ChunkProgress chunkProgress) {
+            this.usageLine = usageLine;
+            this.jointUsage = jointUsage;
+            this.chunkProgress = chunkProgress;
+        }
+
+    }
+
+    private static final class ParsedChunk {
+
+        private final Future<List<UsageLine>> usageLines;
+        private final ChunkProgress chunkProgress;
+
+        private ParsedChunk(Future<List<UsageLine>> usageLines, ChunkProgress chunkProgress) {
+            this.usageLines = usageLines;
+            this.chunkProgress = chunkProgress;
+        }
+
+    }
+
+    /**
+     * How many of a chunk's records are still waiting to be committed. Guarded by the {@link CheckpointTracker}.
+     */
+    private static final class ChunkProgress {
+
+        private final long endOffset;
+        private int endLine;
+        private int pendingRecords;
+        private int lastRecordLine;
+        private boolean dispatched;
+
+        private ChunkProgress(long endOffset) {
+            this.endOffset = endOffset;
+        }
+
+        private boolean isCommitted() {
+            return dispatched && pendingRecords == 0;
+        }
+
+    }
+
+    /**
+     * Works out how much of the file has been committed and saves it to the checkpoint after every batch. The chunks
+     * are committed in file order up to the first one that still has records waiting, and each writer remembers the
+     * last line it committed past that, since the writers run ahead of each other.
+     */
+    private final class CheckpointTracker {
+
+        private final ArrayDeque<ChunkProgress> chunks = new ArrayDeque<>();
+        private final int[] writerLines;
+        private long committedOffset;
+        private int committedLines;
+        private int lastRecordLine;
+
+        private CheckpointTracker() {
+            if (usageCheckpoint != null) {
+                writerLines = usageCheckpoint.getWriterLines();
+                committedOffset = usageCheckpoint.getOffset();
+                committedLines = usageCheckpoint.getLineNumber();
+            } else {
+                writerLines = new int[writerWorkers];
+            }
+        }
+
+        /**
+         * Called by the reader for every chunk, in file order.
+         */
+        synchronized void addChunk(ChunkProgress chunkProgress) {
+            chunks.add(chunkProgress);
+        }
+
+        /**
+         * Called by the dispatcher once it has handed every record of a chunk to the writers. The writers may have
+         * committed some of them already, which leaves the pending count below zero until now.
+         */
+        synchronized void chunkDispatched(ChunkProgress chunkProgress, int records, int endLine) throws IOException {
+            chunkProgress.pendingRecords += records;
+            chunkProgress.endLine = endLine;
+            chunkProgress.dispatched = true;
+            if (chunkProgress == chunks.peek() && chunkProgress.isCommitted()) {
+                save();
+            }
+        }
+
+        /**
+         * Called by a writer once the database has committed a batch of its records. Only records that were committed
+         * may be passed, since the writer's line is moved past the last of them.
+         */
+        synchronized void batchCommitted(int partition, List<WorkItem> workItems) throws IOException {
+            for (WorkItem workItem : workItems) {
+                ChunkProgress chunkProgress = workItem.chunkProgress;
+                chunkProgress.pendingRecords--;
+                chunkProgress.lastRecordLine = Math.max(chunkProgress.lastRecordLine,
+                        workItem.usageLine.getLineNumber());
+            }
+            writerLines[partition] = workItems.get(workItems.size() - 1).usageLine.getLineNumber();
+            save();
+        }
+
+        private void save() throws IOException {
+            while (!chunks.isEmpty() && chunks.peek().isCommitted()) {
+                ChunkProgress chunkProgress = chunks.poll();
+                committedOffset = chunkProgress.endOffset;
+                committedLines = chunkProgress.endLine;
+                lastRecordLine = Math.max(lastRecordLine, chunkProgress.lastRecordLine);
+            }
+            if (usageCheckpoint != null) {
+                usageCheckpoint.save(committedOffset, committedLines, lastRecordLine, writerLines);
+            }
+        }
+
+    }
+
+    /**
+     * Coordinates a text or call that is queued on two writers because its phones belong to accounts in different
+     * partitions.
+     */
+    private static final class JointUsage {
+
+        private final int ownerPartition;
+        private final CountDownLatch arrivals = new CountDownLatch(2);
+        private final CountDownLatch completion = new CountDownLatch(1);
+
+        private JointUsage(int ownerPartition) {
+            this.ownerPartition = ownerPartition;
+        }
+
+    }
+
+    /**
+     * Tracks how many items a stage handled between the first and last time it did any work.
+     */
+    static final class StageStatistics {
+
+        private final String name;
+        private final String unit;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong firstNanos = new AtomicLong();
+        private final AtomicLong lastNanos = new AtomicLong();
+
+        StageStatistics(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void start() {
+            firstNanos.compareAndSet(0, System.nanoTime());
+        }
+
+        void add(long items) {
+            count.addAndGet(items);
+            lastNanos.set(System.nanoTime());
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getItemsPerSecond() {
+            long elapsedNanos = lastNanos.get() - firstNanos.get();
+            return elapsedNanos <= 0 ? 0 : count.get() * 1000000000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double elapsedSeconds = Math.max(0, lastNanos.get() - firstNanos.get()) / 1000000000.0;
+            return String.format("%-15s %10d %-8s in %8.3f s (%.0f %s/sec)", name, count.get(), unit, elapsedSeconds,
+                    getItemsPerSecond(), unit);
+        }
+
+    }
+
+    private static final class StageThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        private StageThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
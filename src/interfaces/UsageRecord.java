@@ -0,0 +1,164 @@
+package interfaces;
+
+import interfaces.StreamInputInterface.UsageType;
+
+/**
+ * A mutable holder for the fields of one usage line, filled in by {@link UsageTokenizer}. A single record is reused
+ * for every line a thread parses, so nothing is allocated until a valid line is turned into a
+ * {@link database.UsageEvent}.
+ * <p></p>
+ * Times are kept twice: as the date and time that was written in the file, packed into a long of the form
+ * <i>yyyyMMddHHmmss</i>, and as seconds since 1970-01-01 00:00:00. The seconds are zone-free, so a day past the end of
+ * its month (such as 2016-02-31) rolls over into the next month the same way a lenient calendar would.
+ */
+final class UsageRecord {
+
+    private UsageType usageType;
+    private long sourcePhone;
+    private long destinationPhone;
+    private long startDateTime;
+    private long startSeconds;
+    private long endDateTime;
+    private long endSeconds;
+    private int amount;
+
+    void clear() {
+        usageType = null;
+        sourcePhone = 0;
+        destinationPhone = 0;
+        startDateTime = 0;
+        startSeconds = 0;
+        endDateTime = 0;
+        endSeconds = 0;
+        amount = 0;
+    }
+
+    UsageType getUsageType() {
+        return usageType;
+    }
+
+    void setUsageType(UsageType usageType) {
+        this.usageType = usageType;
+    }
+
+    long getSourcePhone() {
+        return sourcePhone;
+    }
+
+    void setSourcePhone(long sourcePhone) {
+        this.sourcePhone = sourcePhone;
+    }
+
+    long getDestinationPhone() {
+        return destinationPhone;
+    }
+
+    void setDestinationPhone(long destinationPhone) {
+        this.destinationPhone = destinationPhone;
+    }
+
+    long getStartSeconds() {
+        return startSeconds;
+    }
+
+    void setStart(long dateTime, long seconds) {
+        this.startDateTime = dateTime;
+        this.startSeconds = seconds;
+    }
+
+    long getEndSeconds() {
+        return endSeconds;
+    }
+
+    void setEnd(long dateTime, long seconds) {
+        this.endDateTime = dateTime;
+        this.endSeconds = seconds;
+    }
+
+    /**
+     * @return The number of bytes for a text message or megabytes for internet usage.
+     */
+    int getAmount() {
+        return amount;
+    }
+
+    void setAmount(int amount) {
+        this.amount = amount;
+    }
+
+    /**
+     * @return The start time as it was written in the file, in the form "yyyy-MM-dd HH:mm:ss".
+     */
+    String getStartTime() {
+        return formatDateTime(startDateTime);
+    }
+
+    /**
+     * @return The end time in the form "yyyy-MM-dd HH:mm:ss".
+     */
+    String getEndTime() {
+        return formatDateTime(endDateTime);
+    }
+
+    /**
+     * @return The number of seconds between 1970-01-01 00:00:00 and the given date and time, ignoring time zones.
+     * Days past the end of their month are carried into the following month.
+     */
+    static long toEpochSeconds(int year, int month, int day, int hour, int minute, int second) {
+        // Days from the civil calendar, counting years from March so that February's leap day falls at the end.
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return days * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * @return The date and time of the given number of seconds since 1970-01-01 00:00:00, packed as
+     * <i>yyyyMMddHHmmss</i>.
+     */
+    static long toDateTime(long epochSeconds) {
+        long days = Math.floorDiv(epochSeconds, 86400);
+        long secondOfDay = epochSeconds - days * 86400;
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthPrime = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthPrime + 2) / 5 + 1;
+        long month = monthPrime < 10 ? monthPrime + 3 : monthPrime - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return pack(year, month, day, secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+    }
+
+    static long pack(long year, long month, long day, long hour, long minute, long second) {
+        return ((((year * 100 + month) * 100 + day) * 100 + hour) * 100 + minute) * 100 + second;
+    }
+
+    private static String formatDateTime(long dateTime) {
+        char[] chars = new char[19];
+        writeDigits(chars, 17, 2, dateTime % 100);
+        chars[16] = ':';
+        writeDigits(chars, 14, 2, dateTime / 100 % 100);
+        chars[13] = ':';
+        writeDigits(chars, 11, 2, dateTime / 10000 % 100);
+        chars[10] = ' ';
+        writeDigits(chars, 8, 2, dateTime / 1000000 % 100);
+        chars[7] = '-';
+        writeDigits(chars, 5, 2, dateTime / 100000000 % 100);
+        chars[4] = '-';
+        writeDigits(chars, 0, 4, dateTime / 10000000000L);
+        return new String(chars);
+    }
+
+    private static void writeDigits(char[] chars, int offset, int width, long value) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}
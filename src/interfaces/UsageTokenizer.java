@@ -0,0 +1,423 @@
+package interfaces;
+
+import interfaces.StreamInputInterface.UsageType;
+
+/**
+ * Validates a usage line in a single pass over its characters and fills a reusable {@link UsageRecord} with its
+ * fields, without splitting the line into strings or parsing through {@link java.text.SimpleDateFormat}.
+ * <p></p>
+ * The classification is the same as the original <i>String.split</i> based validation, including its quirks:
+ * <ul>
+ * <li>Whitespace at the end of a line, and trailing delimiters within a date, are ignored.</li>
+ * <li>Any day from 1 to 31 is accepted for every month, and rolls over into the next month if it's too large.</li>
+ * <li>Numbers may be signed, but a call's times may not have a number starting with a <i>+</i> or a date ending with
+ * a <i>-</i>.</li>
+ * </ul>
+ * A tokenizer keeps the positions of the current line's tokens, so an instance must only be used by one thread.
+ */
+final class UsageTokenizer {
+
+    private static final int MAXIMUM_AMOUNT = 100000;
+
+    /**
+     * No valid line has more than five tokens, so the positions of any further tokens are not stored.
+     */
+    private static final int MAXIMUM_TOKENS = 5;
+
+    private final int[] tokenStarts = new int[MAXIMUM_TOKENS];
+    private final int[] tokenEnds = new int[MAXIMUM_TOKENS];
+    private int tokenCount;
+    private CharSequence line;
+
+    private int parsedNumber;
+    private long parsedDateTime;
+    private long parsedSeconds;
+    private boolean parsedNonStandardDate;
+
+    /**
+     * Validates the given line and stores its fields in the record.
+     *
+     * @param line   The raw line from the usage file.
+     * @param record The record to fill. Its fields are only meaningful if the line is a valid usage.
+     * @return {@link UsageType#TYPE_TEXT}, {@link UsageType#TYPE_CALL} or {@link UsageType#TYPE_INTERNET} for a valid
+     * line, {@link UsageType#TYPE_COMMENT} for a comment or the error that was found on the line.
+     */
+    UsageType tokenize(CharSequence line, UsageRecord record) {
+        record.clear();
+        this.line = line;
+        UsageType usageType = getUsageType(record);
+        record.setUsageType(usageType);
+        this.line = null;
+        return usageType;
+    }
+
+    private UsageType getUsageType(UsageRecord record) {
+        if (line == null || isBlank()) {
+            return UsageType.TYPE_INVALID_FORMAT;
+        }
+
+        if (line.charAt(0) == '-') {
+            return UsageType.TYPE_COMMENT;
+        }
+
+        findTokens();
+        if (tokenCount == 0) {
+            return UsageType.TYPE_INVALID_FORMAT;
+        }
+
+        if (tokenEquals(0, "TEXT")) {
+            return verifyText(record);
+        } else if (tokenEquals(0, "CALL")) {
+            return verifyCall(record);
+        } else if (tokenEquals(0, "INTERNET")) {
+            return verifyInternet(record);
+        } else {
+            return UsageType.TYPE_UNKNOWN_USAGE;
+        }
+    }
+
+    private UsageType verifyText(UsageRecord record) {
+        if (tokenCount != 5) {
+            return UsageType.TYPE_INVALID_FORMAT;
+        }
+
+        if (!isPhoneValid(1) || !isPhoneValid(2)) {
+            return UsageType.TYPE_INVALID_PHONE;
+        }
+
+        if (isSamePhone(1, 2)) {
+            return UsageType.TYPE_SOURCE_AND_DEST_SAME;
+        }
+        record.setSourcePhone(getPhone(1));
+        record.setDestinationPhone(getPhone(2));
+
+        if (!parseTime(3)) {
+            return UsageType.TYPE_INVALID_DATE;
+        }
+        record.setStart(parsedDateTime, parsedSeconds);
+        // A text message is received one second after it was sent
+        record.setEnd(UsageRecord.toDateTime(parsedSeconds + 1), parsedSeconds + 1);
+
+        if (!parseAmount(4, "B")) {
+            return UsageType.TYPE_INVALID_BYTES;
+        } else if (parsedNumber < 0) {
+            return UsageType.TYPE_TOO_FEW_BYTES;
+        } else if (parsedNumber > MAXIMUM_AMOUNT) {
+            return UsageType.TYPE_TOO_MANY_BYTES;
+        }
+        record.setAmount(parsedNumber);
+        return UsageType.TYPE_TEXT;
+    }
+
+    private UsageType verifyCall(UsageRecord record) {
+        if (tokenCount != 5) {
+            return UsageType.TYPE_INVALID_FORMAT;
+        }
+
+        if (!isPhoneValid(1) || !isPhoneValid(2)) {
+            return UsageType.TYPE_INVALID_PHONE;
+        }
+
+        if (isSamePhone(1, 2)) {
+            return UsageType.TYPE_SOURCE_AND_DEST_SAME;
+        }
+        record.setSourcePhone(getPhone(1));
+        record.setDestinationPhone(getPhone(2));
+
+        if (!parseTime(3) || parsedNonStandardDate) {
+            return UsageType.TYPE_INVALID_DATE;
+        }
+        record.setStart(parsedDateTime, parsedSeconds);
+
+        if (!parseTime(4) || parsedNonStandardDate) {
+            return UsageType.TYPE_INVALID_DATE;
+        }
+        record.setEnd(parsedDateTime, parsedSeconds);
+
+        //Check that the dates make sense (end date is after the start date)
+        if (record.getEndSeconds() - record.getStartSeconds() <= 0) {
+            return UsageType.TYPE_END_BEFORE_START;
+        }
+
+        return UsageType.TYPE_CALL;
+    }
+
+    private UsageType verifyInternet(UsageRecord record) {
+        if (tokenCount != 4) {
+            return UsageType.TYPE_INVALID_FORMAT;
+        }
+
+        if (!isPhoneValid(1)) {
+            return UsageType.TYPE_INVALID_PHONE;
+        }
+        record.setSourcePhone(getPhone(1));
+
+        if (!parseTime(2)) {
+            return UsageType.TYPE_INVALID_DATE;
+        }
+        record.setStart(parsedDateTime, parsedSeconds);
+
+        if (!parseAmount(3, "MB")) {
+            return UsageType.TYPE_INVALID_MEGABYTES;
+        } else if (parsedNumber < 0) {
+            return UsageType.TYPE_TOO_FEW_MEGABYTES;
+        } else if (parsedNumber > MAXIMUM_AMOUNT) {
+            return UsageType.TYPE_TOO_MANY_MEGABYTES;
+        }
+        record.setAmount(parsedNumber);
+        return UsageType.TYPE_INTERNET;
+    }
+
+    /**
+     * @return True if every character on the line is whitespace or a control character, the same as an empty
+     * {@link String#trim()}.
+     */
+    private boolean isBlank() {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the tokens between single whitespace characters. Consecutive whitespace produces empty tokens and
+     * whitespace at the end of the line is ignored.
+     */
+    private void findTokens() {
+        int end = line.length();
+        while (end > 0 && isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        tokenCount = 0;
+        if (end == 0) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (isWhitespace(line.charAt(i))) {
+                addToken(start, i);
+                start = i + 1;
+            }
+        }
+        addToken(start, end);
+    }
+
+    private void addToken(int start, int end) {
+        if (tokenCount < MAXIMUM_TOKENS) {
+            tokenStarts[tokenCount] = start;
+            tokenEnds[tokenCount] = end;
+        }
+        tokenCount++;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private boolean tokenEquals(int token, String value) {
+        int start = tokenStarts[token];
+        if (tokenEnds[token] - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (line.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the token is of the form <i>XXX-XXX-XXXX</i>.
+     */
+    private boolean isPhoneValid(int token) {
+        int start = tokenStarts[token];
+        if (tokenEnds[token] - start != 12) {
+            return false;
+        }
+        for (int i = 0; i < 12; i++) {
+            char c = line.charAt(start + i);
+            if (i == 3 || i == 7) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!Character.isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Both tokens must already be valid phones, so they're the same number exactly when they have the same digits.
+     */
+    private boolean isSamePhone(int firstToken, int secondToken) {
+        int firstStart = tokenStarts[firstToken];
+        int secondStart = tokenStarts[secondToken];
+        for (int i = 0; i < 12; i++) {
+            if (line.charAt(firstStart + i) != line.charAt(secondStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long getPhone(int token) {
+        long phone = 0;
+        for (int i = tokenStarts[token]; i < tokenEnds[token]; i++) {
+            char c = line.charAt(i);
+            if (c != '-') {
+                phone = phone * 10 + Character.digit(c, 10);
+            }
+        }
+        return phone;
+    }
+
+    /**
+     * Parses a token of the form <i>yyyy-MM-dd;HH:mm:ss</i> into {@link #parsedDateTime} and {@link #parsedSeconds}.
+     * {@link #parsedNonStandardDate} is set if any of the numbers started with a <i>+</i> or the date had trailing
+     * dashes, which the original validation only allowed for texts and internet usage.
+     *
+     * @return True if the token is a valid time, false otherwise.
+     */
+    private boolean parseTime(int token) {
+        int start = tokenStarts[token];
+        int end = trimTrailing(start, tokenEnds[token], ';');
+        int separator = indexOf(start, end, ';');
+        if (separator == -1 || indexOf(separator + 1, end, ';') != -1) {
+            return false;
+        }
+
+        int dateEnd = trimTrailing(start, separator, '-');
+        int firstDash = indexOf(start, dateEnd, '-');
+        int secondDash = firstDash == -1 ? -1 : indexOf(firstDash + 1, dateEnd, '-');
+        if (secondDash == -1 || indexOf(secondDash + 1, dateEnd, '-') != -1) {
+            return false;
+        }
+
+        int timeEnd = trimTrailing(separator + 1, end, ':');
+        int firstColon = indexOf(separator + 1, timeEnd, ':');
+        int secondColon = firstColon == -1 ? -1 : indexOf(firstColon + 1, timeEnd, ':');
+        if (secondColon == -1 || indexOf(secondColon + 1, timeEnd, ':') != -1) {
+            return false;
+        }
+
+        parsedNonStandardDate = dateEnd != separator;
+        if (!parseNumber(start, firstDash, 2000, 2100)) {
+            return false;
+        }
+        int year = parsedNumber;
+        if (!parseNumber(firstDash + 1, secondDash, 1, 12)) {
+            return false;
+        }
+        int month = parsedNumber;
+        if (!parseNumber(secondDash + 1, dateEnd, 1, 31)) {
+            return false;
+        }
+        int day = parsedNumber;
+        if (!parseNumber(separator + 1, firstColon, 0, 23)) {
+            return false;
+        }
+        int hour = parsedNumber;
+        if (!parseNumber(firstColon + 1, secondColon, 0, 59)) {
+            return false;
+        }
+        int minute = parsedNumber;
+        if (!parseNumber(secondColon + 1, timeEnd, 0, 59)) {
+            return false;
+        }
+        int second = parsedNumber;
+
+        parsedDateTime = UsageRecord.pack(year, month, day, hour, minute, second);
+        parsedSeconds = UsageRecord.toEpochSeconds(year, month, day, hour, minute, second);
+        return true;
+    }
+
+    private boolean parseNumber(int start, int end, int minimum, int maximum) {
+        if (!parseInt(start, end)) {
+            return false;
+        }
+        if (line.charAt(start) == '+') {
+            parsedNonStandardDate = true;
+        }
+        return parsedNumber >= minimum && parsedNumber <= maximum;
+    }
+
+    /**
+     * Parses an amount such as <i>250B</i> or <i>12MB</i> into {@link #parsedNumber}.
+     *
+     * @return True if the token ends with the unit and the rest of it is an integer, false otherwise.
+     */
+    private boolean parseAmount(int token, String unit) {
+        int start = tokenStarts[token];
+        int end = tokenEnds[token];
+        if (end - start < 2 || end - start < unit.length()) {
+            return false;
+        }
+        int unitStart = end - unit.length();
+        for (int i = 0; i < unit.length(); i++) {
+            if (line.charAt(unitStart + i) != unit.charAt(i)) {
+                return false;
+            }
+        }
+        return parseInt(start, unitStart);
+    }
+
+    /**
+     * Parses the characters the same way as {@link Integer#parseInt(String)}, storing the result in
+     * {@link #parsedNumber}.
+     *
+     * @return True if the characters are a valid integer, false otherwise.
+     */
+    private boolean parseInt(int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        boolean negative = false;
+        int i = start;
+        char first = line.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (i == end) {
+                return false;
+            }
+        }
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0) {
+                return false;
+            }
+            value = value * 10 + digit;
+            if (value > limit) {
+                return false;
+            }
+        }
+        parsedNumber = (int) (negative ? -value : value);
+        return true;
+    }
+
+    private int indexOf(int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The end of the range after removing every trailing occurrence of the given delimiter.
+     */
+    private int trimTrailing(int start, int end, char delimiter) {
+        while (end > start && line.charAt(end - 1) == delimiter) {
+            end--;
+        }
+        return end;
+    }
+
+}